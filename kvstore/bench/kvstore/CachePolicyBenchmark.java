@@ -0,0 +1,140 @@
+package kvstore;
+
+import java.util.Random;
+
+/**
+ * Compares the hit ratios of the KVCache policies, SECOND_CHANCE and
+ * TINY_LFU, on synthetic traces replayed through a read-through cache: each
+ * lookup that misses fills the cache, as KVServer.get does. Every policy
+ * sees the same trace. The traces are:
+ *
+ *   zipf        Zipfian lookups over bench.keys keys.
+ *   zipf+scan   The same, interrupted every bench.scanEvery lookups by a
+ *               scan of bench.scanLength keys that are never read again.
+ *   zipf+sizes  The Zipfian lookups with values of 16 to 4096 chars, and
+ *               each set bounded by bytes instead of entries, at the mean
+ *               entry size times the entries per set.
+ *
+ * Usage: CachePolicyBenchmark [entries ...]
+ * Defaults to caches of 1000 and 10000 entries in all. Tune with
+ * -Dbench.keys (100000), -Dbench.ops (lookups per trace, 2000000),
+ * -Dbench.theta (Zipfian skew, 0.99), -Dbench.sets (64),
+ * -Dbench.scanEvery (100000) and -Dbench.scanLength (20000).
+ */
+public class CachePolicyBenchmark {
+
+    static final int KEYS = Integer.getInteger("bench.keys", 100000);
+    static final int OPS = Integer.getInteger("bench.ops", 2000000);
+    static final double THETA =
+        Double.parseDouble(System.getProperty("bench.theta", "0.99"));
+    static final int SETS = Integer.getInteger("bench.sets", 64);
+    static final int SCAN_EVERY = Integer.getInteger("bench.scanEvery", 100000);
+    static final int SCAN_LENGTH = Integer.getInteger("bench.scanLength", 20000);
+
+    static final int MIN_VALUE_BITS = 4;     /* 16 chars. */
+    static final int MAX_VALUE_BITS = 12;    /* 4096 chars. */
+
+    private static String[] keys;
+    private static String[] values;          /* One per length, 2^bits. */
+    private static int[] valueBits;          /* Each key's value length. */
+
+    public static void main(String[] args) {
+        int[] sizes = {1000, 10000};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+        setUp();
+        int[] zipf = zipfTrace(false);
+        int[] scan = zipfTrace(true);
+        long meanWeight = 0;
+        for (int i = 0; i < KEYS; i++) {
+            meanWeight += 2L * (keys[i].length() + (1 << valueBits[i]));
+        }
+        meanWeight /= KEYS;
+
+        System.out.println(String.format("keys=%d ops=%d theta=%.2f sets=%d",
+            KEYS, OPS, THETA, SETS));
+        System.out.println(String.format("%-11s %8s %14s %10s %11s",
+            "trace", "entries", "second-chance", "tiny-lfu", "rejections"));
+        for (int entries : sizes) {
+            int perSet = Math.max(1, entries / SETS);
+            compare("zipf", zipf, entries, perSet, KVCache.UNLIMITED_BYTES,
+                false);
+            compare("zipf+scan", scan, entries, perSet,
+                KVCache.UNLIMITED_BYTES, false);
+            /* Room for four times the entries by count, so bytes bind. */
+            compare("zipf+sizes", zipf, entries, 4 * perSet,
+                perSet * meanWeight, true);
+        }
+    }
+
+    private static void compare(String trace, int[] ops, int entries,
+            int perSet, long bytesPerSet, boolean sized) {
+        CacheStats clock = replay(ops, new KVCache(SETS, perSet, false,
+            KeyHash.STRING_HASH_CODE, KVCache.Policy.SECOND_CHANCE,
+            bytesPerSet), sized);
+        CacheStats tinyLfu = replay(ops, new KVCache(SETS, perSet, false,
+            KeyHash.STRING_HASH_CODE, KVCache.Policy.TINY_LFU,
+            bytesPerSet), sized);
+        System.out.println(String.format("%-11s %8d %14.3f %10.3f %11d",
+            trace, entries, clock.getHitRate(), tinyLfu.getHitRate(),
+            tinyLfu.getRejections()));
+    }
+
+    /* Negative ops are scan keys, each looked up once. */
+    private static CacheStats replay(int[] ops, KVCache cache, boolean sized) {
+        String small = values[MIN_VALUE_BITS];
+        for (int op : ops) {
+            String key = op >= 0 ? keys[op] : "scan" + (-op);
+            if (cache.get(key) == null) {
+                String value = sized && op >= 0 ? values[valueBits[op]] : small;
+                cache.put(key, value);
+            }
+        }
+        return cache.getStats();
+    }
+
+    private static void setUp() {
+        keys = new String[KEYS];
+        valueBits = new int[KEYS];
+        Random random = new Random(42);
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "key" + i;
+            valueBits[i] = MIN_VALUE_BITS
+                + random.nextInt(MAX_VALUE_BITS - MIN_VALUE_BITS + 1);
+        }
+        /* Shuffle so that the hottest ranks are not neighbouring keys. */
+        for (int i = KEYS - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            String tmp = keys[i];
+            keys[i] = keys[j];
+            keys[j] = tmp;
+        }
+        values = new String[MAX_VALUE_BITS + 1];
+        StringBuilder value = new StringBuilder();
+        for (int bits = 0; bits <= MAX_VALUE_BITS; bits++) {
+            while (value.length() < 1 << bits) {
+                value.append((char) ('a' + value.length() % 26));
+            }
+            values[bits] = value.toString();
+        }
+    }
+
+    private static int[] zipfTrace(boolean scans) {
+        LoadGenerator.Zipfian zipfian = new LoadGenerator.Zipfian(KEYS, THETA);
+        Random random = new Random(7);
+        int[] ops = new int[OPS];
+        int scanned = 0;
+        for (int i = 0; i < OPS; i++) {
+            if (scans && i % SCAN_EVERY >= SCAN_EVERY - SCAN_LENGTH) {
+                ops[i] = -(++scanned);
+            } else {
+                ops[i] = zipfian.next(random);
+            }
+        }
+        return ops;
+    }
+}
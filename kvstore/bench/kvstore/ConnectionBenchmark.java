@@ -0,0 +1,105 @@
+package kvstore;
+
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares a ServerClientHandler backed by a fixed ThreadPool against one
+ * backed by a VirtualThreadPool, with many clients holding keep-alive
+ * connections open at the same time. Each client opens a connection, runs
+ * a few PUT/GET pairs over it and closes it; all clients start together.
+ *
+ * Usage: ConnectionBenchmark [clients ...]
+ * Defaults to 1000 and 10000 clients. Tune with -Dbench.requests (PUT/GET
+ * pairs per client) and -Dbench.workers (fixed pool size).
+ */
+public class ConnectionBenchmark {
+
+    static final int REQUESTS = Integer.getInteger("bench.requests", 5);
+    static final int WORKERS = Integer.getInteger("bench.workers", 16);
+
+    public static void main(String[] args) throws Exception {
+        int[] clientCounts = {1000, 10000};
+        if (args.length > 0) {
+            clientCounts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                clientCounts[i] = Integer.parseInt(args[i]);
+            }
+        }
+        System.out.println("virtual threads available: "
+            + VirtualThreadPool.isVirtual());
+        System.out.println(String.format("%-8s %8s %10s %8s %12s",
+            "mode", "clients", "millis", "errors", "requests/s"));
+        for (int clients : clientCounts) {
+            run("fixed", new ThreadPool(WORKERS), clients);
+            run("virtual", new VirtualThreadPool(), clients);
+        }
+    }
+
+    private static void run(String mode, ThreadPool pool, int clients)
+            throws Exception {
+        final String hostname = InetAddress.getLocalHost().getHostAddress();
+        final SocketServer server = new SocketServer(hostname, 0);
+        server.addHandler(new ServerClientHandler(new KVServer(1000, 16), pool));
+        server.connect();
+        Thread serverThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    server.start();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        serverThread.start();
+
+        final int port = server.getPort();
+        final CountDownLatch ready = new CountDownLatch(clients);
+        final CountDownLatch go = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(clients);
+        final AtomicInteger errors = new AtomicInteger();
+        /* Client threads come from a VirtualThreadPool too, so that driving
+         * 10k clients does not itself need 10k platform threads. */
+        ThreadPool clientPool = new VirtualThreadPool();
+        for (int i = 0; i < clients; i++) {
+            final String key = mode + clients + "-" + i;
+            clientPool.addJob(new Runnable() {
+                @Override
+                public void run() {
+                    KVClient client = new KVClient(hostname, port);
+                    client.setFormat(KVMessage.Format.BINARY);
+                    client.setKeepAlive(true);
+                    ready.countDown();
+                    try {
+                        go.await();
+                        for (int j = 0; j < REQUESTS; j++) {
+                            client.put(key, key + j);
+                            client.get(key);
+                        }
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                    } finally {
+                        client.close();
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        done.await();
+        long millis = (System.nanoTime() - start) / 1000000;
+
+        server.stop();
+        serverThread.join();
+        clientPool.close();
+        long completed = 2L * REQUESTS * (clients - errors.get());
+        System.out.println(String.format("%-8s %8d %10d %8d %12.0f",
+            mode, clients, millis, errors.get(),
+            completed * 1000.0 / Math.max(1, millis)));
+    }
+
+}
@@ -0,0 +1,136 @@
+package kvstore;
+
+import java.util.Random;
+
+/**
+ * Compares the KeyHash implementations on throughput and on how evenly they
+ * spread keys over KVCache sets. Keys come in three shapes: sequential
+ * ("key0", "key1", ...), zero-padded ids ("user:00000042") and random
+ * alphanumeric strings. Each hash picks a set the way KVCache does, by
+ * remainder, and the spread is reported as the fullest and emptiest set
+ * relative to a perfect share, plus a chi-squared statistic (about the
+ * number of sets when the hash is uniform). The ring column splits the
+ * unsigned hash range into as many equal arcs instead, the way TPCMaster
+ * places keys on slaves, and reports the fullest arc.
+ *
+ * Usage: HashBenchmark [sets ...]
+ * Defaults to 16 and 1000 sets. Tune with -Dbench.keys (keys per shape) and
+ * -Dbench.rounds (hashing passes over the keys for throughput).
+ */
+public class HashBenchmark {
+
+    static final int KEYS = Integer.getInteger("bench.keys", 100000);
+    static final int ROUNDS = Integer.getInteger("bench.rounds", 50);
+
+    public static void main(String[] args) {
+        int[] setCounts = {16, 1000};
+        if (args.length > 0) {
+            setCounts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                setCounts[i] = Integer.parseInt(args[i]);
+            }
+        }
+        String[] names = {"hashCode", "hashTo64bit", "xxHash64"};
+        KeyHash[] hashes = {KeyHash.STRING_HASH_CODE, KeyHash.HASH_TO_64BIT,
+            new XXHash64()};
+        String[] shapes = {"sequential", "padded", "random"};
+        String[][] keys = {sequentialKeys(), paddedKeys(), randomKeys()};
+
+        System.out.println(String.format("%-12s %-11s %6s %8s %8s %10s %8s",
+            "hash", "keys", "sets", "max/avg", "min/avg", "chi2", "ring"));
+        for (int sets : setCounts) {
+            for (int h = 0; h < hashes.length; h++) {
+                for (int s = 0; s < shapes.length; s++) {
+                    spread(names[h], hashes[h], shapes[s], keys[s], sets);
+                }
+            }
+        }
+        System.out.println();
+        System.out.println(String.format("%-12s %-11s %10s",
+            "hash", "keys", "ns/hash"));
+        for (int h = 0; h < hashes.length; h++) {
+            for (int s = 0; s < shapes.length; s++) {
+                throughput(names[h], hashes[h], shapes[s], keys[s]);
+            }
+        }
+    }
+
+    private static void spread(String name, KeyHash hash, String shape,
+            String[] keys, int sets) {
+        int[] counts = new int[sets];
+        int[] arcs = new int[sets];
+        for (String key : keys) {
+            long h = hash.hash(key);
+            counts[(int) Math.abs(h % sets)]++;
+            arcs[(int) (((h >>> 32) * sets) >>> 32)]++;
+        }
+        double expected = (double) keys.length / sets;
+        int max = 0;
+        int min = Integer.MAX_VALUE;
+        double chi2 = 0;
+        for (int count : counts) {
+            max = Math.max(max, count);
+            min = Math.min(min, count);
+            chi2 += (count - expected) * (count - expected) / expected;
+        }
+        int maxArc = 0;
+        for (int count : arcs) {
+            maxArc = Math.max(maxArc, count);
+        }
+        System.out.println(String.format(
+            "%-12s %-11s %6d %8.2f %8.2f %10.1f %8.2f", name, shape, sets,
+            max / expected, min / expected, chi2, maxArc / expected));
+    }
+
+    private static void throughput(String name, KeyHash hash, String shape,
+            String[] keys) {
+        long sink = 0;
+        /* Warm up so the timed passes run compiled code. */
+        for (int r = 0; r < ROUNDS; r++) {
+            for (String key : keys) {
+                sink += hash.hash(key);
+            }
+        }
+        long start = System.nanoTime();
+        for (int r = 0; r < ROUNDS; r++) {
+            for (String key : keys) {
+                sink += hash.hash(key);
+            }
+        }
+        double nanos = (double) (System.nanoTime() - start)
+            / ((long) ROUNDS * keys.length);
+        System.out.println(String.format("%-12s %-11s %10.1f%s",
+            name, shape, nanos, sink == 42 ? " " : ""));
+    }
+
+    private static String[] sequentialKeys() {
+        String[] keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "key" + i;
+        }
+        return keys;
+    }
+
+    private static String[] paddedKeys() {
+        String[] keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = String.format("user:%08d", i);
+        }
+        return keys;
+    }
+
+    private static String[] randomKeys() {
+        String alphabet =
+            "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+        Random random = new Random(42);
+        String[] keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            char[] chars = new char[8 + random.nextInt(24)];
+            for (int j = 0; j < chars.length; j++) {
+                chars[j] = alphabet.charAt(random.nextInt(alphabet.length()));
+            }
+            keys[i] = new String(chars);
+        }
+        return keys;
+    }
+}
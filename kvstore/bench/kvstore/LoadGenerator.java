@@ -0,0 +1,308 @@
+package kvstore;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A closed-loop load generator: each of bench.clients threads drives its
+ * own KVClient, sending its next request as soon as the last one is
+ * answered. Keys are drawn uniformly or from a Zipfian distribution over a
+ * fixed key space, and each request is a GET with probability bench.reads
+ * and a PUT otherwise. All keys are loaded before the run so that GETs
+ * find them. After a warm-up, GET and PUT latencies are recorded in
+ * LatencyHistograms and reported with the throughput.
+ *
+ * The target is an in-process KVServer ("server", the default), an
+ * in-process TPCMaster with bench.slaves slaves ("tpc"; it takes the
+ * registration port, 9090), or any server already listening at host:port.
+ * Everything runs over localhost, so no network is needed.
+ *
+ * Usage: LoadGenerator [server | tpc | host:port]
+ * Tune with -Dbench.clients (16), -Dbench.seconds (measured run, 10),
+ * -Dbench.warmup (seconds, 2), -Dbench.keys (key space, 10000),
+ * -Dbench.dist (uniform or zipf), -Dbench.theta (Zipfian skew, 0.99),
+ * -Dbench.reads (fraction of GETs, 0.9), -Dbench.valueSize (chars, 100),
+ * -Dbench.format (XML or BINARY), -Dbench.keepAlive (true) and
+ * -Dbench.slaves (4).
+ */
+public class LoadGenerator {
+
+    static final int CLIENTS = Integer.getInteger("bench.clients", 16);
+    static final int SECONDS = Integer.getInteger("bench.seconds", 10);
+    static final int WARMUP = Integer.getInteger("bench.warmup", 2);
+    static final int KEYS = Integer.getInteger("bench.keys", 10000);
+    static final String DIST = System.getProperty("bench.dist", "uniform");
+    static final double THETA =
+        Double.parseDouble(System.getProperty("bench.theta", "0.99"));
+    static final double READS =
+        Double.parseDouble(System.getProperty("bench.reads", "0.9"));
+    static final int VALUE_SIZE = Integer.getInteger("bench.valueSize", 100);
+    static final KVMessage.Format FORMAT =
+        KVMessage.Format.valueOf(System.getProperty("bench.format", "BINARY"));
+    static final boolean KEEP_ALIVE = Boolean.parseBoolean(
+        System.getProperty("bench.keepAlive", "true"));
+    static final int SLAVES = Integer.getInteger("bench.slaves", 4);
+
+    static final int LOAD_BATCH = 100;
+
+    private static String hostname;
+    private static int port;
+    private static SocketServer[] servers = new SocketServer[0];
+
+    public static void main(String[] args) throws Exception {
+        String target = args.length > 0 ? args[0] : "server";
+        hostname = InetAddress.getLocalHost().getHostAddress();
+        if (target.equals("server")) {
+            startServer();
+        } else if (target.equals("tpc")) {
+            startCluster();
+        } else {
+            int colon = target.lastIndexOf(':');
+            hostname = target.substring(0, colon);
+            port = Integer.parseInt(target.substring(colon + 1));
+        }
+
+        String[] keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "load" + i;
+        }
+        /* Shuffle so that the hottest Zipfian ranks are not neighbouring
+         * keys, which would put them in the same cache set or on the same
+         * slave. */
+        Random shuffle = new Random(42);
+        for (int i = KEYS - 1; i > 0; i--) {
+            int j = shuffle.nextInt(i + 1);
+            String tmp = keys[i];
+            keys[i] = keys[j];
+            keys[j] = tmp;
+        }
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < VALUE_SIZE; i++) {
+            value.append((char) ('a' + i % 26));
+        }
+
+        System.out.println(String.format("target=%s clients=%d keys=%d "
+            + "dist=%s reads=%.2f valueSize=%d format=%s keepAlive=%b",
+            target, CLIENTS, KEYS, DIST.equals("zipf") ? "zipf(" + THETA + ")"
+            : DIST, READS, VALUE_SIZE, FORMAT, KEEP_ALIVE));
+        load(keys, value.toString());
+        run(keys, value.toString());
+        for (SocketServer server : servers) {
+            server.stop();
+        }
+        System.exit(0);
+    }
+
+    private static void run(final String[] keys, final String value)
+            throws InterruptedException {
+        final KeyChooser chooser = DIST.equals("zipf")
+            ? new Zipfian(KEYS, THETA) : new KeyChooser();
+        final LatencyHistogram gets = new LatencyHistogram();
+        final LatencyHistogram puts = new LatencyHistogram();
+        final AtomicLong errors = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(CLIENTS);
+        final long measureFrom = System.nanoTime() + WARMUP * 1000000000L;
+        final long stopAt = measureFrom + SECONDS * 1000000000L;
+
+        for (int c = 0; c < CLIENTS; c++) {
+            final long seed = c;
+            new Thread("load-" + c) {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    KVClient client = newClient();
+                    try {
+                        while (true) {
+                            String key = keys[chooser.next(random)];
+                            boolean read = random.nextDouble() < READS;
+                            long start = System.nanoTime();
+                            if (start >= stopAt) {
+                                break;
+                            }
+                            try {
+                                if (read) {
+                                    client.get(key);
+                                } else {
+                                    client.put(key, value);
+                                }
+                            } catch (KVException e) {
+                                if (start >= measureFrom) {
+                                    errors.incrementAndGet();
+                                }
+                                continue;
+                            }
+                            if (start >= measureFrom) {
+                                (read ? gets : puts).recordSince(start);
+                            }
+                        }
+                    } finally {
+                        client.close();
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        done.await();
+
+        LatencyHistogram.Snapshot getSnap = gets.snapshot();
+        LatencyHistogram.Snapshot putSnap = puts.snapshot();
+        long ops = getSnap.getCount() + putSnap.getCount();
+        System.out.println(String.format("throughput %.0f ops/s, %d errors",
+            ops / (double) SECONDS, errors.get()));
+        System.out.println(String.format("%-4s %9s %9s %9s %9s %9s %9s %9s",
+            "op", "count", "mean us", "p50 us", "p90 us", "p99 us",
+            "p99.9 us", "max us"));
+        report("get", getSnap);
+        report("put", putSnap);
+    }
+
+    private static void report(String op, LatencyHistogram.Snapshot snap) {
+        System.out.println(String.format(
+            "%-4s %9d %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f", op,
+            snap.getCount(), snap.getMean() / 1000,
+            snap.getPercentile(50) / 1000.0, snap.getPercentile(90) / 1000.0,
+            snap.getPercentile(99) / 1000.0, snap.getPercentile(99.9) / 1000.0,
+            snap.getMax() / 1000.0));
+    }
+
+    /* Loads every key in MPUT batches. */
+    private static void load(String[] keys, String value) throws KVException {
+        KVClient client = newClient();
+        try {
+            for (int i = 0; i < keys.length; i += LOAD_BATCH) {
+                Map<String, String> batch = new LinkedHashMap<String, String>();
+                for (int j = i; j < Math.min(keys.length, i + LOAD_BATCH); j++) {
+                    batch.put(keys[j], value);
+                }
+                client.mput(batch);
+            }
+        } finally {
+            client.close();
+        }
+    }
+
+    private static KVClient newClient() {
+        KVClient client = new KVClient(hostname, port);
+        client.setFormat(FORMAT);
+        client.setKeepAlive(KEEP_ALIVE);
+        return client;
+    }
+
+    private static void startServer() throws Exception {
+        SocketServer server = new SocketServer(hostname, 0);
+        server.addHandler(new ServerClientHandler(new KVServer(1000, 16),
+            new VirtualThreadPool()));
+        servers = new SocketServer[] {server};
+        serve(server);
+        port = server.getPort();
+    }
+
+    private static void startCluster() throws Exception {
+        TPCMaster master = new TPCMaster(SLAVES, new KVCache(1000, 16));
+        master.setVirtualNodes(64);
+        master.setKeyHash(new XXHash64());
+        SocketServer clients = new SocketServer(hostname, 0);
+        clients.addHandler(new TPCClientHandler(master, new VirtualThreadPool()));
+        SocketServer registration =
+            new SocketServer(hostname, TPCMasterHandler.REGISTRATION_PORT);
+        registration.addHandler(new TPCRegistrationHandler(master));
+        servers = new SocketServer[SLAVES + 2];
+        servers[0] = clients;
+        servers[1] = registration;
+        serve(clients);
+        serve(registration);
+
+        Random ids = new Random(7);
+        for (int i = 0; i < SLAVES; i++) {
+            SocketServer slave = new SocketServer(hostname, 0);
+            KVServer kvServer = new KVServer(1000, 16);
+            File logFile = File.createTempFile("loadgen-slave", ".log");
+            logFile.deleteOnExit();
+            new File(logFile.getPath() + ".snapshot").deleteOnExit();
+            TPCLog log = new TPCLog(logFile.getPath(), kvServer);
+            TPCMasterHandler handler = new TPCMasterHandler(ids.nextLong(),
+                kvServer, log, new VirtualThreadPool());
+            slave.addHandler(handler);
+            servers[i + 2] = slave;
+            serve(slave);
+            handler.registerWithMaster(hostname, slave);
+        }
+        port = clients.getPort();
+    }
+
+    /* Connects the server and runs it on a daemon thread. */
+    private static void serve(final SocketServer server) throws Exception {
+        server.connect();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    server.start();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Picks key indexes uniformly.
+     */
+    static class KeyChooser {
+        int next(Random random) {
+            return random.nextInt(KEYS);
+        }
+    }
+
+    /**
+     * Picks key indexes from a Zipfian distribution, index 0 the most
+     * likely, by the method of Gray et al., "Quickly Generating
+     * Billion-Record Synthetic Databases" (as in YCSB). theta must be in
+     * (0, 1).
+     */
+    static class Zipfian extends KeyChooser {
+        private final int n;
+        private final double theta;
+        private final double zetan;
+        private final double alpha;
+        private final double eta;
+
+        Zipfian(int n, double theta) {
+            this.n = n;
+            this.theta = theta;
+            this.zetan = zeta(n, theta);
+            this.alpha = 1 / (1 - theta);
+            this.eta = (1 - Math.pow(2.0 / n, 1 - theta))
+                / (1 - zeta(2, theta) / zetan);
+        }
+
+        @Override
+        int next(Random random) {
+            double u = random.nextDouble();
+            double uz = u * zetan;
+            if (uz < 1) {
+                return 0;
+            }
+            if (uz < 1 + Math.pow(0.5, theta)) {
+                return 1;
+            }
+            int rank = (int) (n * Math.pow(eta * u - eta + 1, alpha));
+            return Math.min(n - 1, rank);
+        }
+
+        private static double zeta(int n, double theta) {
+            double sum = 0;
+            for (int i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, theta);
+            }
+            return sum;
+        }
+    }
+}
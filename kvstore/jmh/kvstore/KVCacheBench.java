@@ -0,0 +1,95 @@
+package kvstore;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * KVCache get and put the way KVServer drives them, under the set lock, or
+ * through getShared() first in read-mostly mode. The read group runs three
+ * readers against one writer over a key set larger than the cache, so
+ * both hits and evictions are exercised while threads contend for sets.
+ * Under TINY_LFU every lookup also updates the set's frequency sketch.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class KVCacheBench {
+
+    static final int KEYS = 4096;
+
+    @Param({"false", "true"})
+    boolean readMostly;
+
+    @Param({"16"})
+    int numSets;
+
+    @Param({"SECOND_CHANCE", "TINY_LFU"})
+    KVCache.Policy policy;
+
+    KVCache cache;
+    String[] keys;
+
+    @Setup
+    public void setup() {
+        cache = new KVCache(numSets, KEYS / numSets / 2, readMostly,
+            KeyHash.STRING_HASH_CODE, policy, KVCache.UNLIMITED_BYTES);
+        keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "key" + i;
+            cache.put(keys[i], "value" + i);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        int advance() {
+            next = (next + 0x9E37) & (KEYS - 1);
+            return next;
+        }
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public String get(Cursor cursor) {
+        String key = keys[cursor.advance()];
+        String value = cache.getShared(key);
+        if (value != null) {
+            return value;
+        }
+        Lock lock = cache.getLock(key);
+        lock.lock();
+        try {
+            return cache.get(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void put(Cursor cursor) {
+        String key = keys[cursor.advance()];
+        Lock lock = cache.getLock(key);
+        lock.lock();
+        try {
+            cache.put(key, "updated");
+        } finally {
+            lock.unlock();
+        }
+    }
+}
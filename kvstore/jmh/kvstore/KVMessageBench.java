@@ -0,0 +1,54 @@
+package kvstore;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Encoding and decoding of a PUT request in each wire format, with the
+ * value size as a parameter.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class KVMessageBench {
+
+    @Param({"XML", "BINARY"})
+    KVMessage.Format format;
+
+    @Param({"16", "4096"})
+    int valueSize;
+
+    KVMessage msg;
+    byte[] encoded;
+
+    @Setup
+    public void setup() throws KVException {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < valueSize; i++) {
+            value.append((char) ('a' + i % 26));
+        }
+        msg = new KVMessage(KVConstants.PUT_REQ);
+        msg.setKey("benchmark-key");
+        msg.setValue(value.toString());
+        msg.setFormat(format);
+        encoded = msg.toBytes();
+    }
+
+    @Benchmark
+    public byte[] marshal() throws KVException {
+        return msg.toBytes();
+    }
+
+    @Benchmark
+    public KVMessage unmarshal() throws KVException {
+        return KVMessage.fromBytes(encoded, 0, encoded.length);
+    }
+}
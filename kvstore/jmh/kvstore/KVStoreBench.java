@@ -0,0 +1,54 @@
+package kvstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Serializing a whole KVStore to an XML string and to a file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class KVStoreBench {
+
+    @Param({"100", "10000"})
+    int entries;
+
+    KVStore store;
+    File dumpFile;
+
+    @Setup
+    public void setup() throws IOException {
+        store = new KVStore();
+        for (int i = 0; i < entries; i++) {
+            store.put("key" + i, "value" + i);
+        }
+        dumpFile = File.createTempFile("kvstore-bench", ".xml");
+    }
+
+    @TearDown
+    public void tearDown() {
+        dumpFile.delete();
+    }
+
+    @Benchmark
+    public String toXML() {
+        return store.toXML();
+    }
+
+    @Benchmark
+    public void dumpToFile() {
+        store.dumpToFile(dumpFile.getPath());
+    }
+}
@@ -0,0 +1,62 @@
+package kvstore;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * TPCMaster.findFirstReplica, for each key hash and number of ring points
+ * per slave. No slave is contacted; the slaves only need to be registered.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TPCMasterBench {
+
+    static final int KEYS = 1024;
+
+    @Param({"8"})
+    int slaves;
+
+    @Param({"1", "64"})
+    int virtualNodes;
+
+    @Param({"hashTo64bit", "xxHash64"})
+    String keyHash;
+
+    TPCMaster master;
+    String[] keys;
+    int next;
+
+    @Setup
+    public void setup() throws KVException {
+        master = new TPCMaster(slaves, new KVCache(1, 1));
+        if (keyHash.equals("xxHash64")) {
+            master.setKeyHash(new XXHash64());
+        }
+        master.setVirtualNodes(virtualNodes);
+        Random random = new Random(42);
+        for (int i = 0; i < slaves; i++) {
+            master.registerSlave(new TPCSlaveInfo(
+                random.nextLong() + "@localhost:" + (9100 + i)));
+        }
+        keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "user:" + i;
+        }
+    }
+
+    @Benchmark
+    public TPCSlaveInfo findFirstReplica() {
+        next = (next + 1) & (KEYS - 1);
+        return master.findFirstReplica(keys[next]);
+    }
+}
@@ -0,0 +1,66 @@
+package kvstore;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Job throughput of a ThreadPool: each invocation submits a batch of empty
+ * jobs and waits for all of them to run, so the score is per job and
+ * covers submission, hand-off and wake-up.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ThreadPoolBench {
+
+    static final int BATCH = 1000;
+
+    @Param({"fixed", "virtual"})
+    String pool;
+
+    @Param({"4"})
+    int workers;
+
+    ThreadPool threadPool;
+
+    @Setup
+    public void setup() {
+        if (pool.equals("virtual")) {
+            threadPool = new VirtualThreadPool();
+        } else {
+            threadPool = new ThreadPool(workers);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        threadPool.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void submitAndRun() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(BATCH);
+        Runnable job = new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        };
+        for (int i = 0; i < BATCH; i++) {
+            threadPool.addJob(job);
+        }
+        done.await();
+    }
+}
@@ -0,0 +1,117 @@
+package kvstore;
+
+/**
+ * A snapshot of a KVCache's hit, miss and eviction counts, per set and in
+ * total, for tuning the number of sets and their size against real traffic.
+ * A set with many evictions and a low hit rate is too small for its share
+ * of the keys; sets whose counts differ widely point at a skewed key hash.
+ * Under TINY_LFU, rejections count new entries turned away in favour of
+ * more frequently read ones.
+ */
+public class CacheStats {
+
+    private final long[] hits;
+    private final long[] misses;
+    private final long[] evictions;
+    private final long[] rejections;
+
+    CacheStats(long[] hits, long[] misses, long[] evictions,
+            long[] rejections) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.rejections = rejections;
+    }
+
+    /**
+     * @return the number of sets in the cache
+     */
+    public int getNumSets() {
+        return hits.length;
+    }
+
+    /**
+     * @param  set which set
+     * @return lookups in the set that found their key
+     */
+    public long getHits(int set) {
+        return hits[set];
+    }
+
+    /**
+     * @param  set which set
+     * @return lookups in the set that did not find their key
+     */
+    public long getMisses(int set) {
+        return misses[set];
+    }
+
+    /**
+     * @param  set which set
+     * @return entries the set dropped to make room for new ones
+     */
+    public long getEvictions(int set) {
+        return evictions[set];
+    }
+
+    /**
+     * @param  set which set
+     * @return new entries the set declined to admit
+     */
+    public long getRejections(int set) {
+        return rejections[set];
+    }
+
+    /**
+     * @return lookups that found their key, over all sets
+     */
+    public long getHits() {
+        return sum(hits);
+    }
+
+    /**
+     * @return lookups that did not find their key, over all sets
+     */
+    public long getMisses() {
+        return sum(misses);
+    }
+
+    /**
+     * @return entries dropped to make room for new ones, over all sets
+     */
+    public long getEvictions() {
+        return sum(evictions);
+    }
+
+    /**
+     * @return new entries declined, over all sets
+     */
+    public long getRejections() {
+        return sum(rejections);
+    }
+
+    /**
+     * @return the fraction of lookups that hit, or 0 if there were none
+     */
+    public double getHitRate() {
+        long hitCount = getHits();
+        long lookups = hitCount + getMisses();
+        return lookups == 0 ? 0 : (double) hitCount / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+            "hits=%d misses=%d evictions=%d rejections=%d hitRate=%.3f",
+            getHits(), getMisses(), getEvictions(), getRejections(),
+            getHitRate());
+    }
+
+    private static long sum(long[] counts) {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,81 @@
+package kvstore;
+
+import static kvstore.TPCMaster.TIMEOUT;
+
+import java.net.Socket;
+
+/**
+ * Job that services the requests arriving on one connection. A connection
+ * carries a single request unless the requester asks for keep-alive, in
+ * which case further requests are read and answered in order until the
+ * requester closes the connection or leaves it idle for KEEP_ALIVE_TIMEOUT
+ * milliseconds. An open keep-alive connection occupies its worker thread
+ * for that whole time, which is why the handlers' default pools give each
+ * connection a thread of its own.
+ */
+class ConnectionJob implements Runnable {
+
+    public static final int KEEP_ALIVE_TIMEOUT = 10000;
+
+    private final Socket sock;
+    private final MessageHandler handler;
+
+    /**
+     * Constructs a job for a connection.
+     *
+     * @param sock Socket connected to the requester
+     * @param handler MessageHandler to carry out each request
+     */
+    ConnectionJob(Socket sock, MessageHandler handler) {
+        this.sock = sock;
+        this.handler = handler;
+    }
+
+    @Override
+    public void run() {
+        KVMessage rqst = null;
+        KVMessage resp;
+        try {
+            rqst = new KVMessage(sock, TIMEOUT);
+            resp = handler.service(rqst);
+        } catch (KVException e) {
+            resp = e.getKVMessage();
+        }
+        while (true) {
+            boolean keepAlive = (rqst != null) && rqst.isKeepAlive();
+            if (rqst != null) {
+                resp.setFormat(rqst.getFormat());
+            }
+            resp.setKeepAlive(keepAlive);
+            try {
+                resp.sendMessage(sock);
+            } catch (KVException e) {
+                // Wait for timeout.
+                keepAlive = false;
+            }
+            if (!keepAlive) {
+                if (rqst != null && rqst.isKeepAlive()) {
+                    closeQuietly();
+                }
+                return;
+            }
+            try {
+                rqst = new KVMessage(sock, KEEP_ALIVE_TIMEOUT);
+            } catch (KVException e) {
+                /* Requester closed the connection or went idle. */
+                closeQuietly();
+                return;
+            }
+            resp = handler.service(rqst);
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            sock.close();
+        } catch (Exception e) {
+            return;
+        }
+    }
+
+}
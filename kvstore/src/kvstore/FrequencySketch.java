@@ -0,0 +1,124 @@
+package kvstore;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An approximate count of how often each key has been looked up recently,
+ * for TinyLFU admission in KVCache: a count-min sketch of four rows of
+ * 4-bit counters, sixteen to a long. A key's estimate is the smallest of
+ * its four counters, so collisions can only overestimate it. Counters
+ * saturate at 15, and once the sketch has counted ten times as many
+ * lookups as the capacity it was sized for, every counter is halved, so
+ * that keys which were popular long ago lose out to ones popular now.
+ *
+ * Thread-safe: counters are updated by compare-and-set, so KVCache can
+ * record lookups made under a set's read lock, or under none by an
+ * optimistic getShared(). Halving is not atomic across the table, so an
+ * increment racing it may escape halving, which only skews an estimate.
+ */
+class FrequencySketch {
+
+    /* Odd multipliers, one per row, that pick each row's counter. */
+    private static final long[] SEEDS = {
+        0xC3A5C85C97CB3127L, 0xB492B66FBE98F273L,
+        0x9AE16A3B2F90404FL, 0xCBF29CE484222325L
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+
+    private final AtomicLongArray table;
+    private final int tableMask;
+    private final int sampleSize;
+    /* Increments since halving. */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * @param capacity the number of entries whose keys are being compared
+     */
+    FrequencySketch(int capacity) {
+        int length = Integer.highestOneBit(Math.max(capacity, 4) - 1) << 1;
+        table = new AtomicLongArray(length);
+        tableMask = length - 1;
+        sampleSize = 10 * Math.max(capacity, 4);
+    }
+
+    /**
+     * @return the estimated number of recent lookups of key, 0 to 15
+     */
+    int frequency(String key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int min = 15;
+        for (int i = 0; i < 4; i++) {
+            int counter = (int) (table.get(indexOf(hash, i))
+                >>> ((start + i) << 2)) & 0xF;
+            min = Math.min(min, counter);
+        }
+        return min;
+    }
+
+    /**
+     * Counts a lookup of key, halving every counter if that completes a
+     * sample.
+     */
+    void increment(String key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        /* Exactly one increment brings size to sampleSize, and that one
+         * halves. */
+        if (added && size.incrementAndGet() == sampleSize) {
+            halve();
+        }
+    }
+
+    /* Each long holds four groups of four counters; a key uses counter j
+     * of its group in row j. Returns false if the counter was saturated. */
+    private boolean incrementAt(int i, int j) {
+        int offset = j << 2;
+        long mask = 0xFL << offset;
+        while (true) {
+            long word = table.get(i);
+            if ((word & mask) == mask) {
+                return false;
+            }
+            if (table.compareAndSet(i, word, word + (1L << offset))) {
+                return true;
+            }
+        }
+    }
+
+    private void halve() {
+        int odd = 0;
+        for (int i = 0; i < table.length(); i++) {
+            long word;
+            do {
+                word = table.get(i);
+            } while (!table.compareAndSet(i, word, (word >>> 1) & RESET_MASK));
+            odd += Long.bitCount(word & ONE_MASK);
+        }
+        /* Each key added four counts, so a quarter of the odd counts
+         * approximates the increments that halving rounds away. Increments
+         * made meanwhile stay counted on top. */
+        int halved = (sampleSize - (odd >>> 2)) >>> 1;
+        size.addAndGet(halved - sampleSize);
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) h & tableMask;
+    }
+
+    /* KVCache picks a key's set from its hash, so keys sharing a set share
+     * low bits of hashCode(); mix them into every bit. */
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45D9F3B;
+        x = ((x >>> 16) ^ x) * 0x45D9F3B;
+        return (x >>> 16) ^ x;
+    }
+}
@@ -2,11 +2,14 @@ package kvstore;
 
 import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
@@ -24,13 +27,75 @@ import kvstore.xml.ObjectFactory;
  * Each set has a maximum number of elements (MAX_ELEMS_PER_SET).
  * If a set is full and another entry is added, an entry is dropped based on
  * the eviction policy.
+ *
+ * Each set is a fixed array of slots with a boolean reference bit per slot
+ * and a hash index from key to slot. The slots are threaded into a circular
+ * list by index, and the CLOCK hand sits on its oldest entry. A hit moves
+ * its slot to just behind the hand, so that when every entry has been
+ * referenced the least recently used one goes first. A hit is an index
+ * lookup plus a few array writes: it allocates nothing and does not depend
+ * on the size of the set.
+ *
+ * In read-mostly mode each set is guarded by a StampedLock, and getShared()
+ * serves hits without the caller taking the set's lock: it first tries an
+ * optimistic read, validated against the lock's stamp, and falls back to a
+ * shared read lock, so concurrent GETs to one set no longer serialize. The
+ * sets' indexes are then ConcurrentHashMaps, which the optimistic lookup
+ * can walk safely while a writer changes them. A shared hit only sets the
+ * reference bit and cannot reorder the set, so in this mode eviction is
+ * plain CLOCK rather than least-recently-used among referenced entries.
+ *
+ * A cache can also be given a byte budget per set, weighing each entry by
+ * the UTF-16 size of its key and value, so that a set holds fewer large
+ * values than small ones and evicts as many entries as a new one needs.
+ *
+ * Under the TINY_LFU policy each set also keeps a FrequencySketch of the
+ * keys looked up in it, hits and misses alike, and a new key only displaces
+ * CLOCK's victims if it has been looked up more often recently than each of
+ * them. A scan that reads many keys once then leaves the frequently read
+ * entries in place, where SECOND_CHANCE would admit every scanned key.
+ * Unlike W-TinyLFU there is no admission window in front of the sets,
+ * which are too small to split, so a key read once does not displace an
+ * entry read once; it needs another lookup to get in. Entries that are
+ * already cached are always updated, so the cache never holds a stale
+ * value.
+ *
+ * Each set counts its hits, misses, evictions and rejected admissions;
+ * getStats() snapshots the counts. A lookup through getShared() that misses
+ * is not counted, since the caller falls back to get(), which counts it.
  */
 public class KVCache implements KeyValueInterface {
-    
+
+    /**
+     * How a full set chooses between a new entry and its existing ones.
+     */
+    public enum Policy {
+        /** Always admit the new entry, evicting by CLOCK. */
+        SECOND_CHANCE,
+
+        /**
+         * Admit the new entry only if its key has been looked up more often
+         * than each entry CLOCK would evict for it.
+         */
+        TINY_LFU
+    }
+
+    /** Byte budget meaning that only maxElemsPerSet bounds a set. */
+    public static final long UNLIMITED_BYTES = Long.MAX_VALUE;
+
     private int numSets;
     private int maxElemsPerSet;
-    private LinkedList<KVCacheEntry>[] sets; /* List of cache sets. */
+    private long maxBytesPerSet;
+    private Policy policy;
+    private CacheSet[] sets;                 /* List of cache sets. */
     private Lock[] locks;                    /* Locks for each set. */
+    private StampedLock[] stampedLocks;      /* Read-mostly mode only. */
+    private KeyHash keyHash;                 /* Picks each key's set. */
+    /* Per-set counters; LongAdders so shared hits do not contend. */
+    private LongAdder[] hits;
+    private LongAdder[] misses;
+    private LongAdder[] evictions;
+    private LongAdder[] rejections;
     
     /**
      * Constructs a second-chance-replacement cache.
@@ -38,15 +103,148 @@ public class KVCache implements KeyValueInterface {
      * @param numSets the number of sets this cache will have
      * @param maxElemsPerSet the size of each set
      */
-    @SuppressWarnings("unchecked")
     public KVCache(int numSets, int maxElemsPerSet) {
+        this(numSets, maxElemsPerSet, false);
+    }
+
+    /**
+     * Constructs a second-chance-replacement cache, optionally in read-mostly
+     * mode, where getLock() hands out the write side of a StampedLock per set
+     * and getShared() can serve hits without it.
+     *
+     * @param numSets the number of sets this cache will have
+     * @param maxElemsPerSet the size of each set
+     * @param readMostly whether to allow unlocked reads through getShared()
+     */
+    public KVCache(int numSets, int maxElemsPerSet, boolean readMostly) {
+        this(numSets, maxElemsPerSet, readMostly, KeyHash.STRING_HASH_CODE);
+    }
+
+    /**
+     * Constructs a second-chance-replacement cache that picks each key's set
+     * with the given hash, by remainder. String.hashCode() is cached on the
+     * key and spreads typical keys well; an XXHash64 mixes every bit, so its
+     * spread does not depend on the shape of the keys.
+     *
+     * @param numSets the number of sets this cache will have
+     * @param maxElemsPerSet the size of each set
+     * @param readMostly whether to allow unlocked reads through getShared()
+     * @param keyHash the hash that picks a key's set
+     */
+    public KVCache(int numSets, int maxElemsPerSet, boolean readMostly,
+            KeyHash keyHash) {
+        this(numSets, maxElemsPerSet, readMostly, keyHash,
+            Policy.SECOND_CHANCE, UNLIMITED_BYTES);
+    }
+
+    /**
+     * Constructs a cache with the given admission policy whose sets are
+     * bounded both by entry count and by the total size of their entries.
+     *
+     * @param numSets the number of sets this cache will have
+     * @param maxElemsPerSet the most entries each set holds
+     * @param readMostly whether to allow unlocked reads through getShared()
+     * @param keyHash the hash that picks a key's set
+     * @param policy whether a full set admits every new entry
+     * @param maxBytesPerSet the most bytes of keys and values, as UTF-16,
+     *        each set holds, or UNLIMITED_BYTES
+     */
+    public KVCache(int numSets, int maxElemsPerSet, boolean readMostly,
+            KeyHash keyHash, Policy policy, long maxBytesPerSet) {
         this.numSets = numSets;
+        this.keyHash = keyHash;
         this.maxElemsPerSet = maxElemsPerSet;
-        this.sets = new LinkedList[numSets];
+        this.maxBytesPerSet = maxBytesPerSet;
+        this.policy = policy;
+        this.sets = new CacheSet[numSets];
         this.locks = new Lock[numSets];
+        this.hits = new LongAdder[numSets];
+        this.misses = new LongAdder[numSets];
+        this.evictions = new LongAdder[numSets];
+        this.rejections = new LongAdder[numSets];
+        if (readMostly) {
+            this.stampedLocks = new StampedLock[numSets];
+        }
         for (int i = 0; i < numSets; i++) {
-            sets[i] = new LinkedList<KVCacheEntry>();
-            locks[i] = new ReentrantLock();
+            sets[i] = new CacheSet(maxElemsPerSet, policy == Policy.TINY_LFU,
+                readMostly);
+            hits[i] = new LongAdder();
+            misses[i] = new LongAdder();
+            evictions[i] = new LongAdder();
+            rejections[i] = new LongAdder();
+            if (readMostly) {
+                stampedLocks[i] = new StampedLock();
+                locks[i] = stampedLocks[i].asWriteLock();
+            } else {
+                locks[i] = new ReentrantLock();
+            }
+        }
+    }
+
+    /**
+     * @return how a full set chooses between a new entry and its own
+     */
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return true if this cache was constructed in read-mostly mode
+     */
+    public boolean isReadMostly() {
+        return stampedLocks != null;
+    }
+
+    /**
+     * Retrieves an entry from the cache without the caller holding the
+     * set's lock. Callers should try this first and, on null, fall back to
+     * the locked get() path. Always returns null unless the cache is in
+     * read-mostly mode.
+     *
+     * @param  key the key whose associated value is to be returned.
+     * @return the value associated to this key, or null if there is none or
+     *         the cache is not in read-mostly mode
+     */
+    public String getShared(String key) {
+        if (stampedLocks == null || key == null || key.length() == 0) {
+            return null;
+        }
+        int setId = setOf(key);
+        StampedLock lock = stampedLocks[setId];
+        CacheSet currSet = sets[setId];
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            /* The index is a ConcurrentHashMap in this mode, so the lookup
+             * is safe beside a writer; the slot it yields is in bounds, and
+             * validate() rejects a value read while the set changed. */
+            Integer slot = currSet.index.get(key);
+            String value = slot == null ? null : currSet.values[slot];
+            if (lock.validate(stamp)) {
+                if (slot != null) {
+                    /* Racy by design: if a writer has since evicted the
+                     * entry, the bit lands on its replacement, and if a
+                     * sweep clears it first the entry just loses its second
+                     * chance. Neither affects what get() returns. The
+                     * sketch is safe to update here; see FrequencySketch. */
+                    currSet.referenced[slot] = true;
+                    currSet.recordLookup(key);
+                    hits[setId].increment();
+                }
+                return value;
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            Integer slot = currSet.index.get(key);
+            if (slot == null) {
+                return null;
+            }
+            currSet.referenced[slot] = true;
+            currSet.recordLookup(key);
+            hits[setId].increment();
+            return currSet.values[slot];
+        } finally {
+            lock.unlockRead(stamp);
         }
     }
 
@@ -64,33 +262,34 @@ public class KVCache implements KeyValueInterface {
         if (key == null || key.length() == 0) {
             return null;
         }
-        LinkedList<KVCacheEntry> currSet = sets[Math.abs(key.hashCode()) % numSets];
-        ListIterator<KVCacheEntry> iter = currSet.listIterator();
-        KVCacheEntry currEntry;
-        while (iter.hasNext()) {
-            currEntry = iter.next();
-            if (currEntry.getKey().equals(key)) {
-                currEntry.setIsReferenced("true");
-                currSet.remove(currEntry);
-                currSet.addLast(currEntry);
-                return currEntry.getValue();
-            }
+        int setId = setOf(key);
+        CacheSet currSet = sets[setId];
+        currSet.recordLookup(key);
+        Integer slot = currSet.index.get(key);
+        if (slot == null) {
+            misses[setId].increment();
+            return null;
         }
-        return null;
+        hits[setId].increment();
+        currSet.referenced[slot] = true;
+        currSet.moveBehindHand(slot);
+        return currSet.values[slot];
     }
 
     /**
      * Adds an entry to this cache.
      * If an entry with the specified key already exists in the cache, it is
      * replaced by the new entry. When an entry is replaced, its reference bit
-     * will be set to True. If the set is full, an entry is removed from
-     * the cache based on the eviction policy. If the set is not full, the entry
-     * will be inserted behind all existing entries. For this policy, we suggest
-     * using a LinkedList over an array to keep track of entries in a set since
-     * deleting an entry in an array will leave a gap in the array, likely not
-     * at the end. More details and explanations in the spec. Assumes access to
-     * the corresponding set has already been locked by the caller of this
-     * method.
+     * will be set to True. If the set is full, the CLOCK hand sweeps forward,
+     * clearing reference bits, until it finds an unreferenced entry to evict;
+     * the new entry takes that slot and the hand moves past it. Otherwise the
+     * entry takes a free slot behind the hand, i.e. behind all existing
+     * entries. With a byte budget, entries are evicted until the new one
+     * fits, and one larger than the whole budget is not cached at all.
+     * Under TINY_LFU, the victims are all chosen first, and a new key that
+     * has not been looked up more often than each of them is turned away
+     * instead, leaving every entry in place. Assumes access to the
+     * corresponding set has already been locked by the caller of this method.
      *
      * @param key the key with which the specified value is to be associated
      * @param value a value to be associated with the specified key
@@ -101,41 +300,53 @@ public class KVCache implements KeyValueInterface {
             value == null || value.length() == 0) {
             return;
         }
-        boolean updateExistingEntry = false;
-        KVCacheEntry currEntry;
-        LinkedList<KVCacheEntry> currSet = sets[Math.abs(key.hashCode()) % numSets];
-        ListIterator<KVCacheEntry> iter = currSet.listIterator();
-        while (iter.hasNext()) {
-            currEntry = iter.next();
-            /* Key matches existing entry. */
-            if (currEntry.getKey().equals(key)) {
-                updateExistingEntry = true;
-                currEntry.setIsReferenced("true");
-                currEntry.setValue(value);
-                break;
-            }
-        }
-        if (!updateExistingEntry) {
-            /* Evict an entry. */
-            if (currSet.size() == maxElemsPerSet) {
-                for (int i = 0; i < maxElemsPerSet + 1; i++) {
-                    currEntry = currSet.removeFirst();
-                    if (currEntry.getIsReferenced().equals("true")) {
-                        currEntry.setIsReferenced("false");
-                        currSet.addLast(currEntry);
-                    } else {
-                        break;
+        int setId = setOf(key);
+        CacheSet currSet = sets[setId];
+        long weight = weigh(key, value);
+        Integer existing = currSet.index.get(key);
+        if (weight > maxBytesPerSet) {
+            if (existing != null) {
+                currSet.remove(existing);
+            }
+            return;
+        }
+        if (existing != null) {
+            currSet.bytes += weight - weigh(key, currSet.values[existing]);
+            currSet.values[existing] = value;
+            currSet.referenced[existing] = true;
+            while (currSet.bytes > maxBytesPerSet) {
+                currSet.remove(currSet.victim(existing));
+                evictions[setId].increment();
+            }
+            return;
+        }
+        if (currSet.freeCount == 0 ||
+                currSet.bytes + weight > maxBytesPerSet) {
+            int count = currSet.chooseVictims(maxBytesPerSet - weight);
+            if (currSet.sketch != null) {
+                int frequency = currSet.sketch.frequency(key);
+                for (int i = 0; i < count; i++) {
+                    if (frequency <= currSet.sketch.frequency(
+                            currSet.keys[currSet.victims[i]])) {
+                        currSet.hand = currSet.victims[0];
+                        rejections[setId].increment();
+                        return;
                     }
                 }
-
             }
-            /* Add in new entry. */
-            currEntry = new KVCacheEntry();
-            currEntry.setKey(key);
-            currEntry.setValue(value);
-            currEntry.setIsReferenced("true");
-            currSet.addLast(currEntry);
+            for (int i = 0; i < count; i++) {
+                currSet.remove(currSet.victims[i]);
+                evictions[setId].increment();
+            }
         }
+        int slot = currSet.free[--currSet.freeCount];
+        currSet.linkBehindHand(slot);
+        currSet.size++;
+        currSet.bytes += weight;
+        currSet.keys[slot] = key;
+        currSet.values[slot] = value;
+        currSet.referenced[slot] = true;
+        currSet.index.put(key, slot);
     }
 
     /**
@@ -150,15 +361,10 @@ public class KVCache implements KeyValueInterface {
         if (key == null || key.length() == 0) {
             return;
         }
-        LinkedList<KVCacheEntry> currSet = sets[Math.abs(key.hashCode()) % numSets];
-        ListIterator<KVCacheEntry> iter = currSet.listIterator();
-        KVCacheEntry currEntry;
-        while (iter.hasNext()) {
-            currEntry = iter.next();
-            if (currEntry.getKey().equals(key)) {
-                currSet.remove(currEntry);
-                return;
-            }
+        CacheSet currSet = sets[setOf(key)];
+        Integer slot = currSet.index.get(key);
+        if (slot != null) {
+            currSet.remove(slot);
         }
     }
 
@@ -175,9 +381,55 @@ public class KVCache implements KeyValueInterface {
         if (key == null || key.length() == 0) {
             return null;
         }
-        return locks[Math.abs(key.hashCode()) % numSets];
+        return locks[setOf(key)];
     }
     
+    /* The heap bytes of an entry's strings, as UTF-16. */
+    private static long weigh(String key, String value) {
+        return 2L * (key.length() + value.length());
+    }
+
+    /* Math.abs of the remainder rather than of the hash, which stays
+     * negative for Integer.MIN_VALUE; the two agree on every other hash. */
+    private int setOf(String key) {
+        return (int) Math.abs(keyHash.hash(key) % numSets);
+    }
+
+    /**
+     * Snapshots the hit, miss, eviction and rejection counts of every set.
+     * Counts taken while the cache is in use may miss lookups still in
+     * progress.
+     *
+     * @return the counts since construction or the last resetStats()
+     */
+    public CacheStats getStats() {
+        long[] hitCounts = new long[numSets];
+        long[] missCounts = new long[numSets];
+        long[] evictionCounts = new long[numSets];
+        long[] rejectionCounts = new long[numSets];
+        for (int i = 0; i < numSets; i++) {
+            hitCounts[i] = hits[i].sum();
+            missCounts[i] = misses[i].sum();
+            evictionCounts[i] = evictions[i].sum();
+            rejectionCounts[i] = rejections[i].sum();
+        }
+        return new CacheStats(hitCounts, missCounts, evictionCounts,
+            rejectionCounts);
+    }
+
+    /**
+     * Zeroes the hit, miss, eviction and rejection counts, e.g. to start
+     * measuring a new window of traffic.
+     */
+    public void resetStats() {
+        for (int i = 0; i < numSets; i++) {
+            hits[i].reset();
+            misses[i].reset();
+            evictions[i].reset();
+            rejections[i].reset();
+        }
+    }
+
     /**
      * Get the size of a given set in the cache.
      * @param cacheSet Which set.
@@ -187,7 +439,7 @@ public class KVCache implements KeyValueInterface {
         if (cacheSet < 0 || cacheSet >= numSets) {
             return -1;
         }
-        return sets[cacheSet].size();
+        return sets[cacheSet].size;
     }
 
     private void marshalTo(OutputStream os) throws JAXBException {
@@ -207,7 +459,7 @@ public class KVCache implements KeyValueInterface {
         for (int id = 0; id < numSets; id++) {
             currSetType = factory.createKVSetType();
             currSetType.setId(Integer.toString(id));
-            currSetType.getCacheEntry().addAll(sets[id]);
+            sets[id].addEntriesTo(currSetType.getCacheEntry());
             setTypeList.add(currSetType);
         }
         return factory.createKVCache(xmlCache);
@@ -231,4 +483,163 @@ public class KVCache implements KeyValueInterface {
         return this.toXML();
     }
 
+    /**
+     * One set of the cache. Slots are filled from a stack of free slot
+     * numbers; once none are free, or the set is over its byte budget, the
+     * CLOCK hand picks a victim, whose slot is freed. Occupied slots form a
+     * circular list through next/prev, starting at the hand.
+     */
+    private static class CacheSet {
+
+        final String[] keys;
+        final String[] values;
+        final boolean[] referenced;
+        final int[] next;
+        final int[] prev;
+        /* A ConcurrentHashMap in read-mostly mode, for getShared(). */
+        final Map<String, Integer> index;
+        final int[] free;
+        final FrequencySketch sketch;         /* TINY_LFU only. */
+        final int[] victims;                  /* Filled by chooseVictims. */
+        final boolean[] chosen;
+        int freeCount;
+        int size;
+        long bytes;                           /* Weight of the entries. */
+        int hand = -1;                        /* -1 while the set is empty. */
+
+        CacheSet(int capacity, boolean tinyLfu, boolean concurrentIndex) {
+            sketch = tinyLfu ? new FrequencySketch(capacity) : null;
+            keys = new String[capacity];
+            victims = new int[capacity];
+            chosen = new boolean[capacity];
+            values = new String[capacity];
+            referenced = new boolean[capacity];
+            next = new int[capacity];
+            prev = new int[capacity];
+            index = concurrentIndex
+                ? new ConcurrentHashMap<String, Integer>(capacity * 4 / 3 + 1)
+                : new HashMap<String, Integer>(capacity * 4 / 3 + 1);
+            free = new int[capacity];
+            /* Hand out slots 0, 1, 2... in order until the set first fills. */
+            for (int i = 0; i < capacity; i++) {
+                free[i] = capacity - 1 - i;
+            }
+            freeCount = capacity;
+        }
+
+        void recordLookup(String key) {
+            if (sketch != null) {
+                sketch.increment(key);
+            }
+        }
+
+        /**
+         * Sweeps the hand forward, clearing reference bits, to the first
+         * unreferenced entry other than keep, and returns its slot, leaving
+         * the hand on it. The set must hold an entry other than keep.
+         */
+        int victim(int keep) {
+            while (referenced[hand] || hand == keep) {
+                if (hand != keep) {
+                    referenced[hand] = false;
+                }
+                hand = next[hand];
+            }
+            return hand;
+        }
+
+        /**
+         * Picks, in CLOCK order, the victims to evict so that a new entry
+         * gets a free slot and the set's entries weigh at most maxBytes,
+         * without evicting them. Fills victims and returns their number,
+         * leaving the hand on the last of them. The set must be able to
+         * make that room.
+         */
+        int chooseVictims(long maxBytes) {
+            int count = 0;
+            long left = bytes;
+            int slot = hand;
+            while (freeCount + count == 0 || left > maxBytes) {
+                /* A sweep that wraps around passes over the victims chosen
+                 * so far, which are unreferenced, so they are marked. */
+                if (referenced[slot]) {
+                    referenced[slot] = false;
+                } else if (!chosen[slot]) {
+                    chosen[slot] = true;
+                    victims[count++] = slot;
+                    left -= weigh(keys[slot], values[slot]);
+                    hand = slot;
+                }
+                slot = next[slot];
+            }
+            for (int i = 0; i < count; i++) {
+                chosen[victims[i]] = false;
+            }
+            return count;
+        }
+
+        /* Unlink an occupied slot and return it to the free stack. */
+        void remove(int slot) {
+            index.remove(keys[slot]);
+            unlink(slot);
+            bytes -= weigh(keys[slot], values[slot]);
+            keys[slot] = null;
+            values[slot] = null;
+            referenced[slot] = false;
+            free[freeCount++] = slot;
+            size--;
+        }
+
+        /* Insert an unlinked slot as the last entry, just behind the hand. */
+        void linkBehindHand(int slot) {
+            if (hand < 0) {
+                next[slot] = slot;
+                prev[slot] = slot;
+                hand = slot;
+                return;
+            }
+            int tail = prev[hand];
+            next[tail] = slot;
+            prev[slot] = tail;
+            next[slot] = hand;
+            prev[hand] = slot;
+        }
+
+        void unlink(int slot) {
+            if (next[slot] == slot) {
+                hand = -1;
+                return;
+            }
+            if (slot == hand) {
+                hand = next[slot];
+            }
+            next[prev[slot]] = next[slot];
+            prev[next[slot]] = prev[slot];
+        }
+
+        /* Make a linked slot the last entry. */
+        void moveBehindHand(int slot) {
+            if (slot == hand) {
+                hand = next[slot];
+            } else if (slot != prev[hand]) {
+                unlink(slot);
+                linkBehindHand(slot);
+            }
+        }
+
+        /**
+         * Append this set's entries to entries, in CLOCK order starting at
+         * the hand.
+         */
+        void addEntriesTo(List<KVCacheEntry> entries) {
+            for (int i = 0, slot = hand; i < size; i++, slot = next[slot]) {
+                KVCacheEntry entry = new KVCacheEntry();
+                entry.setKey(keys[slot]);
+                entry.setValue(values[slot]);
+                entry.setIsReferenced(Boolean.toString(referenced[slot]));
+                entries.add(entry);
+            }
+        }
+    }
+
 }
@@ -5,21 +5,51 @@ import static kvstore.KVConstants.ERROR_COULD_NOT_CREATE_SOCKET;
 import static kvstore.KVConstants.ERROR_COULD_NOT_RECEIVE_DATA;
 import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
 import static kvstore.KVConstants.GET_REQ;
+import static kvstore.KVConstants.MDEL_REQ;
+import static kvstore.KVConstants.MGET_REQ;
+import static kvstore.KVConstants.MPUT_REQ;
 import static kvstore.KVConstants.PUT_REQ;
 import static kvstore.KVConstants.SUCCESS;
 import static kvstore.TPCMaster.TIMEOUT;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Client API used to issue requests to key-value server.
+ *
+ * By default every request opens its own connection. With keep-alive
+ * enabled the client instead holds one persistent connection, sends binary
+ * frames over it, and can pipeline several requests before reading their
+ * responses.
  */
 public class KVClient implements KeyValueInterface {
 
     public String server;
     public int port;
 
+    public static final int DEFAULT_MAX_IN_FLIGHT = 16;
+
+    /* Wire format used for requests; the server answers in kind. */
+    private KVMessage.Format format = KVMessage.Format.XML;
+
+    /* Persistent connection state, only used with keep-alive enabled. */
+    private boolean keepAlive = false;
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private Socket conn;
+    private long connLastUsed;
+
+    /* Guards the persistent connection. A lock rather than a monitor, so
+     * that a virtual thread blocked in I/O while holding it does not pin
+     * its carrier thread. */
+    private final ReentrantLock connLock = new ReentrantLock();
+
     /**
      * Constructs a KVClient connected to a server.
      *
@@ -31,6 +61,53 @@ public class KVClient implements KeyValueInterface {
         this.port = port;
     }
 
+    /**
+     * Selects the wire format used for requests. Binary avoids the XML
+     * marshalling cost but requires a server that understands it.
+     *
+     * @param format wire format for requests sent by this client
+     */
+    public void setFormat(KVMessage.Format format) {
+        this.format = format;
+    }
+
+    public KVMessage.Format getFormat() {
+        return format;
+    }
+
+    /**
+     * Enables or disables the persistent connection. Keep-alive requires
+     * framed messages, so requests are sent in binary while it is enabled.
+     *
+     * @param keepAlive whether to reuse one connection for all requests
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        connLock.lock();
+        try {
+            this.keepAlive = keepAlive;
+            if (!keepAlive) {
+                close();
+            }
+        } finally {
+            connLock.unlock();
+        }
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Sets how many pipelined requests may be awaiting a response at once.
+     * Each in-flight request and its response sit in socket buffers, so very
+     * large values combined with a large window can stall both ends.
+     *
+     * @param maxInFlight maximum number of outstanding requests, at least 1
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+    }
+
     /**
      * Creates a socket connected to the server to make a request.
      *
@@ -61,6 +138,22 @@ public class KVClient implements KeyValueInterface {
         } 
     }
 
+    /**
+     * Closes the persistent connection, if one is open. The next request
+     * opens a new one.
+     */
+    public void close() {
+        connLock.lock();
+        try {
+            if (conn != null) {
+                closeHost(conn);
+                conn = null;
+            }
+        } finally {
+            connLock.unlock();
+        }
+    }
+
     /**
      * Issues a PUT request to the server.
      *
@@ -70,22 +163,16 @@ public class KVClient implements KeyValueInterface {
     @Override
     public void put(String key, String value) throws KVException {
         KVMessage rqst, resp;
-        Socket sock = connectHost();        
-        try {
-            rqst = new KVMessage(PUT_REQ);
-            rqst.setKey(key);
-            rqst.setValue(value);
-            rqst.sendMessage(sock);
-            resp = new KVMessage(sock, TIMEOUT);
-            if (SUCCESS.equals(resp.getMessage())) {
-                return;
-            } else if (resp.getMessage() != null) {
-                throw new KVException(resp.getMessage());
-            } else {
-                throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
-            }
-        } finally {
-            closeHost(sock);
+        rqst = new KVMessage(PUT_REQ);
+        rqst.setKey(key);
+        rqst.setValue(value);
+        resp = sendRequest(rqst);
+        if (SUCCESS.equals(resp.getMessage())) {
+            return;
+        } else if (resp.getMessage() != null) {
+            throw new KVException(resp.getMessage());
+        } else {
+            throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
         }
     }
 
@@ -99,23 +186,16 @@ public class KVClient implements KeyValueInterface {
     @Override
     public String get(String key) throws KVException {
         KVMessage rqst, resp;
-        Socket sock;
-        sock = connectHost();
-        try {
-            rqst = new KVMessage(GET_REQ);
-            rqst.setKey(key);
-            rqst.sendMessage(sock);
-            resp = new KVMessage(sock, TIMEOUT);
-            if (resp.getKey() != null && 
-                resp.getValue() != null) {
-                return resp.getValue();
-            } else if (resp.getMessage() != null) {
-                throw new KVException(resp.getMessage());
-            } else {
-                throw new KVException(ERROR_NO_SUCH_KEY);
-            }
-        } finally {
-            closeHost(sock);
+        rqst = new KVMessage(GET_REQ);
+        rqst.setKey(key);
+        resp = sendRequest(rqst);
+        if (resp.getKey() != null && 
+            resp.getValue() != null) {
+            return resp.getValue();
+        } else if (resp.getMessage() != null) {
+            throw new KVException(resp.getMessage());
+        } else {
+            throw new KVException(ERROR_NO_SUCH_KEY);
         }
     }
 
@@ -128,22 +208,220 @@ public class KVClient implements KeyValueInterface {
     @Override
     public void del(String key) throws KVException {
         KVMessage rqst, resp;
-        Socket sock = connectHost();
-        try {
-            rqst = new KVMessage(DEL_REQ);
-            rqst.setKey(key);
-            rqst.sendMessage(sock);
-            resp = new KVMessage(sock, TIMEOUT);
+        rqst = new KVMessage(DEL_REQ);
+        rqst.setKey(key);
+        resp = sendRequest(rqst);
+        if (SUCCESS.equals(resp.getMessage())) {
+            return;
+        } else if (resp.getMessage() != null) {
+            throw new KVException(resp.getMessage());
+        } else {
+            throw new KVException(ERROR_NO_SUCH_KEY);
+        }
+    }
+
+    /**
+     * Issues MGET requests to the server for several keys: one, unless the
+     * keys or their values are too large for a single message, in which
+     * case the keys are asked for in as many requests as it takes.
+     *
+     * @param  keys keys to get values for
+     * @return the keys that exist, with their values; keys that do not
+     *         exist are left out
+     * @throws KVException if the request was not successful in any way
+     */
+    public Map<String, String> mget(Collection<String> keys) throws KVException {
+        LinkedHashMap<String, String> found = new LinkedHashMap<String, String>();
+        Map<String, String> pending = keyEntries(keys);
+        while (!pending.isEmpty()) {
+            Map<String, String> deferred = new LinkedHashMap<String, String>();
+            for (Map<String, String> run : KVMessage.splitBatch(pending)) {
+                KVMessage rqst, resp;
+                rqst = new KVMessage(MGET_REQ);
+                rqst.setEntries(run);
+                resp = sendRequest(rqst);
+                if (resp.getMessage() != null) {
+                    throw new KVException(resp.getMessage());
+                }
+                deferred.putAll(resp.collectFoundEntries(found));
+            }
+            pending = deferred;
+        }
+        return found;
+    }
+
+    /**
+     * Issues MPUT requests to the server for several pairs: one, unless the
+     * pairs are too large for a single message. Each request succeeds or
+     * fails on its own, so a failure may follow earlier requests' puts.
+     *
+     * @param  pairs keys and values to put in server
+     * @throws KVException if the request was not successful in any way
+     */
+    public void mput(Map<String, String> pairs) throws KVException {
+        for (Map<String, String> run : KVMessage.splitBatch(pairs)) {
+            KVMessage rqst, resp;
+            rqst = new KVMessage(MPUT_REQ);
+            rqst.setEntries(run);
+            resp = sendRequest(rqst);
             if (SUCCESS.equals(resp.getMessage())) {
-                return;
+                continue;
+            } else if (resp.getMessage() != null) {
+                throw new KVException(resp.getMessage());
+            } else {
+                throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
+            }
+        }
+    }
+
+    /**
+     * Issues MDEL requests to the server for several keys: one, unless the
+     * keys are too large for a single message. Each request succeeds or
+     * fails on its own, so a failure may follow earlier requests' deletes.
+     *
+     * @param  keys keys to delete values for in server
+     * @throws KVException if the request was not successful in any way
+     */
+    public void mdel(Collection<String> keys) throws KVException {
+        for (Map<String, String> run : KVMessage.splitBatch(keyEntries(keys))) {
+            KVMessage rqst, resp;
+            rqst = new KVMessage(MDEL_REQ);
+            rqst.setEntries(run);
+            resp = sendRequest(rqst);
+            if (SUCCESS.equals(resp.getMessage())) {
+                continue;
             } else if (resp.getMessage() != null) {
                 throw new KVException(resp.getMessage());
             } else {
                 throw new KVException(ERROR_NO_SUCH_KEY);
             }
+        }
+    }
+
+    private static Map<String, String> keyEntries(Collection<String> keys) {
+        LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>();
+        for (String key : keys) {
+            entries.put(key, null);
+        }
+        return entries;
+    }
+
+    /**
+     * Sends several requests and returns their responses in the same order.
+     * With keep-alive enabled the requests are pipelined on the persistent
+     * connection, with at most maxInFlight of them awaiting a response;
+     * otherwise they are sent one at a time. Responses are returned as-is,
+     * so error responses do not raise an exception.
+     *
+     * @param  rqsts requests to send
+     * @return responses, one per request
+     * @throws KVException if a request could not be sent or a response could
+     *         not be received; the persistent connection is closed
+     */
+    public List<KVMessage> pipeline(List<KVMessage> rqsts) throws KVException {
+        List<KVMessage> resps = new ArrayList<KVMessage>(rqsts.size());
+        if (!keepAlive) {
+            for (KVMessage rqst : rqsts) {
+                resps.add(sendRequest(rqst));
+            }
+            return resps;
+        }
+        connLock.lock();
+        try {
+            Socket sock = acquireConnection();
+            int sent = 0;
+            try {
+                while (resps.size() < rqsts.size()) {
+                    while (sent < rqsts.size() && sent - resps.size() < maxInFlight) {
+                        KVMessage rqst = rqsts.get(sent++);
+                        prepareKeepAlive(rqst);
+                        rqst.sendMessage(sock);
+                    }
+                    resps.add(new KVMessage(sock, TIMEOUT));
+                }
+            } catch (KVException e) {
+                close();
+                throw e;
+            }
+            connLastUsed = System.currentTimeMillis();
         } finally {
-            closeHost(sock);
+            connLock.unlock();
+        }
+        return resps;
+    }
+
+    /**
+     * Sends a request and waits for its response, over a fresh connection
+     * or the persistent one depending on the keep-alive setting. A request
+     * that fails on a reused connection is retried once on a new connection,
+     * unless it is a DEL or MDEL, which are not safe to repeat.
+     */
+    private KVMessage sendRequest(KVMessage rqst) throws KVException {
+        rqst.setFormat(format);
+        if (!keepAlive) {
+            Socket sock = connectHost();
+            try {
+                rqst.sendMessage(sock);
+                return new KVMessage(sock, TIMEOUT);
+            } finally {
+                closeHost(sock);
+            }
+        }
+        connLock.lock();
+        try {
+            prepareKeepAlive(rqst);
+            boolean reused = (conn != null);
+            try {
+                return exchange(acquireConnection(), rqst);
+            } catch (KVException e) {
+                close();
+                if (!reused || DEL_REQ.equals(rqst.getMsgType())
+                        || MDEL_REQ.equals(rqst.getMsgType())) {
+                    throw e;
+                }
+            }
+            try {
+                return exchange(acquireConnection(), rqst);
+            } catch (KVException e) {
+                close();
+                throw e;
+            }
+        } finally {
+            connLock.unlock();
+        }
+    }
+
+    private KVMessage exchange(Socket sock, KVMessage rqst) throws KVException {
+        rqst.sendMessage(sock);
+        KVMessage resp = new KVMessage(sock, TIMEOUT);
+        connLastUsed = System.currentTimeMillis();
+        return resp;
+    }
+
+    private void prepareKeepAlive(KVMessage rqst) {
+        rqst.setFormat(KVMessage.Format.BINARY);
+        rqst.setKeepAlive(true);
+    }
+
+    /**
+     * Returns the persistent connection, opening a new one if there is none
+     * or if it has been idle long enough that the server may be closing it.
+     */
+    private Socket acquireConnection() throws KVException {
+        long now = System.currentTimeMillis();
+        if (conn != null && now - connLastUsed > ConnectionJob.KEEP_ALIVE_TIMEOUT / 2) {
+            close();
+        }
+        if (conn == null) {
+            conn = connectHost();
+            try {
+                conn.setTcpNoDelay(true);
+            } catch (IOException e) {
+                /* Not fatal; small frames may just be delayed. */
+            }
+            connLastUsed = now;
         }
+        return conn;
     }
 
 }
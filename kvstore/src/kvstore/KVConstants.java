@@ -9,6 +9,11 @@ public class KVConstants {
     public static final String RESP     = "resp";
     public static final String SUCCESS  = "Success";
 
+    // batch requests, carrying several keys (and values) as entries
+    public static final String MGET_REQ = "mgetreq";
+    public static final String MPUT_REQ = "mputreq";
+    public static final String MDEL_REQ = "mdelreq";
+
     // proj4-specific constants
     public static final String READY    = "ready";
     public static final String REGISTER = "register";
@@ -76,6 +81,13 @@ public class KVConstants {
     public static final String ERROR_NO_SUCH_KEY =
         "Data Error: Key does not exist";
 
+    /**
+     * Error message used if a slave's checkpoint snapshot exists but cannot be
+     * read back while rebuilding from its log.
+     */
+    public static final String ERROR_COULD_NOT_READ_SNAPSHOT =
+        "Data Error: Could not read snapshot";
+
     /**
      * Error message used if a PUT request is made with a key longer than 256
      * characters. This condition must be checked on the server in KVServer and
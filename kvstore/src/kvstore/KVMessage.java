@@ -5,15 +5,24 @@ import static kvstore.KVConstants.ERROR_COULD_NOT_SEND_DATA;
 import static kvstore.KVConstants.ERROR_INVALID_FORMAT;
 import static kvstore.KVConstants.ERROR_SOCKET_TIMEOUT;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.io.Serializable;
 import java.io.StringWriter;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
@@ -26,6 +35,7 @@ import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
+import kvstore.xml.KVEntryType;
 import kvstore.xml.KVMessageType;
 import kvstore.xml.ObjectFactory;
 
@@ -34,16 +44,71 @@ import org.w3c.dom.Document;
 /**
  * This is the object that is used to generate the XML based messages
  * for communication between clients and servers.
+ *
+ * Messages may also be sent in a length-prefixed binary encoding. A receiver
+ * tells the two apart by the first byte on the wire (BINARY_MAGIC can never
+ * begin an XML document), so a server simply answers in the format of the
+ * request it received.
+ *
+ * Batch requests and their responses carry their keys and values as
+ * entries, in order, rather than in the key and value fields. A batch is
+ * split into several messages when its entries would not fit in one frame,
+ * and an MGET response whose values would not fit defers some of them: it
+ * carries their keys with a null value, and the requester asks again.
  */
 public class KVMessage implements Serializable {
 
+    /**
+     * Encodings a KVMessage can be sent in.
+     */
+    public enum Format { XML, BINARY }
+
     private String msgType;
     private String key;
     private String value;
     private String message;
 
+    /* Key to value (null for key-only entries) for batch messages, in order;
+     * null for all other messages. */
+    private LinkedHashMap<String, String> entries;
+
+    /* Wire format for sendMessage; not part of the logged state. */
+    private transient Format format;
+
+    /* Whether the connection stays open after this message (binary only). */
+    private transient boolean keepAlive;
+
     public static final long serialVersionUID = 6473128480951955693L;
 
+    /**
+     * First byte of a binary frame. A binary frame is laid out as
+     *   byte magic, byte flags, int bodyLength,
+     *   then msgType, key, value and message, each as an int byte count
+     *   (-1 for null) followed by that many bytes of UTF-8.
+     * A message with entries follows these with an int entry count and then
+     * each entry's key and value, encoded the same way.
+     */
+    static final int BINARY_MAGIC = 0xB1;
+
+    /* Bytes before the body: magic, flags and the body length. */
+    static final int BINARY_HEADER_SIZE = 6;
+
+    /* Flag bit: the sender will reuse the connection for further messages. */
+    static final int FLAG_KEEP_ALIVE = 0x01;
+
+    /* Upper bound on a binary body, comfortably above MAX_VAL_SIZE in UTF-8. */
+    static final int MAX_FRAME_SIZE = 4 * 1024 * 1024;
+
+    /* Upper bound on the encoded entries of one batch message, leaving room
+     * in the frame for its other fields. */
+    static final int MAX_BATCH_SIZE = MAX_FRAME_SIZE - 64 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /* JAXBContexts are thread-safe and expensive to build, so share them. */
+    private static JAXBContext unmarshalContext;
+    private static JAXBContext marshalContext;
+
     /**
      * Construct KVMessage with only a type.
      *
@@ -88,7 +153,7 @@ public class KVMessage implements Serializable {
      */
     public KVMessage(Socket sock, int timeout) throws KVException {
         InputStream is;
-        KVMessageType kvMsgType;
+        int first;
         try {
             sock.setSoTimeout(timeout);
             is = sock.getInputStream();
@@ -98,6 +163,8 @@ public class KVMessage implements Serializable {
              * available to be read, a SocketTimeoutException will be thrown. */
             is.read(new byte[1], 0, 0);
 
+            /* The first byte tells us which encoding the sender used. */
+            first = is.read();
         } catch (SocketTimeoutException e) {
             throw new KVException(ERROR_SOCKET_TIMEOUT);
         } catch (IOException e) {
@@ -106,12 +173,73 @@ public class KVMessage implements Serializable {
             throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
         }
 
+        if (first == BINARY_MAGIC) {
+            readBinary(is);
+            this.format = Format.BINARY;
+            return;
+        }
+        if (first != -1) {
+            PushbackInputStream pis = new PushbackInputStream(is, 1);
+            try {
+                pis.unread(first);
+            } catch (IOException e) {
+                throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
+            }
+            is = pis;
+        }
+        readXML(is);
+    }
+
+    /**
+     * Parse a complete message that has already been read off the network,
+     * in either encoding.
+     *
+     * @param  data buffer holding the message
+     * @param  offset index of the first byte of the message
+     * @param  length number of bytes in the message
+     * @return the parsed KVMessage
+     * @throws KVException with ERROR_INVALID_FORMAT if data does not hold
+     *         exactly one valid message
+     */
+    static KVMessage fromBytes(byte[] data, int offset, int length)
+            throws KVException {
+        KVMessage kvm = new KVMessage((String) null);
+        if (length > 0 && (data[offset] & 0xFF) == BINARY_MAGIC) {
+            kvm.readBinary(
+                new ByteArrayInputStream(data, offset + 1, length - 1));
+            kvm.format = Format.BINARY;
+        } else {
+            kvm.readXML(new ByteArrayInputStream(data, offset, length));
+        }
+        return kvm;
+    }
+
+    /**
+     * Encode this message in its wire format, as sendMessage would.
+     *
+     * @return the bytes to put on the wire
+     * @throws KVException with ERROR_INVALID_FORMAT or ERROR_PARSER
+     */
+    byte[] toBytes() throws KVException {
+        if (getFormat() == Format.BINARY) {
+            return toBinary();
+        }
+        return toXMLBytes();
+    }
+
+    private void readXML(InputStream is) throws KVException {
         try {
-            kvMsgType = unmarshal(is);
+            KVMessageType kvMsgType = unmarshal(is);
             this.msgType = kvMsgType.getType();
             this.message = kvMsgType.getMessage();
             this.key = kvMsgType.getKey();
             this.value = kvMsgType.getValue();
+            if (!kvMsgType.getEntry().isEmpty()) {
+                this.entries = new LinkedHashMap<String, String>();
+                for (KVEntryType entry : kvMsgType.getEntry()) {
+                    this.entries.put(entry.getKey(), entry.getValue());
+                }
+            }
         } catch (JAXBException e) {
             throw new KVException(ERROR_INVALID_FORMAT);
         }
@@ -126,6 +254,10 @@ public class KVMessage implements Serializable {
         this(kvm.getMsgType(), kvm.getMessage());
         this.key = kvm.getKey();
         this.value = kvm.getValue();
+        this.format = kvm.format;
+        if (kvm.entries != null) {
+            this.entries = new LinkedHashMap<String, String>(kvm.entries);
+        }
     }
 
     /**
@@ -141,6 +273,14 @@ public class KVMessage implements Serializable {
         xmlStore.setKey(key);
         xmlStore.setValue(value);
         xmlStore.setMessage(message);
+        if (entries != null) {
+            for (Map.Entry<String, String> e : entries.entrySet()) {
+                KVEntryType entry = factory.createKVEntryType();
+                entry.setKey(e.getKey());
+                entry.setValue(e.getValue());
+                xmlStore.getEntry().add(entry);
+            }
+        }
         return factory.createKVMessage(xmlStore);
     }
 
@@ -153,6 +293,11 @@ public class KVMessage implements Serializable {
      *             with ERROR_INVALID_FORMAT or ERROR_PARSER
      */
     public String toXML() throws KVException {
+        return new String(toXMLBytes(), UTF8);
+    }
+
+    /* The XML representation as marshalled, in UTF-8, for the wire. */
+    private byte[] toXMLBytes() throws KVException {
         ByteArrayOutputStream os = new ByteArrayOutputStream();
         try {
             marshalTo(os);
@@ -163,7 +308,7 @@ public class KVMessage implements Serializable {
         catch (JAXBException e) {
             throw new KVException(KVConstants.ERROR_PARSER);
         }
-        return os.toString();
+        return os.toByteArray();
     }
 
     /**
@@ -175,7 +320,7 @@ public class KVMessage implements Serializable {
      */
     @SuppressWarnings("unchecked")
     private KVMessageType unmarshal(InputStream is) throws JAXBException {
-        JAXBContext jc = JAXBContext.newInstance(ObjectFactory.class);
+        JAXBContext jc = getUnmarshalContext();
         Unmarshaller unmarshaller = jc.createUnmarshaller();
         return ((JAXBElement<KVMessageType>)unmarshaller.unmarshal(new NoCloseInputStream(is))).getValue();
     }
@@ -187,17 +332,169 @@ public class KVMessage implements Serializable {
      * @throws KVException
      */
     private void marshalTo(OutputStream os) throws JAXBException, KVException {
-        JAXBContext jc = JAXBContext.newInstance(KVMessageType.class);
+        JAXBContext jc = getMarshalContext();
         Marshaller marshaller = jc.createMarshaller();
         marshaller.setProperty("com.sun.xml.internal.bind.xmlHeaders", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
         marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
         marshaller.marshal(getXMLRoot(), os);
     }
 
+    private static synchronized JAXBContext getUnmarshalContext() throws JAXBException {
+        if (unmarshalContext == null) {
+            unmarshalContext = JAXBContext.newInstance(ObjectFactory.class);
+        }
+        return unmarshalContext;
+    }
+
+    private static synchronized JAXBContext getMarshalContext() throws JAXBException {
+        if (marshalContext == null) {
+            marshalContext = JAXBContext.newInstance(KVMessageType.class);
+        }
+        return marshalContext;
+    }
+
+    /**
+     * Generate the binary frame for this message, header included.
+     *
+     * @return the encoded frame
+     */
+    public byte[] toBinary() {
+        int numEntries = (entries == null) ? 0 : entries.size();
+        byte[][] fields = new byte[4 + 2 * numEntries][];
+        fields[0] = encodeField(msgType);
+        fields[1] = encodeField(key);
+        fields[2] = encodeField(value);
+        fields[3] = encodeField(message);
+        if (entries != null) {
+            int i = 4;
+            for (Map.Entry<String, String> e : entries.entrySet()) {
+                fields[i++] = encodeField(e.getKey());
+                fields[i++] = encodeField(e.getValue());
+            }
+        }
+        int bodyLength = (entries == null) ? 0 : 4;
+        for (byte[] field : fields) {
+            bodyLength += 4 + (field == null ? 0 : field.length);
+        }
+        byte[] frame = new byte[BINARY_HEADER_SIZE + bodyLength];
+        frame[0] = (byte) BINARY_MAGIC;
+        frame[1] = (byte) (keepAlive ? FLAG_KEEP_ALIVE : 0);
+        int pos = putInt(frame, 2, bodyLength);
+        for (int i = 0; i < 4; i++) {
+            pos = putField(frame, pos, fields[i]);
+        }
+        if (entries != null) {
+            pos = putInt(frame, pos, numEntries);
+            for (int i = 4; i < fields.length; i++) {
+                pos = putField(frame, pos, fields[i]);
+            }
+        }
+        return frame;
+    }
+
     /**
-     * Send serialized version of this KVMessage over the network.
+     * Read the remainder of a binary frame (everything after the magic byte)
+     * into this message.
+     *
+     * @param  is InputStream positioned just after the magic byte
+     * @throws KVException with ERROR_INVALID_FORMAT, ERROR_SOCKET_TIMEOUT or
+     *         ERROR_COULD_NOT_RECEIVE_DATA
+     */
+    private void readBinary(InputStream is) throws KVException {
+        byte[] header = new byte[BINARY_HEADER_SIZE - 1];
+        byte[] body;
+        try {
+            DataInputStream in = new DataInputStream(is);
+            in.readFully(header);
+            this.keepAlive = (header[0] & FLAG_KEEP_ALIVE) != 0;
+            int bodyLength = getInt(header, 1);
+            if (bodyLength < 0 || bodyLength > MAX_FRAME_SIZE) {
+                throw new KVException(ERROR_INVALID_FORMAT);
+            }
+            body = new byte[bodyLength];
+            in.readFully(body);
+        } catch (EOFException e) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        } catch (SocketTimeoutException e) {
+            throw new KVException(ERROR_SOCKET_TIMEOUT);
+        } catch (IOException e) {
+            throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
+        }
+        int[] pos = { 0 };
+        this.msgType = decodeField(body, pos);
+        this.key = decodeField(body, pos);
+        this.value = decodeField(body, pos);
+        this.message = decodeField(body, pos);
+        if (pos[0] < body.length) {
+            if (body.length - pos[0] < 4) {
+                throw new KVException(ERROR_INVALID_FORMAT);
+            }
+            int numEntries = getInt(body, pos[0]);
+            pos[0] += 4;
+            /* Each entry takes at least 8 bytes, which bounds the count. */
+            if (numEntries < 0 || numEntries > (body.length - pos[0]) / 8) {
+                throw new KVException(ERROR_INVALID_FORMAT);
+            }
+            this.entries = new LinkedHashMap<String, String>();
+            for (int i = 0; i < numEntries; i++) {
+                String entryKey = decodeField(body, pos);
+                this.entries.put(entryKey, decodeField(body, pos));
+            }
+        }
+        if (pos[0] != body.length) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        }
+    }
+
+    private static byte[] encodeField(String field) {
+        return (field == null) ? null : field.getBytes(UTF8);
+    }
+
+    private static String decodeField(byte[] body, int[] pos) throws KVException {
+        if (body.length - pos[0] < 4) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        }
+        int length = getInt(body, pos[0]);
+        pos[0] += 4;
+        if (length == -1) {
+            return null;
+        } else if (length < 0 || length > body.length - pos[0]) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        }
+        String field = new String(body, pos[0], length, UTF8);
+        pos[0] += length;
+        return field;
+    }
+
+    private static int putField(byte[] buf, int pos, byte[] field) {
+        if (field == null) {
+            return putInt(buf, pos, -1);
+        }
+        pos = putInt(buf, pos, field.length);
+        System.arraycopy(field, 0, buf, pos, field.length);
+        return pos + field.length;
+    }
+
+    private static int putInt(byte[] buf, int pos, int v) {
+        buf[pos] = (byte) (v >>> 24);
+        buf[pos + 1] = (byte) (v >>> 16);
+        buf[pos + 2] = (byte) (v >>> 8);
+        buf[pos + 3] = (byte) v;
+        return pos + 4;
+    }
+
+    private static int getInt(byte[] buf, int pos) {
+        return ((buf[pos] & 0xFF) << 24) | ((buf[pos + 1] & 0xFF) << 16) |
+               ((buf[pos + 2] & 0xFF) << 8) | (buf[pos + 3] & 0xFF);
+    }
+
+    /**
+     * Send serialized version of this KVMessage over the network, in XML or
+     * binary depending on getFormat().
      * You must call sock.shutdownOutput() in order to flush the OutputStream
      * and send an EOF (so that the receiving end knows you are done sending).
+     * The exception is a binary keep-alive message: its frame is
+     * self-delimiting, so the output is left open for the next message.
      * Do not call close on the socket. Closing a socket closes the InputStream
      * as well as the OutputStream, preventing the receipt of a response.
      *
@@ -209,13 +506,50 @@ public class KVMessage implements Serializable {
         OutputStream out;
         try {
             out = sock.getOutputStream();
-            out.write(toXML().getBytes());
+            if (getFormat() == Format.BINARY) {
+                out.write(toBinary());
+                if (keepAlive) {
+                    out.flush();
+                    return;
+                }
+            } else {
+                out.write(toXMLBytes());
+            }
             sock.shutdownOutput();
         } catch (IOException e) {
             throw new KVException(ERROR_COULD_NOT_SEND_DATA);
         }
     }
 
+    /**
+     * Get the wire format sendMessage will use. A message read off a socket
+     * keeps the format it arrived in; all others default to XML.
+     *
+     * @return the wire format of this message
+     */
+    public Format getFormat() {
+        return (format == null) ? Format.XML : format;
+    }
+
+    public void setFormat(Format format) {
+        this.format = format;
+    }
+
+    /**
+     * Whether the connection this message travels on stays open afterwards.
+     * Only honoured for binary messages, since XML messages are delimited by
+     * the sender shutting down its output.
+     *
+     * @return true if further messages follow on the same connection
+     */
+    public boolean isKeepAlive() {
+        return keepAlive && getFormat() == Format.BINARY;
+    }
+
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
     public String getKey() {
         return key;
     }
@@ -240,6 +574,134 @@ public class KVMessage implements Serializable {
         this.message = message;
     }
 
+    /**
+     * Get the entries of a batch message: the keys of an MGET or MDEL
+     * request, or the pairs of an MPUT request or MGET response, in order.
+     * Key-only entries have a null value.
+     *
+     * @return the entries, or null if this is not a batch message
+     */
+    public Map<String, String> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Set the entries of a batch message. The map is copied, keeping its
+     * iteration order.
+     *
+     * @param entries key to value, or to null for key-only entries
+     */
+    public void setEntries(Map<String, String> entries) {
+        this.entries = (entries == null) ? null
+            : new LinkedHashMap<String, String>(entries);
+    }
+
+    /**
+     * Get the entries of a batch request, which must have at least one.
+     *
+     * @return the entries
+     * @throws KVException with ERROR_INVALID_FORMAT if there are none
+     */
+    Map<String, String> getBatchEntries() throws KVException {
+        if (entries == null || entries.isEmpty()) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        }
+        return entries;
+    }
+
+    /**
+     * Set the entries of an MGET response to the values found, in order,
+     * deferring those that would not fit in one frame: a deferred key is
+     * sent with a null value for the requester to ask for again. The first
+     * value is always sent, so that every response makes progress.
+     *
+     * @param found the keys that exist, with their values
+     */
+    void setFoundEntries(Map<String, String> found) {
+        this.entries = new LinkedHashMap<String, String>();
+        long size = 0;
+        for (Map.Entry<String, String> e : found.entrySet()) {
+            size += encodedSize(e.getKey(), e.getValue());
+            boolean fits = entries.isEmpty() || size <= MAX_BATCH_SIZE;
+            this.entries.put(e.getKey(), fits ? e.getValue() : null);
+        }
+    }
+
+    /**
+     * Add the values of an MGET response to found.
+     *
+     * @param  found map the values are added to
+     * @return the keys whose values the response deferred, in order
+     * @throws KVException with ERROR_INVALID_FORMAT if every key the
+     *         response holds was deferred, which would never make progress
+     */
+    Map<String, String> collectFoundEntries(Map<String, String> found)
+            throws KVException {
+        Map<String, String> deferred = new LinkedHashMap<String, String>();
+        if (entries == null) {
+            return deferred;
+        }
+        for (Map.Entry<String, String> e : entries.entrySet()) {
+            if (e.getValue() != null) {
+                found.put(e.getKey(), e.getValue());
+            } else {
+                deferred.put(e.getKey(), null);
+            }
+        }
+        if (!deferred.isEmpty() && deferred.size() == entries.size()) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        }
+        return deferred;
+    }
+
+    /**
+     * Split the entries of a batch into runs, in order, that each fit in
+     * one message. An entry too large to fit even alone gets a run of its
+     * own, for the receiver to reject.
+     *
+     * @param  entries key to value, or to null for key-only entries
+     * @return the runs; a single run when the whole batch fits
+     */
+    static List<Map<String, String>> splitBatch(Map<String, String> entries) {
+        List<Map<String, String>> runs = new ArrayList<Map<String, String>>();
+        Map<String, String> run = new LinkedHashMap<String, String>();
+        long size = 0;
+        for (Map.Entry<String, String> e : entries.entrySet()) {
+            long entrySize = encodedSize(e.getKey(), e.getValue());
+            if (!run.isEmpty() && size + entrySize > MAX_BATCH_SIZE) {
+                runs.add(run);
+                run = new LinkedHashMap<String, String>();
+                size = 0;
+            }
+            run.put(e.getKey(), e.getValue());
+            size += entrySize;
+        }
+        if (!run.isEmpty()) {
+            runs.add(run);
+        }
+        return runs;
+    }
+
+    /* Bytes an entry takes in a binary frame. XML adds tags and escapes,
+     * but has no frame limit to exceed. */
+    private static long encodedSize(String key, String value) {
+        return 8 + utf8Length(key) + utf8Length(value);
+    }
+
+    private static long utf8Length(String s) {
+        if (s == null) {
+            return 0;
+        }
+        long length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            /* A surrogate pair takes four bytes, two for each half. */
+            length += (c < 0x80) ? 1 : (c < 0x800 || Character.isSurrogate(c))
+                ? 2 : 3;
+        }
+        return length;
+    }
+
     public String getMsgType() {
         return msgType;
     }
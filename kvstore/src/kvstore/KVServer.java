@@ -2,10 +2,15 @@ package kvstore;
 
 import static kvstore.KVConstants.ERROR_INVALID_KEY;
 import static kvstore.KVConstants.ERROR_INVALID_VALUE;
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
 import static kvstore.KVConstants.ERROR_OVERSIZED_KEY;
 import static kvstore.KVConstants.ERROR_OVERSIZED_VALUE;
 import static kvstore.KVConstants.SUCCESS;
 
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.locks.Lock;
 
 /**
@@ -16,8 +21,29 @@ import java.util.concurrent.locks.Lock;
  */
 public class KVServer implements KeyValueInterface {
 
+    /**
+     * When an entry enters the data cache.
+     */
+    public enum CacheAdmission {
+        /** On every put, and on a get that misses. */
+        ON_WRITE,
+        /**
+         * Only on a get that misses; a put invalidates any cached copy
+         * instead. Suits slaves, which store every write for the keys they
+         * replicate but serve reads only when the master's cache misses, so
+         * that written-once keys do not evict the ones being read.
+         */
+        ON_READ
+    }
+
     private KVStore dataStore;
     private KVCache dataCache;
+    private volatile CacheAdmission admission = CacheAdmission.ON_WRITE;
+
+    private final Metrics metrics = new Metrics("server");
+    private final LatencyHistogram getLatency = metrics.histogram("get");
+    private final LatencyHistogram putLatency = metrics.histogram("put");
+    private final LatencyHistogram delLatency = metrics.histogram("del");
 
     private static final int MAX_KEY_SIZE = 256;
     private static final int MAX_VAL_SIZE = 256 * 1024;
@@ -32,6 +58,119 @@ public class KVServer implements KeyValueInterface {
     public KVServer(int numSets, int maxElemsPerSet) {
         this.dataCache = new KVCache(numSets, maxElemsPerSet);
         this.dataStore = new KVStore();
+        registerCacheGauges();
+    }
+
+    /**
+     * Constructs a KVServer backed by a KVCache and KVStore, optionally with
+     * the cache in read-mostly mode so that GETs which hit the cache do not
+     * take the set's lock.
+     *
+     * @param numSets the number of sets in the data cache
+     * @param maxElemsPerSet the size of each set in the data cache
+     * @param readMostly whether the data cache serves hits without locking
+     */
+    public KVServer(int numSets, int maxElemsPerSet, boolean readMostly) {
+        this.dataCache = new KVCache(numSets, maxElemsPerSet, readMostly);
+        this.dataStore = new KVStore();
+        registerCacheGauges();
+    }
+
+    /**
+     * Constructs a KVServer backed by a KVCache and the given store, such as
+     * an OffHeapKVStore.
+     *
+     * @param numSets the number of sets in the data cache
+     * @param maxElemsPerSet the size of each set in the data cache
+     * @param readMostly whether the data cache serves hits without locking
+     * @param dataStore the backing store
+     */
+    public KVServer(int numSets, int maxElemsPerSet, boolean readMostly,
+            KVStore dataStore) {
+        this.dataCache = new KVCache(numSets, maxElemsPerSet, readMostly);
+        this.dataStore = dataStore;
+        registerCacheGauges();
+    }
+
+    /**
+     * Constructs a KVServer backed by the given cache and store, e.g. a
+     * KVCache with the TINY_LFU policy or a byte budget per set.
+     *
+     * @param dataCache the data cache
+     * @param dataStore the backing store
+     */
+    public KVServer(KVCache dataCache, KVStore dataStore) {
+        this.dataCache = dataCache;
+        this.dataStore = dataStore;
+        registerCacheGauges();
+    }
+
+    /**
+     * Sets when entries enter the data cache. Defaults to ON_WRITE.
+     *
+     * @param admission the admission policy
+     */
+    public void setCacheAdmission(CacheAdmission admission) {
+        this.admission = admission;
+    }
+
+    /**
+     * @return when entries enter the data cache
+     */
+    public CacheAdmission getCacheAdmission() {
+        return admission;
+    }
+
+    /**
+     * @return the data cache's hit, miss, eviction and rejection counts
+     */
+    public CacheStats getCacheStats() {
+        return dataCache.getStats();
+    }
+
+    /**
+     * Zeroes the data cache's hit, miss, eviction and rejection counts.
+     */
+    public void resetCacheStats() {
+        dataCache.resetStats();
+    }
+
+    /**
+     * Latencies of get, put and del, including time spent waiting for the
+     * key's cache set lock, and the data cache's hit, miss, eviction and
+     * rejection totals. Batch requests are timed per key.
+     *
+     * @return this server's metrics
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    private void registerCacheGauges() {
+        metrics.gauge("cache.hits", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return dataCache.getStats().getHits();
+            }
+        });
+        metrics.gauge("cache.misses", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return dataCache.getStats().getMisses();
+            }
+        });
+        metrics.gauge("cache.evictions", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return dataCache.getStats().getEvictions();
+            }
+        });
+        metrics.gauge("cache.rejections", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return dataCache.getStats().getRejections();
+            }
+        });
     }
 
     /**
@@ -43,6 +182,15 @@ public class KVServer implements KeyValueInterface {
      */
     @Override
     public void put(String key, String value) throws KVException {
+        long start = System.nanoTime();
+        try {
+            putTimed(key, value);
+        } finally {
+            putLatency.recordSince(start);
+        }
+    }
+
+    private void putTimed(String key, String value) throws KVException {
         if (key == null || key.length() == 0) {
             throw new KVException(ERROR_INVALID_KEY);
         } else if (value == null || value.length() == 0) {
@@ -55,7 +203,11 @@ public class KVServer implements KeyValueInterface {
         Lock lock = dataCache.getLock(key);
         lock.lock();
         try {
-            dataCache.put(key, value);
+            if (admission == CacheAdmission.ON_WRITE) {
+                dataCache.put(key, value);
+            } else {
+                dataCache.del(key);
+            }
             dataStore.put(key, value);
         } finally {
             lock.unlock();
@@ -64,7 +216,8 @@ public class KVServer implements KeyValueInterface {
 
     /**
      * Performs get request.
-     * Checks cache first. Updates cache if not in cache but located in store.
+     * Checks cache first, without locking if the cache is read-mostly.
+     * Updates cache if not in cache but located in store.
      *
      * @param  key String key
      * @return String value associated with key
@@ -72,10 +225,22 @@ public class KVServer implements KeyValueInterface {
      */
     @Override
     public String get(String key) throws KVException {
+        long start = System.nanoTime();
+        try {
+            return getTimed(key);
+        } finally {
+            getLatency.recordSince(start);
+        }
+    }
+
+    private String getTimed(String key) throws KVException {
         if (key == null || key.length() == 0) {
             return null;
         }
-        String value = null;
+        String value = dataCache.getShared(key);
+        if (value != null) {
+            return value;
+        }
         Lock lock = dataCache.getLock(key);
         lock.lock();
         value = dataCache.get(key);
@@ -100,6 +265,15 @@ public class KVServer implements KeyValueInterface {
      */
     @Override
     public void del(String key) throws KVException {
+        long start = System.nanoTime();
+        try {
+            delTimed(key);
+        } finally {
+            delLatency.recordSince(start);
+        }
+    }
+
+    private void delTimed(String key) throws KVException {
         if (key == null || key.length() == 0) {
             return;
         }
@@ -113,6 +287,65 @@ public class KVServer implements KeyValueInterface {
         }
     }
 
+    /**
+     * Performs get requests for several keys.
+     *
+     * @param  keys keys to look up
+     * @return the keys that exist, in the order given, with their values
+     */
+    public Map<String, String> mget(Collection<String> keys) {
+        LinkedHashMap<String, String> found = new LinkedHashMap<String, String>();
+        for (String key : keys) {
+            try {
+                String value = get(key);
+                if (value != null) {
+                    found.put(key, value);
+                }
+            } catch (KVException e) {
+                /* Missing keys are left out. */
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Performs put requests for several pairs. Every pair is validated before
+     * any is stored, so an invalid pair leaves the server unchanged.
+     *
+     * @param  pairs keys and values to store
+     * @throws KVException if any key or value is invalid or too long
+     */
+    public void mput(Map<String, String> pairs) throws KVException {
+        for (Map.Entry<String, String> pair : pairs.entrySet()) {
+            String respMsg = validateKeyValue(pair.getKey(), pair.getValue());
+            if (!SUCCESS.equals(respMsg)) {
+                throw new KVException(respMsg);
+            }
+        }
+        for (Map.Entry<String, String> pair : pairs.entrySet()) {
+            put(pair.getKey(), pair.getValue());
+        }
+    }
+
+    /**
+     * Performs del requests for several keys. Nothing is deleted unless
+     * every key exists, though a concurrent del of one of the keys can still
+     * cause a failure part way through.
+     *
+     * @param  keys keys to delete
+     * @throws KVException with ERROR_NO_SUCH_KEY if any key does not exist
+     */
+    public void mdel(Collection<String> keys) throws KVException {
+        for (String key : keys) {
+            if (!hasKey(key)) {
+                throw new KVException(ERROR_NO_SUCH_KEY);
+            }
+        }
+        for (String key : keys) {
+            del(key);
+        }
+    }
+
     /**
      * Check if the server has a given key. This is used for TPC operations
      * that need to check whether or not a transaction can be performed but
@@ -154,6 +387,29 @@ public class KVServer implements KeyValueInterface {
         }
     }
 
+    /**
+     * Writes a snapshot of the store's contents to a file. The cache is not
+     * included.
+     *
+     * @param fileName the file to write the snapshot to
+     * @throws IOException if the snapshot could not be written
+     */
+    public void writeSnapshot(String fileName) throws IOException {
+        dataStore.writeSnapshot(fileName);
+    }
+
+    /**
+     * Replaces the store's contents with a snapshot written by
+     * writeSnapshot. Meant for recovery into a newly constructed server,
+     * since entries already in the cache are left as they are.
+     *
+     * @param fileName the file containing the snapshot
+     * @throws IOException if the snapshot is unreadable or corrupt
+     */
+    public void readSnapshot(String fileName) throws IOException {
+        dataStore.readSnapshot(fileName);
+    }
+
     /** This method is purely for convenience and will not be tested. */
     @Override
     public String toString() {
@@ -2,23 +2,35 @@ package kvstore;
 
 import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
 
 import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
 import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 
 import kvstore.xml.KVPairType;
-import kvstore.xml.KVStoreType;
 import kvstore.xml.ObjectFactory;
 
 
@@ -28,6 +40,14 @@ import kvstore.xml.ObjectFactory;
  */
 public class KVStore implements KeyValueInterface {
 
+    /* "KVS1", first four bytes of a snapshot file. */
+    static final int SNAPSHOT_MAGIC = 0x4B565331;
+
+    /* Bytes written or read per FileChannel call in a snapshot. */
+    static final int SNAPSHOT_CHUNK = 64 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
     public ConcurrentHashMap<String, String> store;
 
     /**
@@ -84,35 +104,44 @@ public class KVStore implements KeyValueInterface {
         }
     }
 
-    private synchronized JAXBElement<KVStoreType> getXMLRoot() throws JAXBException {
-        ObjectFactory factory = new ObjectFactory();
-        KVStoreType xmlStore = factory.createKVStoreType();
-        for (Entry<String, String> e : store.entrySet()) {
-            KVPairType kvPair = factory.createKVPairType();
-            kvPair.setKey(e.getKey());
-            kvPair.setValue(e.getValue());
-            xmlStore.getKVPair().add(kvPair);
+    /*
+     * Writes the pairs with an XMLStreamWriter while walking
+     * snapshotEntries(), so they are never gathered into one document. The
+     * output matches what JAXB marshals for a KVStoreType, including its
+     * escaping of carriage returns, which a parser would otherwise read back
+     * as newlines.
+     */
+    private void writeXML(OutputStream os) throws XMLStreamException {
+        XMLStreamWriter writer =
+            XMLOutputFactory.newInstance().createXMLStreamWriter(os, "UTF-8");
+        writer.writeStartDocument("UTF-8", "1.0");
+        writer.writeStartElement("KVStore");
+        for (Entry<String, String> e : snapshotEntries()) {
+            writer.writeStartElement("KVPair");
+            writeElement(writer, "Key", e.getKey());
+            writeElement(writer, "Value", e.getValue());
+            writer.writeEndElement();
         }
-        return factory.createKVStore(xmlStore);
+        writer.writeEndElement();
+        writer.writeEndDocument();
+        writer.flush();
+        writer.close();
     }
 
-    private void marshalTo(OutputStream os) throws JAXBException {
-        JAXBContext context = JAXBContext.newInstance(KVStoreType.class);
-        Marshaller marshaller = context.createMarshaller();
-        marshaller.setProperty("com.sun.xml.internal.bind.xmlHeaders", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-        marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
-        marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, false);
-        marshaller.marshal(getXMLRoot(), os);
+    private static void writeElement(XMLStreamWriter writer, String name,
+            String text) throws XMLStreamException {
+        writer.writeStartElement(name);
+        int start = 0;
+        for (int cr = text.indexOf('\r'); cr >= 0;
+                cr = text.indexOf('\r', start)) {
+            writer.writeCharacters(text.substring(start, cr));
+            writer.writeEntityRef("#xD");
+            start = cr + 1;
+        }
+        writer.writeCharacters(text.substring(start));
+        writer.writeEndElement();
     }
     
-    @SuppressWarnings("unchecked")
-    private KVStoreType unmarshal(File f) throws JAXBException {
-        JAXBContext context = JAXBContext.newInstance(ObjectFactory.class);
-        Unmarshaller unmarshaller = context.createUnmarshaller();
-        KVStoreType xmlStore = ((JAXBElement<KVStoreType>) unmarshaller.unmarshal(f)).getValue();
-        return xmlStore;
-    }
-
     /**
      * Serialize this store to XML. See the spec for specific output format.
      * This method is best effort. Any exceptions that appear can be dropped.
@@ -120,11 +149,11 @@ public class KVStore implements KeyValueInterface {
     public String toXML() {
         ByteArrayOutputStream os = new ByteArrayOutputStream();
         try {
-            marshalTo(os);
-        } catch (JAXBException e) {
+            writeXML(os);
+        } catch (XMLStreamException e) {
             e.printStackTrace();
         }
-        return os.toString();
+        return new String(os.toByteArray(), UTF_8);
     }
     
     @Override
@@ -133,7 +162,9 @@ public class KVStore implements KeyValueInterface {
     }
 
     /**
-     * Serialize to XML and write the output to a file.
+     * Serialize to XML and write the output to a file. The XML is written
+     * straight to the file a pair at a time, rather than built as a String
+     * or a document first.
      * This method is best effort. Any exceptions that arise can be dropped.
      *
      * @param fileName the file to write the serialized store
@@ -144,18 +175,25 @@ public class KVStore implements KeyValueInterface {
             if (f.exists()) {
                 f.delete();
             }
-            FileOutputStream out = new FileOutputStream(f);
-            out.write(toString().getBytes());
-            out.close();
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(f));
+            try {
+                writeXML(out);
+            } finally {
+                out.close();
+            }
         } catch (IOException e) {
             /* Do nothing. */
+        } catch (XMLStreamException e) {
+            /* Do nothing. */
         }
     }
 
     /**
      * Replaces the contents of the store with the contents of a file
      * written by dumpToFile; the previous contents of the store are lost.
-     * The store is cleared even if the file does not exist.
+     * The store is cleared even if the file does not exist. The file is
+     * parsed one KVPair at a time, so the whole document is never held in
+     * memory.
      * This method is best effort. Any exceptions that arise can be dropped.
      *
      * @param fileName the file containing the serialized store data
@@ -167,12 +205,245 @@ public class KVStore implements KeyValueInterface {
             return;
         }
         try {
-            List<KVPairType> pairs = unmarshal(f).getKVPair();
-            for (KVPairType p : pairs) {
-                put(p.getKey(), p.getValue());
+            InputStream in = new BufferedInputStream(new FileInputStream(f));
+            try {
+                XMLStreamReader reader =
+                    XMLInputFactory.newInstance().createXMLStreamReader(in);
+                Unmarshaller unmarshaller = JAXBContext.newInstance(
+                    ObjectFactory.class).createUnmarshaller();
+                while (reader.hasNext()) {
+                    if (reader.isStartElement()
+                            && reader.getLocalName().equals("KVPair")) {
+                        KVPairType p = unmarshaller.unmarshal(
+                            reader, KVPairType.class).getValue();
+                        put(p.getKey(), p.getValue());
+                    } else {
+                        reader.next();
+                    }
+                }
+                reader.close();
+            } finally {
+                in.close();
             }
+        } catch (IOException e) {
+            /* Do nothing. */
+        } catch (XMLStreamException e) {
+            /* Do nothing. */
         } catch (JAXBException e) {
             /* Do nothing. */
         }
     }
+
+    /**
+     * Returns the pairs to write in writeSnapshot() and dumpToFile(), which
+     * walk them once. Subclasses that keep their pairs somewhere other than
+     * the store map must override this, and can return a lazy view, so that
+     * a dump neither copies the store nor holds off writes while it runs; a
+     * pair written during the walk may or may not be included.
+     *
+     * @return the pairs in the store
+     */
+    protected Iterable<Entry<String, String>> snapshotEntries() {
+        return store.entrySet();
+    }
+
+    /**
+     * Writes every pair in the store to a binary snapshot file, much faster
+     * to write and read back than dumpToFile. The snapshot is a magic number,
+     * then each key and value as an int byte count followed by UTF-8, then a
+     * count of -1 and a CRC32 of everything before it. It is written under a
+     * temporary name, forced to disk, and renamed into place, so a crash
+     * leaves either the previous snapshot or this one.
+     *
+     * Pairs are encoded into a fixed SNAPSHOT_CHUNK buffer that is written
+     * through a FileChannel whenever it fills, so memory use does not grow
+     * with the store, and writes to the store may continue meanwhile.
+     *
+     * @param fileName the file to write the snapshot to
+     * @throws IOException if the snapshot could not be written
+     */
+    public void writeSnapshot(String fileName) throws IOException {
+        File tmp = new File(fileName + ".tmp");
+        FileChannel channel = new FileOutputStream(tmp).getChannel();
+        try {
+            SnapshotWriter out = new SnapshotWriter(channel);
+            out.putInt(SNAPSHOT_MAGIC);
+            for (Entry<String, String> e : snapshotEntries()) {
+                out.putString(e.getKey());
+                out.putString(e.getValue());
+            }
+            out.putInt(-1);
+            out.putChecksum();
+            out.flush();
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+        Files.move(tmp.toPath(), new File(fileName).toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Replaces the contents of the store with the contents of a snapshot
+     * written by writeSnapshot; the previous contents of the store are lost.
+     * The file is read in SNAPSHOT_CHUNK pieces through a FileChannel.
+     *
+     * @param fileName the file containing the snapshot
+     * @throws IOException if the snapshot is unreadable or fails its checksum
+     */
+    public void readSnapshot(String fileName) throws IOException {
+        resetStore();
+        FileChannel channel = new FileInputStream(fileName).getChannel();
+        try {
+            SnapshotReader in = new SnapshotReader(channel);
+            if (in.getInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("not a snapshot: " + fileName);
+            }
+            String key;
+            while ((key = in.getString()) != null) {
+                String value = in.getString();
+                if (value == null) {
+                    throw new IOException("missing value in snapshot");
+                }
+                put(key, value);
+            }
+            if (!in.checkChecksum()) {
+                throw new IOException("snapshot checksum mismatch: " + fileName);
+            }
+        } catch (IOException e) {
+            resetStore();
+            throw e;
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Encodes a snapshot into one reused buffer, writing it out and adding
+     * it to the running CRC each time it fills.
+     */
+    private static class SnapshotWriter {
+        private final FileChannel channel;
+        private final ByteBuffer buf = ByteBuffer.allocateDirect(SNAPSHOT_CHUNK);
+        private final CRC32 crc = new CRC32();
+
+        SnapshotWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void putInt(int n) throws IOException {
+            ensure(4);
+            buf.putInt(n);
+        }
+
+        void putString(String s) throws IOException {
+            byte[] bytes = s.getBytes(UTF_8);
+            putInt(bytes.length);
+            int offset = 0;
+            while (offset < bytes.length) {
+                ensure(1);
+                int n = Math.min(buf.remaining(), bytes.length - offset);
+                buf.put(bytes, offset, n);
+                offset += n;
+            }
+        }
+
+        /* Appends the CRC of everything put so far; not itself checksummed. */
+        void putChecksum() throws IOException {
+            flush();
+            buf.putLong(crc.getValue());
+        }
+
+        void flush() throws IOException {
+            buf.flip();
+            ByteBuffer checked = buf.duplicate();
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            crc.update(checked);
+            buf.clear();
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buf.remaining() < bytes) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Decodes a snapshot from one reused buffer, refilled from the channel
+     * as it empties, keeping a CRC of the bytes consumed.
+     */
+    private static class SnapshotReader {
+        private final FileChannel channel;
+        private final ByteBuffer buf = ByteBuffer.allocateDirect(SNAPSHOT_CHUNK);
+        private final CRC32 crc = new CRC32();
+        private int unchecked;                /* First byte not yet in crc. */
+
+        SnapshotReader(FileChannel channel) {
+            this.channel = channel;
+            buf.limit(0);
+        }
+
+        int getInt() throws IOException {
+            require(4);
+            return buf.getInt();
+        }
+
+        /* Returns null at the -1 that ends the pairs. */
+        String getString() throws IOException {
+            int length = getInt();
+            if (length == -1) {
+                return null;
+            } else if (length < 0) {
+                throw new IOException("negative length in snapshot");
+            } else if (length > buf.remaining()
+                    + channel.size() - channel.position()) {
+                /* Checked before allocating, so a corrupt length cannot
+                 * ask for more memory than the file could fill. */
+                throw new IOException("length past end of snapshot");
+            }
+            byte[] bytes = new byte[length];
+            int offset = 0;
+            while (offset < length) {
+                require(1);
+                int n = Math.min(buf.remaining(), length - offset);
+                buf.get(bytes, offset, n);
+                offset += n;
+            }
+            return new String(bytes, UTF_8);
+        }
+
+        boolean checkChecksum() throws IOException {
+            updateCrc();
+            long expected = crc.getValue();
+            require(8);
+            return buf.getLong() == expected;
+        }
+
+        private void updateCrc() {
+            ByteBuffer consumed = buf.duplicate();
+            consumed.position(unchecked);
+            consumed.limit(buf.position());
+            crc.update(consumed);
+            unchecked = buf.position();
+        }
+
+        /* Makes at least bytes bytes available, or throws at end of file. */
+        private void require(int bytes) throws IOException {
+            if (buf.remaining() >= bytes) {
+                return;
+            }
+            updateCrc();
+            buf.compact();
+            while (buf.position() < bytes) {
+                if (channel.read(buf) < 0) {
+                    throw new EOFException("truncated snapshot");
+                }
+            }
+            buf.flip();
+            unchecked = 0;
+        }
+    }
 }
@@ -0,0 +1,37 @@
+package kvstore;
+
+/**
+ * Hashes a key to 64 bits. TPCMaster uses one to place keys on the slave
+ * ring, and KVCache uses one to pick a key's set.
+ */
+public interface KeyHash {
+
+    /**
+     * String.hashCode(), sign-extended. KVCache picks sets with this by
+     * default. Weak in the low bits for short, similar keys.
+     */
+    KeyHash STRING_HASH_CODE = new KeyHash() {
+        @Override
+        public long hash(String key) {
+            return key.hashCode();
+        }
+    };
+
+    /**
+     * TPCMaster.hashTo64bit, which TPCMaster places keys with by default.
+     * Keys that differ only in their last character land next to each other
+     * on the ring.
+     */
+    KeyHash HASH_TO_64BIT = new KeyHash() {
+        @Override
+        public long hash(String key) {
+            return TPCMaster.hashTo64bit(key);
+        }
+    };
+
+    /**
+     * @param  key the key to hash, not null
+     * @return 64-bit hash of the key
+     */
+    long hash(String key);
+}
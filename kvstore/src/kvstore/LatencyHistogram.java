@@ -0,0 +1,165 @@
+package kvstore;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed-size histogram of latencies in nanoseconds, in the style of
+ * HdrHistogram: each power of two is split into SUB_BUCKETS linear
+ * buckets, so a recorded value is off by at most 1/SUB_BUCKETS (12.5%)
+ * whatever its magnitude, and the whole range of a long fits in under 500
+ * buckets. Recording is a bucket increment plus a LongAdder add, with no
+ * locking and no allocation, so it can sit on every request's path.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records one latency.
+     *
+     * @param nanos the latency in nanoseconds; negative values count as 0
+     */
+    public void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        counts.incrementAndGet(bucketOf(nanos));
+        total.add(nanos);
+        long seen = max.get();
+        while (nanos > seen && !max.compareAndSet(seen, nanos)) {
+            seen = max.get();
+        }
+    }
+
+    /**
+     * Records the time elapsed since start.
+     *
+     * @param startNanos a System.nanoTime() reading
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Snapshots the counts. A snapshot taken while values are being
+     * recorded may miss some of them.
+     *
+     * @return the latencies recorded since construction or the last reset()
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(copy, total.sum(), max.get());
+    }
+
+    /**
+     * Discards every recorded latency.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        total.reset();
+        max.set(0);
+    }
+
+    static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /* Largest value that falls in the bucket. */
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    /**
+     * The counts of a LatencyHistogram at one point in time.
+     */
+    public static class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long total;
+        private final long max;
+
+        Snapshot(long[] counts, long total, long max) {
+            long sum = 0;
+            for (long c : counts) {
+                sum += c;
+            }
+            this.counts = counts;
+            this.count = sum;
+            this.total = total;
+            this.max = max;
+        }
+
+        /**
+         * @return the number of latencies recorded
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the mean latency in nanoseconds, or 0 if none were recorded
+         */
+        public double getMean() {
+            return count == 0 ? 0 : (double) total / count;
+        }
+
+        /**
+         * @return the largest latency in nanoseconds
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @param  percentile between 0 and 100
+         * @return a latency in nanoseconds that at least percentile percent
+         *         of the recorded latencies do not exceed, to within 12.5%,
+         *         or 0 if none were recorded
+         */
+        public long getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * percentile / 100);
+            rank = Math.max(1, Math.min(count, rank));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBoundOf(i), max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d mean=%.1fus p50=%.1fus p99=%.1fus "
+                + "p999=%.1fus max=%.1fus", count, getMean() / 1000,
+                getPercentile(50) / 1000.0, getPercentile(99) / 1000.0,
+                getPercentile(99.9) / 1000.0, max / 1000.0);
+        }
+    }
+}
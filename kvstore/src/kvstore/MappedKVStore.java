@@ -0,0 +1,422 @@
+package kvstore;
+
+import static kvstore.KVConstants.ERROR_COULD_NOT_READ_SNAPSHOT;
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.CRC32;
+
+
+/**
+ * A KVStore that serves a snapshot in place: readSnapshot() memory-maps
+ * the file written by writeSnapshot() and returns at once, instead of
+ * decoding and inserting every pair, so a restarted slave can rejoin the
+ * ring as soon as its log tail is replayed.
+ *
+ * The snapshot's pairs stay in the mapped file. A background thread walks
+ * it once, checking its checksum and building an index from the hash of
+ * each key's bytes to the offset of its record; values are only decoded
+ * when they are read. Operations that need the snapshot wait for that walk
+ * to finish, and fail with ERROR_COULD_NOT_READ_SNAPSHOT if it found the
+ * file corrupt. Writes since the snapshot go to the store map inherited
+ * from KVStore, which shadows the snapshot, and deletes of snapshot pairs
+ * are remembered as tombstones. The next writeSnapshot() merges the two.
+ *
+ * Snapshots of 2GB or more cannot be mapped as one buffer, and are read
+ * into the store map as KVStore does.
+ */
+public class MappedKVStore extends KVStore {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /* Not initialized here: KVStore's constructor calls resetStore() before
+     * this class's field initializers would run. */
+    private ConcurrentHashMap<String, Boolean> deleted;
+    private volatile MappedSnapshot snapshot;    /* Null if none mapped. */
+
+    @Override
+    public void resetStore() {
+        super.resetStore();
+        deleted = new ConcurrentHashMap<String, Boolean>();
+        snapshot = null;
+    }
+
+    /**
+     * Insert key, value pair into the store.
+     *
+     * @param  key String key
+     * @param  value String value
+     */
+    @Override
+    public void put(String key, String value) {
+        store.put(key, value);
+        deleted.remove(key);
+    }
+
+    /**
+     * Retrieve the value corresponding to the provided key
+     * @param  key String key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+     */
+    @Override
+    public String get(String key) throws KVException {
+        String value = store.get(key);
+        if (value == null && !deleted.containsKey(key)) {
+            value = snapshotGet(key);
+        }
+        if (value == null) {
+            KVMessage msg = new KVMessage(KVConstants.RESP, ERROR_NO_SUCH_KEY);
+            throw new KVException(msg);
+        }
+        return value;
+    }
+
+    /**
+     * Delete the value corresponding to the provided key.
+     *
+     * @param  key String key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+     */
+    @Override
+    public void del(String key) throws KVException {
+        if (key != null) {
+            boolean inSnapshot = !deleted.containsKey(key)
+                && snapshotGet(key) != null;
+            if (store.remove(key) == null && !inSnapshot) {
+                KVMessage msg = new KVMessage(KVConstants.RESP, ERROR_NO_SUCH_KEY);
+                throw new KVException(msg);
+            }
+            if (inSnapshot) {
+                deleted.put(key, Boolean.TRUE);
+            }
+        }
+    }
+
+    /**
+     * Maps the snapshot and returns without reading it; the previous
+     * contents of the store are lost. Only a bad magic number is reported
+     * here. A checksum mismatch is found by the background walk, after
+     * which reads fail with ERROR_COULD_NOT_READ_SNAPSHOT.
+     *
+     * @param fileName the file containing the snapshot
+     * @throws IOException if the file cannot be mapped or is not a snapshot
+     */
+    @Override
+    public void readSnapshot(String fileName) throws IOException {
+        resetStore();
+        MappedByteBuffer buf = null;
+        FileChannel channel = FileChannel.open(Paths.get(fileName),
+            StandardOpenOption.READ);
+        try {
+            if (channel.size() <= Integer.MAX_VALUE) {
+                buf = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+            }
+        } finally {
+            /* The mapping stays valid after the channel is closed. */
+            channel.close();
+        }
+        if (buf == null) {
+            super.readSnapshot(fileName);
+            return;
+        }
+        if (buf.capacity() < 4 || buf.getInt(0) != SNAPSHOT_MAGIC) {
+            throw new IOException("not a snapshot: " + fileName);
+        }
+        final MappedSnapshot mapped = new MappedSnapshot(buf);
+        snapshot = mapped;
+        Thread indexer = new Thread("snapshot-index") {
+            @Override
+            public void run() {
+                mapped.buildIndex();
+            }
+        };
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    /**
+     * Writes the snapshot's surviving pairs and the pairs written since to
+     * a new snapshot, once the mapped one has been indexed.
+     *
+     * @param fileName the file to write the snapshot to
+     * @throws IOException if the snapshot could not be written, or the
+     *         mapped snapshot it merges was found corrupt
+     */
+    @Override
+    public void writeSnapshot(String fileName) throws IOException {
+        if (!awaitSnapshot()) {
+            throw new IOException(ERROR_COULD_NOT_READ_SNAPSHOT);
+        }
+        super.writeSnapshot(fileName);
+    }
+
+    /**
+     * Waits for the mapped snapshot, if any, to be indexed.
+     *
+     * @return whether the snapshot is usable; false if it was found corrupt
+     */
+    public boolean awaitSnapshot() {
+        MappedSnapshot mapped = snapshot;
+        if (mapped == null) {
+            return true;
+        }
+        try {
+            mapped.await();
+            return true;
+        } catch (KVException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns a view that walks the snapshot's records that have not been
+     * overwritten or deleted, then the pairs written since, decoding each
+     * as it is reached. Waits for the snapshot to be indexed, and throws
+     * IllegalStateException if it was found corrupt.
+     */
+    @Override
+    protected Iterable<Entry<String, String>> snapshotEntries() {
+        final MappedSnapshot mapped = snapshot;
+        if (mapped != null) {
+            try {
+                mapped.await();
+            } catch (KVException e) {
+                throw new IllegalStateException(ERROR_COULD_NOT_READ_SNAPSHOT);
+            }
+        }
+        return new Iterable<Entry<String, String>>() {
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                return new MergedIterator(mapped);
+            }
+        };
+    }
+
+    private String snapshotGet(String key) throws KVException {
+        MappedSnapshot mapped = snapshot;
+        if (mapped == null) {
+            return null;
+        }
+        mapped.await();
+        return mapped.get(key);
+    }
+
+    private class MergedIterator implements Iterator<Entry<String, String>> {
+        private final MappedSnapshot mapped;
+        private int offset = 4;                  /* Next snapshot record. */
+        private Iterator<Entry<String, String>> written;
+        private Entry<String, String> next;
+
+        MergedIterator(MappedSnapshot mapped) {
+            this.mapped = mapped;
+            next = advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry<String, String> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Entry<String, String> e = next;
+            next = advance();
+            return e;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private Entry<String, String> advance() {
+            while (written == null && mapped != null && offset < mapped.end) {
+                int record = offset;
+                offset = mapped.nextRecord(record);
+                String key = mapped.key(record);
+                if (!store.containsKey(key) && !deleted.containsKey(key)) {
+                    return new SimpleImmutableEntry<String, String>(
+                        key, mapped.value(record));
+                }
+            }
+            if (written == null) {
+                written = store.entrySet().iterator();
+            }
+            return written.hasNext() ? written.next() : null;
+        }
+    }
+
+    /**
+     * A snapshot file mapped into memory, and once buildIndex() has run, an
+     * open-addressing table from key hash to record offset. A record is the
+     * key's byte count and bytes, then the value's; records run from just
+     * after the magic number to end.
+     */
+    private static class MappedSnapshot {
+        /* Hashes the key bytes in the file and lookup keys alike. */
+        private static final XXHash64 KEY_HASH = new XXHash64();
+
+        private final ByteBuffer buf;
+        private final CountDownLatch indexed = new CountDownLatch(1);
+        private volatile boolean corrupt;
+        private int end;                         /* Offset of the -1. */
+        private int[] hashes;
+        private int[] offsets;                   /* 0 marks an empty slot. */
+        private int size;
+
+        MappedSnapshot(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        /**
+         * Walks every record, checks the checksum and fills the table, then
+         * releases waiting readers. Runs once, on its own thread.
+         */
+        void buildIndex() {
+            try {
+                hashes = new int[1024];
+                offsets = new int[1024];
+                int offset = 4;
+                int keyLength;
+                while ((keyLength = buf.getInt(offset)) != -1) {
+                    int valueAt = offset + 4 + keyLength;
+                    if (keyLength < 0 || valueAt < 0 || valueAt > buf.capacity() - 4) {
+                        throw new IndexOutOfBoundsException();
+                    }
+                    int next = nextRecord(offset);
+                    if (next < 0 || next > buf.capacity() - 4) {
+                        throw new IndexOutOfBoundsException();
+                    }
+                    insert((int) KEY_HASH.hash(buf, offset + 4, keyLength),
+                        offset);
+                    offset = next;
+                }
+                end = offset;
+                CRC32 crc = new CRC32();
+                ByteBuffer checked = buf.duplicate();
+                checked.position(0).limit(end + 4);
+                crc.update(checked);
+                corrupt = end + 12 > buf.capacity()
+                    || buf.getLong(end + 4) != crc.getValue();
+            } catch (IndexOutOfBoundsException e) {
+                corrupt = true;
+            } finally {
+                indexed.countDown();
+            }
+        }
+
+        /**
+         * Waits for buildIndex() to finish.
+         *
+         * @throws KVException with ERROR_COULD_NOT_READ_SNAPSHOT if the
+         *         snapshot is corrupt
+         */
+        void await() throws KVException {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    indexed.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (corrupt) {
+                throw new KVException(ERROR_COULD_NOT_READ_SNAPSHOT);
+            }
+        }
+
+        /** Returns key's value in the snapshot, or null. Call after await(). */
+        String get(String key) {
+            ByteBuffer wrapped = ByteBuffer.wrap(key.getBytes(UTF_8));
+            int hash = (int) KEY_HASH.hash(key);
+            int mask = offsets.length - 1;
+            for (int i = hash & mask; offsets[i] != 0; i = (i + 1) & mask) {
+                if (hashes[i] == hash && keyEquals(offsets[i], wrapped)) {
+                    return value(offsets[i]);
+                }
+            }
+            return null;
+        }
+
+        String key(int record) {
+            return string(record);
+        }
+
+        String value(int record) {
+            return string(record + 4 + buf.getInt(record));
+        }
+
+        int nextRecord(int record) {
+            int valueAt = record + 4 + buf.getInt(record);
+            return valueAt + 4 + buf.getInt(valueAt);
+        }
+
+        /* Decodes the byte count at offset and the bytes after it. */
+        private String string(int offset) {
+            byte[] bytes = new byte[buf.getInt(offset)];
+            ByteBuffer view = buf.duplicate();
+            view.position(offset + 4);
+            view.get(bytes);
+            return new String(bytes, UTF_8);
+        }
+
+        private boolean keyEquals(int record, ByteBuffer keyBytes) {
+            int length = buf.getInt(record);
+            if (length != keyBytes.capacity()) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (buf.get(record + 4 + i) != keyBytes.get(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void insert(int hash, int offset) {
+            if (size * 2 >= offsets.length) {
+                int[] oldHashes = hashes;
+                int[] oldOffsets = offsets;
+                hashes = new int[oldOffsets.length * 2];
+                offsets = new int[oldOffsets.length * 2];
+                for (int i = 0; i < oldOffsets.length; i++) {
+                    if (oldOffsets[i] != 0) {
+                        place(oldHashes[i], oldOffsets[i]);
+                    }
+                }
+            }
+            place(hash, offset);
+            size++;
+        }
+
+        private void place(int hash, int offset) {
+            int mask = offsets.length - 1;
+            int i = hash & mask;
+            while (offsets[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            hashes[i] = hash;
+            offsets[i] = offset;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package kvstore;
+
+/**
+ * Interface for network handlers whose requests can be serviced one message
+ * at a time, independently of the connection they arrived on.
+ */
+public interface MessageHandler extends NetworkHandler {
+
+    /**
+     * Carries out a single request and builds the response to send back.
+     * Errors are reported in the returned message rather than thrown.
+     *
+     * @param rqst KVMessage read from the network
+     * @return KVMessage to send back to the requester
+     */
+    public KVMessage service(KVMessage rqst);
+
+}
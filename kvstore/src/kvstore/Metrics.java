@@ -0,0 +1,146 @@
+package kvstore;
+
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A named set of latency histograms and gauges belonging to one component,
+ * such as a KVServer or a TPCMaster. Callers pull values through
+ * getHistograms() and getGauges(), or have them printed periodically with
+ * startDumping().
+ */
+public class Metrics {
+
+    /**
+     * A value read when the metrics are pulled, such as a queue depth.
+     */
+    public interface Gauge {
+        /**
+         * @return the current value
+         */
+        long get();
+    }
+
+    private final String name;
+    private final LinkedHashMap<String, LatencyHistogram> histograms =
+        new LinkedHashMap<String, LatencyHistogram>();
+    private final LinkedHashMap<String, Gauge> gauges =
+        new LinkedHashMap<String, Gauge>();
+
+    /**
+     * @param name prefix for this component's lines in dump()
+     */
+    public Metrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the histogram with the given name, creating it if needed.
+     *
+     * @param  histogram name of the histogram
+     * @return the histogram
+     */
+    public synchronized LatencyHistogram histogram(String histogram) {
+        LatencyHistogram hist = histograms.get(histogram);
+        if (hist == null) {
+            hist = new LatencyHistogram();
+            histograms.put(histogram, hist);
+        }
+        return hist;
+    }
+
+    /**
+     * Adds a gauge, replacing any other with the same name.
+     *
+     * @param gauge name of the gauge
+     * @param source where its value is read from
+     */
+    public synchronized void gauge(String gauge, Gauge source) {
+        gauges.put(gauge, source);
+    }
+
+    /**
+     * @return a snapshot of each histogram, by name, in registration order
+     */
+    public synchronized Map<String, LatencyHistogram.Snapshot> getHistograms() {
+        LinkedHashMap<String, LatencyHistogram.Snapshot> snapshots =
+            new LinkedHashMap<String, LatencyHistogram.Snapshot>();
+        for (Map.Entry<String, LatencyHistogram> e : histograms.entrySet()) {
+            snapshots.put(e.getKey(), e.getValue().snapshot());
+        }
+        return snapshots;
+    }
+
+    /**
+     * @return the current value of each gauge, by name, in registration
+     *         order. A gauge that throws is left out.
+     */
+    public synchronized Map<String, Long> getGauges() {
+        LinkedHashMap<String, Long> values = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+            try {
+                values.put(e.getKey(), e.getValue().get());
+            } catch (RuntimeException ex) {
+                /* Best effort: skip it. */
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Empties every histogram, e.g. to start measuring a new window of
+     * traffic. Gauges are unaffected.
+     */
+    public synchronized void reset() {
+        for (LatencyHistogram hist : histograms.values()) {
+            hist.reset();
+        }
+    }
+
+    /**
+     * @return one line per histogram and gauge, each prefixed with this
+     *         component's name
+     */
+    public String dump() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, LatencyHistogram.Snapshot> e
+                : getHistograms().entrySet()) {
+            builder.append(name).append('.').append(e.getKey()).append(' ')
+                .append(e.getValue()).append('\n');
+        }
+        for (Map.Entry<String, Long> e : getGauges().entrySet()) {
+            builder.append(name).append('.').append(e.getKey()).append(' ')
+                .append(e.getValue()).append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Starts a daemon thread that prints dump() to out every periodMillis.
+     * Interrupt the thread to stop it.
+     *
+     * @param  out where to print
+     * @param  periodMillis time between dumps
+     * @return the dumping thread
+     */
+    public Thread startDumping(final PrintStream out, final long periodMillis) {
+        Thread dumper = new Thread(name + "-metrics") {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(periodMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    out.print(dump());
+                    out.flush();
+                }
+            }
+        };
+        dumper.setDaemon(true);
+        dumper.start();
+        return dumper;
+    }
+}
@@ -0,0 +1,365 @@
+package kvstore;
+
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * A KVStore that keeps its keys and values outside the Java heap, as UTF-8
+ * bytes in direct ByteBuffer slabs, so that large stores neither pay for
+ * UTF-16 strings nor lengthen GC pauses. Only the index from key to record
+ * address lives on the heap. The store map inherited from KVStore is unused
+ * and stays empty.
+ *
+ * A record is the key length and value length as ints, followed by the key
+ * and value bytes, and is appended to the current slab. Overwritten and
+ * deleted records are dead space; a slab whose records are all dead is
+ * recycled, and one that falls below a quarter live has its live records
+ * copied forward so that it can be recycled too. A record larger than a
+ * slab gets a slab of its own.
+ *
+ * Reads share a read lock and writes take the write lock, so GETs proceed
+ * in parallel while PUTs and DELs are serialized.
+ */
+public class OffHeapKVStore extends KVStore {
+
+    /** Default slab size, in bytes. */
+    public static final int DEFAULT_SLAB_SIZE = 16 * 1024 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int HEADER_SIZE = 8;
+
+    private int slabSize;
+    /* Not initialized here: KVStore's constructor calls resetStore() before
+     * this class's field initializers would run. */
+    private ReentrantReadWriteLock lock;
+    /* Key to slab << 32 | offset. Only changed under the write lock, but
+     * concurrent so that a snapshot can walk it without holding any lock. */
+    private ConcurrentHashMap<String, Long> index;
+    private ArrayList<Slab> slabs;
+    private ArrayDeque<Integer> freeSlabs;   /* Ids of empty slabs. */
+    private int current;                     /* Slab being appended to. */
+
+    /**
+     * Construct a new OffHeapKVStore with the default slab size.
+     */
+    public OffHeapKVStore() {
+        this(DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * Construct a new OffHeapKVStore.
+     *
+     * @param slabSize the size in bytes of each direct buffer slab
+     */
+    public OffHeapKVStore(int slabSize) {
+        super();
+        if (slabSize <= HEADER_SIZE) {
+            throw new IllegalArgumentException("slabSize must be larger than "
+                + HEADER_SIZE);
+        }
+        this.slabSize = slabSize;
+    }
+
+    @Override
+    public void resetStore() {
+        super.resetStore();
+        if (lock == null) {
+            lock = new ReentrantReadWriteLock();
+        }
+        lock.writeLock().lock();
+        try {
+            index = new ConcurrentHashMap<String, Long>();
+            slabs = new ArrayList<Slab>();
+            freeSlabs = new ArrayDeque<Integer>();
+            current = -1;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Insert key, value pair into the store.
+     *
+     * @param  key String key
+     * @param  value String value
+     */
+    @Override
+    public void put(String key, String value) {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        byte[] valueBytes = value.getBytes(UTF_8);
+        lock.writeLock().lock();
+        try {
+            long addr = append(keyBytes, valueBytes);
+            Long old = index.put(key, addr);
+            if (old != null) {
+                release(old);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Retrieve the value corresponding to the provided key
+     * @param  key String key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+     */
+    @Override
+    public String get(String key) throws KVException {
+        lock.readLock().lock();
+        try {
+            Long addr = index.get(key);
+            if (addr == null) {
+                KVMessage msg = new KVMessage(KVConstants.RESP, ERROR_NO_SUCH_KEY);
+                throw new KVException(msg);
+            }
+            return readValue(addr);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Delete the value corresponding to the provided key.
+     *
+     * @param  key String key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+     */
+    @Override
+    public void del(String key) throws KVException {
+        if (key != null) {
+            lock.writeLock().lock();
+            try {
+                Long addr = index.remove(key);
+                if (addr == null) {
+                    KVMessage msg = new KVMessage(KVConstants.RESP, ERROR_NO_SUCH_KEY);
+                    throw new KVException(msg);
+                }
+                release(addr);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the number of pairs in the store
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return index.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the total capacity in bytes of the slabs currently allocated
+     */
+    long allocatedBytes() {
+        lock.readLock().lock();
+        try {
+            long total = 0;
+            for (Slab slab : slabs) {
+                if (slab.buf != null) {
+                    total += slab.buf.capacity();
+                }
+            }
+            return total;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns a view that reads each pair as it is reached, taking the read
+     * lock for that pair alone, so a snapshot copies nothing up front and
+     * PUTs and DELs interleave with it.
+     */
+    @Override
+    protected Iterable<Entry<String, String>> snapshotEntries() {
+        return new Iterable<Entry<String, String>>() {
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                return new SnapshotIterator();
+            }
+        };
+    }
+
+    private class SnapshotIterator implements Iterator<Entry<String, String>> {
+        private final Iterator<String> keys = index.keySet().iterator();
+        private Entry<String, String> next = advance();
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry<String, String> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Entry<String, String> e = next;
+            next = advance();
+            return e;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /* Skips keys deleted since the walk reached them. */
+        private Entry<String, String> advance() {
+            while (keys.hasNext()) {
+                String key = keys.next();
+                lock.readLock().lock();
+                try {
+                    Long addr = index.get(key);
+                    if (addr != null) {
+                        return new SimpleImmutableEntry<String, String>(
+                            key, readValue(addr));
+                    }
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+            return null;
+        }
+    }
+
+    private String readValue(long addr) {
+        ByteBuffer buf = slabs.get(slabId(addr)).buf.duplicate();
+        int offset = offset(addr);
+        int keyLength = buf.getInt(offset);
+        byte[] valueBytes = new byte[buf.getInt(offset + 4)];
+        buf.position(offset + HEADER_SIZE + keyLength);
+        buf.get(valueBytes);
+        return new String(valueBytes, UTF_8);
+    }
+
+    /**
+     * Writes a record to the end of the current slab, moving to a new one
+     * first if it does not fit. Caller must hold the write lock.
+     */
+    private long append(byte[] keyBytes, byte[] valueBytes) {
+        int size = HEADER_SIZE + keyBytes.length + valueBytes.length;
+        if (current < 0 || slabs.get(current).remaining() < size) {
+            current = takeSlab(size);
+        }
+        Slab slab = slabs.get(current);
+        ByteBuffer buf = slab.buf;
+        int offset = slab.used;
+        buf.putInt(offset, keyBytes.length);
+        buf.putInt(offset + 4, valueBytes.length);
+        buf.position(offset + HEADER_SIZE);
+        buf.put(keyBytes);
+        buf.put(valueBytes);
+        slab.used += size;
+        slab.live += size;
+        return ((long) current << 32) | offset;
+    }
+
+    private int takeSlab(int minSize) {
+        int capacity = Math.max(slabSize, minSize);
+        Integer id = freeSlabs.poll();
+        if (id == null) {
+            slabs.add(new Slab());
+            id = slabs.size() - 1;
+        }
+        Slab slab = slabs.get(id);
+        if (slab.buf == null || slab.buf.capacity() < capacity) {
+            slab.buf = ByteBuffer.allocateDirect(capacity);
+        }
+        return id;
+    }
+
+    /**
+     * Marks the record at addr as dead, recycling or compacting its slab if
+     * that leaves the slab empty or mostly dead. The index must no longer
+     * point at addr. Caller must hold the write lock.
+     */
+    private void release(long addr) {
+        int id = slabId(addr);
+        Slab slab = slabs.get(id);
+        slab.live -= recordSize(slab.buf, offset(addr));
+        if (id == current) {
+            return;
+        }
+        if (slab.live == 0) {
+            free(id);
+        } else if (slab.live < slab.buf.capacity() / 4) {
+            compact(id);
+        }
+    }
+
+    /** Copies the live records out of a slab, then recycles it. */
+    private void compact(int id) {
+        Slab slab = slabs.get(id);
+        ByteBuffer buf = slab.buf.duplicate();
+        int offset = 0;
+        while (offset < slab.used) {
+            int keyLength = buf.getInt(offset);
+            int valueLength = buf.getInt(offset + 4);
+            byte[] keyBytes = new byte[keyLength];
+            buf.position(offset + HEADER_SIZE);
+            buf.get(keyBytes);
+            String key = new String(keyBytes, UTF_8);
+            long addr = ((long) id << 32) | offset;
+            Long live = index.get(key);
+            if (live != null && live == addr) {
+                byte[] valueBytes = new byte[valueLength];
+                buf.get(valueBytes);
+                index.put(key, append(keyBytes, valueBytes));
+            }
+            offset += HEADER_SIZE + keyLength + valueLength;
+        }
+        free(id);
+    }
+
+    private void free(int id) {
+        Slab slab = slabs.get(id);
+        slab.used = 0;
+        slab.live = 0;
+        if (slab.buf.capacity() > slabSize) {
+            /* Sized for one oversized record; let the GC reclaim it. */
+            slab.buf = null;
+        }
+        freeSlabs.add(id);
+    }
+
+    private static int recordSize(ByteBuffer buf, int offset) {
+        return HEADER_SIZE + buf.getInt(offset) + buf.getInt(offset + 4);
+    }
+
+    private static int slabId(long addr) {
+        return (int) (addr >>> 32);
+    }
+
+    private static int offset(long addr) {
+        return (int) addr;
+    }
+
+    private static class Slab {
+        ByteBuffer buf;
+        int used;                            /* Bytes appended so far. */
+        int live;                            /* Bytes in live records. */
+
+        int remaining() {
+            return buf.capacity() - used;
+        }
+    }
+}
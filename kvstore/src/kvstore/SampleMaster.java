@@ -3,8 +3,14 @@ package kvstore;
 import java.io.IOException;
 import java.net.InetAddress;
 
+/**
+ * Runs a TPCMaster for two slaves, printing its metrics every
+ * METRICS_PERIOD milliseconds.
+ */
 public class SampleMaster {
 
+    static final long METRICS_PERIOD = 60000;
+
     static SocketServer clientSocketServer;
     static SocketServer slaveSocketServer;
     static TPCMaster tpcMaster;
@@ -31,9 +37,16 @@ public class SampleMaster {
 
         Thread.sleep(100);
         clientSocketServer = new SocketServer(hostname, 8080);
-        NetworkHandler clientHandler = new TPCClientHandler(tpcMaster);
+        final TPCClientHandler clientHandler = new TPCClientHandler(tpcMaster);
         clientSocketServer.addHandler(clientHandler);
         clientSocketServer.connect();
+        tpcMaster.getMetrics().gauge("clientHandler.queue", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return clientHandler.threadPool.getQueueDepth();
+            }
+        });
+        tpcMaster.getMetrics().startDumping(System.out, METRICS_PERIOD);
 
         System.out.println("Master listening for clients and slaves at " +
             clientSocketServer.getHostname());
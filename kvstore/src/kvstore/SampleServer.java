@@ -2,13 +2,28 @@ package kvstore;
 
 import java.net.InetAddress;
 
+/**
+ * Serves a single KVServer, printing its metrics every METRICS_PERIOD
+ * milliseconds.
+ */
 public class SampleServer {
 
+    static final long METRICS_PERIOD = 60000;
+
     public static void main(String[] args) {
         try {
             String hostname = InetAddress.getLocalHost().getHostAddress();
             SocketServer ss = new SocketServer(hostname, 8080);
-            ss.addHandler(new ServerClientHandler(new KVServer(100, 10)));
+            KVServer kvServer = new KVServer(100, 10);
+            final ServerClientHandler handler = new ServerClientHandler(kvServer);
+            ss.addHandler(handler);
+            kvServer.getMetrics().gauge("handler.queue", new Metrics.Gauge() {
+                @Override
+                public long get() {
+                    return handler.threadPool.getQueueDepth();
+                }
+            });
+            kvServer.getMetrics().startDumping(System.out, METRICS_PERIOD);
             ss.connect();
             System.out.println("Server listening for clients at " + ss.getHostname());
             ss.start();
@@ -4,6 +4,18 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.util.Random;
 
+/**
+ * Usage: SampleSlave masterHost [numSets maxElemsPerSet [write|read]]
+ * The optional arguments size the slave's data cache and pick its admission
+ * policy (KVServer.CacheAdmission ON_WRITE or ON_READ). The cache's counts
+ * are printed on shutdown, for tuning the sizes, and the server's metrics
+ * every METRICS_PERIOD milliseconds.
+ *
+ * The slave's ID is random unless given with -Dslave.id; restarting with
+ * the ID of an earlier run recovers from that run's log and snapshot. The
+ * snapshot is memory-mapped by a MappedKVStore, so recovery costs only the
+ * replay of the log written since it.
+ */
 public class SampleSlave {
 
     static String logPath;
@@ -18,13 +30,28 @@ public class SampleSlave {
     static int masterPort = 8080;
     static int registrationPort = 9090;
 
+    static final long METRICS_PERIOD = 60000;
+
+    static int numSets = 100;
+    static int maxElemsPerSet = 10;
+
+    static final String USAGE =
+        "Usage: SampleSlave masterHost [numSets maxElemsPerSet [write|read]]";
+
     public static void main(String[] args) throws IOException, KVException {
-        if (args.length != 1) {
-            throw new IllegalArgumentException("Need master IP address");
+        if ((args.length != 1 && args.length != 3 && args.length != 4)
+                || (args.length == 4 && !args[3].equals("write")
+                    && !args[3].equals("read"))) {
+            System.err.println(USAGE);
+            throw new IllegalArgumentException("Need master IP address, "
+                + "optionally followed by numSets maxElemsPerSet [write|read]");
+        }
+        if (args.length >= 3) {
+            numSets = Integer.parseInt(args[1]);
+            maxElemsPerSet = Integer.parseInt(args[2]);
         }
 
-        Random rand = new Random();
-        slaveID = rand.nextLong();
+        slaveID = Long.getLong("slave.id", new Random().nextLong());
 
         masterHostname = args[0];
         if (masterHostname.charAt(0) == '$') {
@@ -34,12 +61,33 @@ public class SampleSlave {
 
         server = new SocketServer(InetAddress.getLocalHost().getHostAddress());
 
-        keyServer = new KVServer(100, 10);
+        keyServer = new KVServer(numSets, maxElemsPerSet, false,
+            new MappedKVStore());
+        if (args.length == 4 && args[3].equals("read")) {
+            keyServer.setCacheAdmission(KVServer.CacheAdmission.ON_READ);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                System.out.println("Data cache: " + keyServer.getCacheStats());
+            }
+        });
         logPath = "bin/log." + slaveID + "@" + server.getHostname();
+        long recoveryStart = System.nanoTime();
         log = new TPCLog(logPath, keyServer);
+        System.out.println("Recovered from " + logPath + " in " +
+            (System.nanoTime() - recoveryStart) / 1000000 + " ms");
 
-        TPCMasterHandler handler = new TPCMasterHandler(slaveID, keyServer, log);
+        final TPCMasterHandler handler =
+            new TPCMasterHandler(slaveID, keyServer, log);
         server.addHandler(handler);
+        keyServer.getMetrics().gauge("handler.queue", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return handler.threadpool.getQueueDepth();
+            }
+        });
+        keyServer.getMetrics().startDumping(System.out, METRICS_PERIOD);
         server.connect();
 
 
@@ -0,0 +1,468 @@
+package kvstore;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A SocketServer that multiplexes every connection over a single NIO
+ * Selector. Sockets are accepted, read and written without blocking, and
+ * requests are framed straight out of a shared direct buffer; only complete
+ * requests are handed, still encoded, to the worker pool, which decodes
+ * them. A slow or idle client therefore never holds a worker thread, a
+ * large request never holds the selector, and an idle connection costs a
+ * selection key and nothing else.
+ *
+ * Requests on one connection are serviced one at a time and answered in the
+ * order they arrived, so pipelining clients see the same ordering as with a
+ * blocking SocketServer. Binary frames are cut out as soon as their length
+ * prefix is satisfied; XML requests are delimited by the client shutting
+ * down its output.
+ *
+ * The handler must be a MessageHandler for requests to be serviced here.
+ * Any other NetworkHandler is given each accepted socket in blocking mode,
+ * exactly as a SocketServer would.
+ */
+public class SelectorSocketServer extends SocketServer {
+
+    public static final int DEFAULT_WORKERS = 16;
+
+    /* Size of the direct buffer shared by every read on the selector. */
+    public static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /* Requests queued on one connection before reads are paused. */
+    public static final int MAX_PENDING_REQUESTS = 64;
+
+    private final int numWorkers;
+    private int idleTimeout = ConnectionJob.KEEP_ALIVE_TIMEOUT;
+
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
+    private ThreadPool workers;
+    private MessageHandler messageHandler;
+
+    private final ByteBuffer readBuffer =
+        ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    /* Connections whose in-service request a worker has just finished. */
+    private final Queue<Connection> completed =
+        new ConcurrentLinkedQueue<Connection>();
+
+    /**
+     * Construct a SelectorSocketServer listening on a free port.
+     */
+    public SelectorSocketServer(String hostname) {
+        this(hostname, 0);
+    }
+
+    /**
+     * Construct a SelectorSocketServer listening on the port passed in.
+     *
+     * @param port port on which to listen for connections
+     */
+    public SelectorSocketServer(String hostname, int port) {
+        this(hostname, port, DEFAULT_WORKERS);
+    }
+
+    /**
+     * Construct a SelectorSocketServer listening on the port passed in.
+     *
+     * @param port port on which to listen for connections
+     * @param workers number of threads servicing parsed requests
+     */
+    public SelectorSocketServer(String hostname, int port, int workers) {
+        super(hostname, port);
+        this.numWorkers = workers;
+    }
+
+    /**
+     * Set how long a connection may sit with nothing in flight before it is
+     * closed. Defaults to ConnectionJob.KEEP_ALIVE_TIMEOUT so that clients
+     * see the same eviction behaviour as on a blocking SocketServer.
+     *
+     * @param idleTimeout milliseconds, or 0 to keep idle connections forever
+     */
+    public void setIdleTimeout(int idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Opens a non-blocking ServerSocketChannel and binds it to an endpoint.
+     * If the given port is 0, the channel is bound to an automatically
+     * allocated port.
+     *
+     * @throws IOException if unable create and bind the channel
+     */
+    @Override
+    public void connect() throws IOException {
+        if (serverChannel == null) {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            server = serverChannel.socket();
+            port = server.getLocalPort();
+            selector = Selector.open();
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        }
+    }
+
+    /**
+     * Run the selector loop until stop() is called. A call to stop() results
+     * in the closing of the server and every open connection within TIMEOUT
+     * milliseconds.
+     *
+     * @throws IOException if the selector itself fails
+     */
+    @Override
+    public void start() throws IOException {
+        if (handler instanceof MessageHandler) {
+            messageHandler = (MessageHandler) handler;
+            workers = new ThreadPool(numWorkers);
+        }
+        long lastSweep = System.currentTimeMillis();
+        while (!stopped) {
+            selector.select(TIMEOUT);
+            Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+            while (iter.hasNext()) {
+                SelectionKey key = iter.next();
+                iter.remove();
+                try {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection conn = (Connection) key.attachment();
+                    if (key.isReadable()) {
+                        read(conn);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        write(conn);
+                    }
+                } catch (IOException e) {
+                    if (key.attachment() != null) {
+                        close((Connection) key.attachment());
+                    }
+                }
+            }
+            processCompleted();
+            long now = System.currentTimeMillis();
+            if (idleTimeout > 0 && now - lastSweep >= TIMEOUT) {
+                closeIdle(now);
+                lastSweep = now;
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+        serverChannel.close();
+        if (workers != null) {
+            workers.close();
+        }
+        closeHandler();
+    }
+
+    /**
+     * Stops the server, waking the selector so it notices immediately.
+     */
+    @Override
+    public void stop() {
+        super.stop();
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        setNoDelay(channel.socket());
+        if (messageHandler == null) {
+            handler.handle(channel.socket());
+            return;
+        }
+        channel.configureBlocking(false);
+        Connection conn = new Connection(channel);
+        conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+    }
+
+    private void read(Connection conn) throws IOException {
+        readBuffer.clear();
+        int n = conn.channel.read(readBuffer);
+        conn.lastActive = System.currentTimeMillis();
+        if (n < 0) {
+            conn.inputClosed = true;
+            conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_READ);
+            if (conn.partial != null && conn.partial.position() > 0) {
+                if ((conn.partial.get(0) & 0xFF) == KVMessage.BINARY_MAGIC) {
+                    /* Truncated frame; there is nobody left to answer. */
+                    close(conn);
+                    return;
+                }
+                conn.partial.flip();
+                enqueue(conn, conn.partial.array(), conn.partial.arrayOffset(),
+                    conn.partial.limit());
+                conn.partial = null;
+            }
+            if (conn.isDrained()) {
+                close(conn);
+                return;
+            }
+            dispatch(conn);
+            return;
+        }
+        readBuffer.flip();
+        if (conn.partial == null) {
+            parse(conn, readBuffer);
+        } else {
+            conn.partial = append(conn.partial, readBuffer);
+            conn.partial.flip();
+            parse(conn, conn.partial);
+        }
+        if (conn.requests.size() >= MAX_PENDING_REQUESTS) {
+            conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_READ);
+        }
+        dispatch(conn);
+    }
+
+    /**
+     * Cut every complete binary frame out of buf and queue it on conn.
+     * Whatever is left over (a partial frame, or an XML request still
+     * waiting for EOF) is kept in conn.partial, which is only allocated
+     * when there is something to keep.
+     */
+    private void parse(Connection conn, ByteBuffer buf) throws IOException {
+        while (buf.remaining() >= KVMessage.BINARY_HEADER_SIZE
+                && (buf.get(buf.position()) & 0xFF) == KVMessage.BINARY_MAGIC) {
+            int length = buf.getInt(buf.position() + 2);
+            if (length < 0 || length > KVMessage.MAX_FRAME_SIZE) {
+                throw new IOException("Frame of " + length + " bytes");
+            }
+            int frameSize = KVMessage.BINARY_HEADER_SIZE + length;
+            if (buf.remaining() < frameSize) {
+                break;
+            }
+            byte[] frame = new byte[frameSize];
+            buf.get(frame);
+            enqueue(conn, frame, 0, frameSize);
+        }
+        if (buf == conn.partial) {
+            if (buf.hasRemaining()) {
+                buf.compact();
+            } else {
+                conn.partial = null;
+            }
+        } else if (buf.hasRemaining()) {
+            conn.partial = append(null, buf);
+        }
+        /* A binary frame is bounded by the length in its header, checked
+         * above; only XML, which has no header, is bounded by bytes held. */
+        if (conn.partial != null
+                && (conn.partial.get(0) & 0xFF) != KVMessage.BINARY_MAGIC
+                && conn.partial.position() > KVMessage.MAX_FRAME_SIZE) {
+            throw new IOException("Request too large");
+        }
+    }
+
+    /* Queue a complete request's bytes; a worker decodes them. */
+    private void enqueue(Connection conn, byte[] data, int offset, int length) {
+        if (offset == 0 && length == data.length) {
+            conn.requests.add(data);
+        } else {
+            conn.requests.add(Arrays.copyOfRange(data, offset, offset + length));
+        }
+    }
+
+    /**
+     * Hand the next queued request on conn to a worker, unless one is
+     * already in service. The worker decodes it, so a large XML request
+     * does not hold up the selector. A request that cannot be decoded is
+     * answered with the error and ends the connection, as ConnectionJob
+     * does.
+     */
+    private void dispatch(final Connection conn) {
+        if (conn.busy || conn.closing || conn.requests.isEmpty()) {
+            return;
+        }
+        final byte[] data = conn.requests.poll();
+        conn.busy = true;
+        try {
+            workers.addJob(new Runnable() {
+                @Override
+                public void run() {
+                    KVMessage resp;
+                    boolean keepAlive = false;
+                    try {
+                        KVMessage rqst = KVMessage.fromBytes(data, 0,
+                            data.length);
+                        resp = messageHandler.service(rqst);
+                        resp.setFormat(rqst.getFormat());
+                        keepAlive = rqst.isKeepAlive();
+                    } catch (KVException e) {
+                        resp = e.getKVMessage();
+                    }
+                    resp.setKeepAlive(keepAlive);
+                    try {
+                        conn.response = resp.toBytes();
+                    } catch (KVException e) {
+                        conn.response = null;
+                    }
+                    conn.lastRequest = !keepAlive;
+                    completed.offer(conn);
+                    selector.wakeup();
+                }
+            });
+        } catch (InterruptedException e) {
+            close(conn);
+        }
+    }
+
+    /**
+     * Queue the responses workers have finished, write what the sockets
+     * will take, and start on each connection's next request.
+     */
+    private void processCompleted() {
+        Connection conn;
+        while ((conn = completed.poll()) != null) {
+            conn.busy = false;
+            if (!conn.channel.isOpen()) {
+                continue;
+            }
+            if (conn.response != null) {
+                conn.outgoing.add(ByteBuffer.wrap(conn.response));
+                conn.response = null;
+            }
+            if (conn.lastRequest) {
+                conn.closing = true;
+                conn.requests.clear();
+            }
+            try {
+                write(conn);
+            } catch (IOException e) {
+                close(conn);
+                continue;
+            }
+            if (!conn.channel.isOpen() || conn.closing) {
+                continue;
+            }
+            if (!conn.inputClosed
+                    && conn.requests.size() < MAX_PENDING_REQUESTS) {
+                conn.key.interestOps(
+                    conn.key.interestOps() | SelectionKey.OP_READ);
+            }
+            dispatch(conn);
+        }
+    }
+
+    private void write(Connection conn) throws IOException {
+        while (!conn.outgoing.isEmpty()) {
+            ByteBuffer buf = conn.outgoing.peek();
+            conn.channel.write(buf);
+            if (buf.hasRemaining()) {
+                conn.key.interestOps(
+                    conn.key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            conn.outgoing.poll();
+        }
+        conn.lastActive = System.currentTimeMillis();
+        conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_WRITE);
+        if (conn.closing || (conn.inputClosed && conn.isDrained())) {
+            close(conn);
+        }
+    }
+
+    private void closeIdle(long now) {
+        List<Connection> idle = new ArrayList<Connection>();
+        for (SelectionKey key : selector.keys()) {
+            Connection conn = (Connection) key.attachment();
+            if (conn != null && conn.isDrained()
+                    && now - conn.lastActive > idleTimeout) {
+                idle.add(conn);
+            }
+        }
+        for (Connection conn : idle) {
+            close(conn);
+        }
+    }
+
+    private void close(Connection conn) {
+        conn.key.cancel();
+        try {
+            conn.channel.close();
+        } catch (IOException e) {
+            return;
+        }
+    }
+
+    /**
+     * Append src to dst (in write mode), growing dst if needed.
+     */
+    private static ByteBuffer append(ByteBuffer dst, ByteBuffer src) {
+        if (dst == null || dst.remaining() < src.remaining()) {
+            int used = (dst == null) ? 0 : dst.position();
+            int capacity = Math.max(used + src.remaining(),
+                (dst == null) ? 0 : 2 * dst.capacity());
+            ByteBuffer grown = ByteBuffer.allocate(capacity);
+            if (dst != null) {
+                dst.flip();
+                grown.put(dst);
+            }
+            dst = grown;
+        }
+        dst.put(src);
+        return dst;
+    }
+
+    /**
+     * Per-connection state. Everything except response and lastRequest is
+     * only touched by the selector thread; those two are written by a worker
+     * before the connection is offered to the completed queue.
+     */
+    private static class Connection {
+
+        final SocketChannel channel;
+        SelectionKey key;
+        long lastActive = System.currentTimeMillis();
+
+        /* Bytes of an incomplete request, or null. */
+        ByteBuffer partial;
+        /* Complete requests, still encoded, waiting for a worker. */
+        final Queue<byte[]> requests = new LinkedList<byte[]>();
+        final Queue<ByteBuffer> outgoing = new LinkedList<ByteBuffer>();
+
+        boolean busy;
+        boolean inputClosed;
+        boolean closing;
+
+        volatile byte[] response;
+        volatile boolean lastRequest;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /* Nothing parsed, in service or waiting to be written. */
+        boolean isDrained() {
+            return !busy && requests.isEmpty() && outgoing.isEmpty();
+        }
+    }
+
+}
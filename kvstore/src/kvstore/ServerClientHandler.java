@@ -3,10 +3,12 @@ package kvstore;
 import static kvstore.KVConstants.DEL_REQ;
 import static kvstore.KVConstants.ERROR_INVALID_FORMAT;
 import static kvstore.KVConstants.GET_REQ;
+import static kvstore.KVConstants.MDEL_REQ;
+import static kvstore.KVConstants.MGET_REQ;
+import static kvstore.KVConstants.MPUT_REQ;
 import static kvstore.KVConstants.PUT_REQ;
 import static kvstore.KVConstants.RESP;
 import static kvstore.KVConstants.SUCCESS;
-import static kvstore.TPCMaster.TIMEOUT;
 
 import java.net.Socket;
 
@@ -14,18 +16,20 @@ import java.net.Socket;
  * This NetworkHandler will asynchronously handle the socket connections.
  * Uses a thread pool to ensure that none of its methods are blocking.
  */
-public class ServerClientHandler implements NetworkHandler {
+public class ServerClientHandler implements MessageHandler {
 
     public KVServer kvServer;
     public ThreadPool threadPool;
 
     /**
-     * Constructs a ServerClientHandler with ThreadPool of a single thread.
+     * Constructs a ServerClientHandler that gives each connection its own
+     * thread. A keep-alive connection holds its thread while it sits idle,
+     * so a fixed pool would let a few such clients lock out everyone else.
      *
      * @param kvServer KVServer to carry out requests
      */
     public ServerClientHandler(KVServer kvServer) {
-        this(kvServer, 1);
+        this(kvServer, new VirtualThreadPool());
     }
 
     /**
@@ -40,6 +44,18 @@ public class ServerClientHandler implements NetworkHandler {
         threadPool = new ThreadPool(connections);
     }
 
+    /**
+     * Constructs a ServerClientHandler that runs connections on the given
+     * pool, e.g. a VirtualThreadPool to give each connection its own thread.
+     *
+     * @param kvServer KVServer to carry out requests
+     * @param threadPool ThreadPool to service connections on
+     */
+    public ServerClientHandler(KVServer kvServer, ThreadPool threadPool) {
+        this.kvServer = kvServer;
+        this.threadPool = threadPool;
+    }
+
     /**
      * Creates a job to service the request for a socket and enqueues that job
      * in the thread pool. Ignore any InterruptedExceptions.
@@ -61,36 +77,45 @@ public class ServerClientHandler implements NetworkHandler {
     }
 
     private Runnable createJob(Socket client) {
-        final Socket clientFinal = client;
-        Runnable r = new Runnable() {
-            @Override
-            public void run() {
-                KVMessage resp = new KVMessage(RESP);
-                try {
-                    KVMessage rqst = new KVMessage(clientFinal, TIMEOUT);
-                    if (GET_REQ.equals(rqst.getMsgType())) {
-                        resp.setKey(rqst.getKey());
-                        resp.setValue(kvServer.get(rqst.getKey()));
-                    } else if (PUT_REQ.equals(rqst.getMsgType())) {
-                        kvServer.put(rqst.getKey(), rqst.getValue());
-                        resp.setMessage(SUCCESS);
-                    } else if (DEL_REQ.equals(rqst.getMsgType())) {
-                        kvServer.del(rqst.getKey());
-                        resp.setMessage(SUCCESS);
-                    } else {
-                        throw new KVException(ERROR_INVALID_FORMAT);
-                    }
-                } catch (KVException e) {
-                    resp = e.getKVMessage(); 
-                }
-                try {
-                    resp.sendMessage(clientFinal);
-                } catch (KVException e) {
-                    // Wait for timeout.
-                }
+        return new ConnectionJob(client, this);
+    }
+
+    /**
+     * Carries out a single GET, PUT or DEL request, or a batch of them,
+     * against the KVServer.
+     *
+     * @param rqst KVMessage read from the client
+     * @return KVMessage response for the client
+     */
+    @Override
+    public KVMessage service(KVMessage rqst) {
+        KVMessage resp = new KVMessage(RESP);
+        try {
+            if (GET_REQ.equals(rqst.getMsgType())) {
+                resp.setKey(rqst.getKey());
+                resp.setValue(kvServer.get(rqst.getKey()));
+            } else if (PUT_REQ.equals(rqst.getMsgType())) {
+                kvServer.put(rqst.getKey(), rqst.getValue());
+                resp.setMessage(SUCCESS);
+            } else if (DEL_REQ.equals(rqst.getMsgType())) {
+                kvServer.del(rqst.getKey());
+                resp.setMessage(SUCCESS);
+            } else if (MGET_REQ.equals(rqst.getMsgType())) {
+                resp.setFoundEntries(
+                    kvServer.mget(rqst.getBatchEntries().keySet()));
+            } else if (MPUT_REQ.equals(rqst.getMsgType())) {
+                kvServer.mput(rqst.getBatchEntries());
+                resp.setMessage(SUCCESS);
+            } else if (MDEL_REQ.equals(rqst.getMsgType())) {
+                kvServer.mdel(rqst.getBatchEntries().keySet());
+                resp.setMessage(SUCCESS);
+            } else {
+                throw new KVException(ERROR_INVALID_FORMAT);
             }
-        };
-        return r;
-    } 
+        } catch (KVException e) {
+            resp = e.getKVMessage();
+        }
+        return resp;
+    }
 
 }
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
 import java.net.SocketTimeoutException;
 
 /**
@@ -18,7 +19,7 @@ public class SocketServer {
     public int port;
     public ServerSocket server;
     public NetworkHandler handler;
-    public boolean stopped = false;
+    public volatile boolean stopped = false;
 
     public static final int TIMEOUT = 100;
 
@@ -88,12 +89,20 @@ public class SocketServer {
         while (!stopped) {
             try {
                 client = server.accept();
+                setNoDelay(client);
                 handler.handle(client);
             } catch (SocketTimeoutException e) {
                 continue;
             }
         }
         server.close();
+        closeHandler();
+    }
+
+    /**
+     * Cleans up the handler once the server has stopped accepting.
+     */
+    protected void closeHandler() {
         if (handler != null) {
             if (handler instanceof ServerClientHandler) {
                 ((ServerClientHandler) handler).close();
@@ -107,6 +116,21 @@ public class SocketServer {
         }
     }
 
+    /**
+     * Disables Nagle's algorithm on an accepted socket, so that responses on
+     * keep-alive connections (small frames with no trailing EOF) go out
+     * immediately. Best effort.
+     *
+     * @param client Socket accepted from the ServerSocket
+     */
+    protected void setNoDelay(Socket client) {
+        try {
+            client.setTcpNoDelay(true);
+        } catch (SocketException e) {
+            return;
+        }
+    }
+
     /**
      * Stops the ServerSocket cleanly (does not force an exception to be thrown).
      * A call to stop() will result in the closing of the server no more than
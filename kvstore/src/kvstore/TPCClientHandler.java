@@ -3,10 +3,12 @@ package kvstore;
 import static kvstore.KVConstants.DEL_REQ;
 import static kvstore.KVConstants.ERROR_INVALID_FORMAT;
 import static kvstore.KVConstants.GET_REQ;
+import static kvstore.KVConstants.MDEL_REQ;
+import static kvstore.KVConstants.MGET_REQ;
+import static kvstore.KVConstants.MPUT_REQ;
 import static kvstore.KVConstants.PUT_REQ;
 import static kvstore.KVConstants.RESP;
 import static kvstore.KVConstants.SUCCESS;
-import static kvstore.TPCMaster.TIMEOUT;
 
 import java.net.Socket;
 
@@ -14,18 +16,19 @@ import java.net.Socket;
  * This NetworkHandler will asynchronously handle the socket connections.
  * It uses a threadPool to ensure that none of it's methods are blocking.
  */
-public class TPCClientHandler implements NetworkHandler {
+public class TPCClientHandler implements MessageHandler {
 
     public TPCMaster tpcMaster;
     public ThreadPool threadPool;
 
     /**
-     * Constructs a TPCClientHandler with ThreadPool of a single thread.
+     * Constructs a TPCClientHandler that gives each connection its own
+     * thread, as a keep-alive connection holds its thread while idle.
      *
      * @param tpcMaster TPCMaster to carry out requests
      */
     public TPCClientHandler(TPCMaster tpcMaster) {
-        this(tpcMaster, 1);
+        this(tpcMaster, new VirtualThreadPool());
     }
 
     /**
@@ -39,6 +42,18 @@ public class TPCClientHandler implements NetworkHandler {
         this.threadPool = new ThreadPool(connections);
     }
 
+    /**
+     * Constructs a TPCClientHandler that runs connections on the given pool,
+     * e.g. a VirtualThreadPool to give each connection its own thread.
+     *
+     * @param tpcMaster TPCMaster to carry out requests
+     * @param threadPool ThreadPool to service connections on
+     */
+    public TPCClientHandler(TPCMaster tpcMaster, ThreadPool threadPool) {
+        this.tpcMaster = tpcMaster;
+        this.threadPool = threadPool;
+    }
+
     /**
      * Creates a job to service the request on a socket and enqueues that job
      * in the thread pool. Ignore InterruptedExceptions.
@@ -60,36 +75,44 @@ public class TPCClientHandler implements NetworkHandler {
     }
 
     private Runnable createJob(Socket client) {
-        final Socket clientFinal = client;
-        Runnable r = new Runnable() {
-            @Override
-            public void run() {
-                KVMessage resp = new KVMessage(RESP);
-                try {
-                    KVMessage rqst = new KVMessage(clientFinal, TIMEOUT);
-                    if (GET_REQ.equals(rqst.getMsgType())) {
-                        resp.setKey(rqst.getKey());
-                        resp.setValue(tpcMaster.handleGet(rqst));
-                    } else if (PUT_REQ.equals(rqst.getMsgType())) {
-                        tpcMaster.handleTPCRequest(rqst, true);
-                        resp.setMessage(SUCCESS);
-                    } else if (DEL_REQ.equals(rqst.getMsgType())) {
-                        tpcMaster.handleTPCRequest(rqst, false);
-                        resp.setMessage(SUCCESS);
-                    } else {
-                        throw new KVException(ERROR_INVALID_FORMAT);
-                    }
-                } catch (KVException e) {
-                    resp = e.getKVMessage(); 
-                }
-                try {
-                    resp.sendMessage(clientFinal);
-                } catch (KVException e) {
-                    // Wait for timeout.
-                }
+        return new ConnectionJob(client, this);
+    }
+
+    /**
+     * Carries out a single GET, PUT or DEL request, or a batch of them,
+     * through the TPCMaster.
+     *
+     * @param rqst KVMessage read from the client
+     * @return KVMessage response for the client
+     */
+    @Override
+    public KVMessage service(KVMessage rqst) {
+        KVMessage resp = new KVMessage(RESP);
+        try {
+            if (GET_REQ.equals(rqst.getMsgType())) {
+                resp.setKey(rqst.getKey());
+                resp.setValue(tpcMaster.handleGet(rqst));
+            } else if (PUT_REQ.equals(rqst.getMsgType())) {
+                tpcMaster.handleTPCRequest(rqst, true);
+                resp.setMessage(SUCCESS);
+            } else if (DEL_REQ.equals(rqst.getMsgType())) {
+                tpcMaster.handleTPCRequest(rqst, false);
+                resp.setMessage(SUCCESS);
+            } else if (MGET_REQ.equals(rqst.getMsgType())) {
+                resp.setFoundEntries(tpcMaster.handleMultiGet(rqst));
+            } else if (MPUT_REQ.equals(rqst.getMsgType())) {
+                tpcMaster.handleMultiTPCRequest(rqst, true);
+                resp.setMessage(SUCCESS);
+            } else if (MDEL_REQ.equals(rqst.getMsgType())) {
+                tpcMaster.handleMultiTPCRequest(rqst, false);
+                resp.setMessage(SUCCESS);
+            } else {
+                throw new KVException(ERROR_INVALID_FORMAT);
             }
-        };
-        return r;
+        } catch (KVException e) {
+            resp = e.getKVMessage();
+        }
+        return resp;
     }
 
 }
@@ -3,22 +3,73 @@ package kvstore;
 import static kvstore.KVConstants.ABORT;
 import static kvstore.KVConstants.COMMIT;
 import static kvstore.KVConstants.DEL_REQ;
+import static kvstore.KVConstants.ERROR_COULD_NOT_READ_SNAPSHOT;
 import static kvstore.KVConstants.GET_REQ;
+import static kvstore.KVConstants.MDEL_REQ;
+import static kvstore.KVConstants.MPUT_REQ;
 import static kvstore.KVConstants.PUT_REQ;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.zip.CRC32;
 
+/**
+ * The slave's write-ahead log of 2PC messages from the master.
+ *
+ * On disk the log is a 4-byte magic number followed by records, each an int
+ * payload length, an int CRC32 of the payload, and the payload, which is
+ * the entry's KVMessage binary frame. Entries are only ever appended.
+ * appendAndFlush() queues its record and returns once the record has been
+ * forced to disk; concurrent callers share a single write and fsync (group
+ * commit), so the cost of an append does not depend on the size of the log.
+ *
+ * On load, a record that is cut short or fails its checksum marks the end of
+ * the log: it was being written when the slave died, and is truncated away.
+ * A log written by the older format, a serialized ArrayList of KVMessages,
+ * is read and rewritten in this one.
+ *
+ * Every checkpointInterval entries the log takes a checkpoint: it writes a
+ * snapshot of the KVServer's store next to the log, then rewrites the log
+ * keeping only the entries from the last PUT or DEL on, which may not have
+ * been resolved or applied yet. Recovery loads the snapshot and replays
+ * that tail, so its cost depends on the writes since the last checkpoint
+ * rather than on the whole history. Replay is idempotent, so an entry that
+ * is both in the snapshot and the tail, or a crash between writing the
+ * snapshot and rewriting the log, is harmless.
+ */
 public class TPCLog {
 
+    /* "TPL1", first four bytes of a log file. */
+    static final int LOG_MAGIC = 0x54504C31;
+
+    /* Bytes before each record's payload: its length and checksum. */
+    static final int RECORD_HEADER_SIZE = 8;
+
+    /** Default number of entries appended between checkpoints. */
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 1000;
+
     private String logPath;
+    private String snapshotPath;
+    private int checkpointInterval;
+    private int sinceCheckpoint;             /* Entries since last checkpoint. */
     private KVServer kvServer;
     private ArrayList<KVMessage> entries;
 
+    private RandomAccessFile logFile;        /* Null until first opened. */
+    private ArrayList<byte[]> pending = new ArrayList<byte[]>();
+    private long appended;                   /* Records queued so far. */
+    private long durable;                    /* Records forced to disk. */
+    private boolean flushing;                /* A batch is being written. */
+    private boolean checkpointing;           /* A checkpoint is under way. */
+
     /**
      * Constructs a TPCLog to log KVMessages from the master.
      *
@@ -26,21 +77,48 @@ public class TPCLog {
      * @param kvServer reference to the KVServer of this slave
      */
     public TPCLog(String logPath, KVServer kvServer) throws KVException {
+        this(logPath, kvServer, DEFAULT_CHECKPOINT_INTERVAL);
+    }
+
+    /**
+     * Constructs a TPCLog to log KVMessages from the master, checkpointing
+     * every checkpointInterval entries.
+     *
+     * @param logPath path to location of log file for this server
+     * @param kvServer reference to the KVServer of this slave
+     * @param checkpointInterval entries between checkpoints, or 0 to only
+     *        checkpoint when checkpoint() is called
+     */
+    public TPCLog(String logPath, KVServer kvServer, int checkpointInterval)
+            throws KVException {
         this.logPath = logPath;
+        this.snapshotPath = logPath + ".snapshot";
+        this.checkpointInterval = checkpointInterval;
         this.kvServer = kvServer;
         this.entries = new ArrayList<KVMessage>();
         rebuildServer();
     }
 
     /**
-     * Add an entry to the log and flush the entire log to disk.
-     * You do not have to efficiently append entries onto the log stored on disk.
+     * Add an entry to the log and wait until it is on disk. Entries appended
+     * concurrently are written and forced together.
      *
      * @param entry KVMessage to write to the log
      */
     public void appendAndFlush(KVMessage entry) {
-        entries.add(entry);
-        flushToDisk();
+        long seq;
+        boolean checkpointDue;
+        synchronized (this) {
+            entries.add(entry);
+            pending.add(encodeRecord(entry));
+            seq = ++appended;
+            checkpointDue = checkpointInterval > 0 &&
+                ++sinceCheckpoint >= checkpointInterval;
+        }
+        flushThrough(seq);
+        if (checkpointDue) {
+            checkpoint();
+        }
     }
 
     /**
@@ -48,7 +126,7 @@ public class TPCLog {
      *
      * @return last entry put into the log
      */
-    public KVMessage getLastEntry() {
+    public synchronized KVMessage getLastEntry() {
         if (entries.size() > 0) {
             return entries.get(entries.size() - 1);
         }
@@ -56,62 +134,319 @@ public class TPCLog {
     }
 
     /**
-     * Load log from persistent storage at logPath.
+     * Load log from persistent storage at logPath, truncating any torn
+     * record at its end.
      */
-    @SuppressWarnings("unchecked")
-    public void loadFromDisk() {
-        ObjectInputStream inputStream = null;
-
+    public synchronized void loadFromDisk() {
+        entries = new ArrayList<KVMessage>();
+        pending = new ArrayList<byte[]>();
+        appended = durable = 0;
+        sinceCheckpoint = 0;
+        closeFile();
+        if (!new File(logPath).isFile()) {
+            return;
+        }
         try {
-            inputStream = new ObjectInputStream(new FileInputStream(logPath));
-            entries = (ArrayList<KVMessage>) inputStream.readObject();
-        } catch (Exception e) {
-        } finally {
-            // if log did not exist, creating empty entries list
-            if (entries == null) {
-                entries = new ArrayList<KVMessage>();
+            logFile = new RandomAccessFile(logPath, "rw");
+            byte[] data = new byte[(int) logFile.length()];
+            logFile.readFully(data);
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            if (data.length >= 4 && buf.getInt(0) == LOG_MAGIC) {
+                buf.position(4);
+                while (buf.remaining() > 0) {
+                    KVMessage entry = decodeRecord(buf);
+                    if (entry == null) {
+                        break;
+                    }
+                    entries.add(entry);
+                }
+                logFile.setLength(buf.position());
+                logFile.seek(buf.position());
+            } else {
+                loadLegacy(data);
             }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-            try {
-                if (inputStream != null) {
-                    inputStream.close();
+    /**
+     * Writes any queued entries to persistent storage at logPath and waits
+     * until they are on disk.
+     */
+    public void flushToDisk() {
+        long seq;
+        synchronized (this) {
+            seq = appended;
+        }
+        flushThrough(seq);
+    }
+
+    /**
+     * Snapshots the KVServer's store and truncates the log to the entries
+     * that the snapshot may not reflect. The tail to keep is fixed first;
+     * the snapshot is then written without holding the log, so appends
+     * carry on meanwhile, and the entries they add are kept along with the
+     * tail when the log is rewritten. Returns at once if another checkpoint
+     * is in progress. This method is best effort: if the snapshot cannot be
+     * written, the log is left whole.
+     */
+    public void checkpoint() {
+        ArrayList<KVMessage> base;
+        int tailStart;
+        synchronized (this) {
+            if (checkpointing) {
+                return;
+            }
+            checkpointing = true;
+            sinceCheckpoint = 0;
+            base = entries;
+            tailStart = base.size();
+            for (int i = base.size() - 1; i >= 0; i--) {
+                if (isAction(base.get(i).getMsgType())) {
+                    tailStart = i;
+                    break;
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
+            }
+        }
+        boolean interrupted = false;
+        try {
+            kvServer.writeSnapshot(snapshotPath);
+            synchronized (this) {
+                while (flushing) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (entries == base) {
+                    ArrayList<KVMessage> tail = new ArrayList<KVMessage>(
+                        entries.subList(tailStart, entries.size()));
+                    rewriteLog(tail);
+                    /* The rewritten log holds every queued record too. */
+                    pending = new ArrayList<byte[]>();
+                    durable = appended;
+                    entries = tail;
+                    notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            synchronized (this) {
+                checkpointing = false;
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
             }
         }
     }
 
     /**
-     * Writes the log to persistent storage at logPath.
+     * Releases the log file. Later appends reopen it.
      */
-    public void flushToDisk() {
-        ObjectOutputStream outputStream = null;
+    public synchronized void close() {
+        closeFile();
+    }
 
+    /**
+     * Returns once the first seq records are on disk. If no batch is being
+     * written, this thread writes everything queued so far as one batch;
+     * otherwise it waits for the current batch, whose writer or a later one
+     * will pick up its record.
+     */
+    private void flushThrough(long seq) {
+        ArrayList<byte[]> batch;
+        long batchEnd;
+        boolean interrupted = false;
+        synchronized (this) {
+            while (flushing && durable < seq) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (durable >= seq) {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                return;
+            }
+            flushing = true;
+            batch = pending;
+            pending = new ArrayList<byte[]>();
+            batchEnd = appended;
+        }
         try {
-            outputStream = new ObjectOutputStream(new FileOutputStream(logPath));
-            outputStream.writeObject(entries);
-        } catch (Exception e) {
+            writeBatch(batch);
+        } catch (IOException e) {
             e.printStackTrace();
         } finally {
+            synchronized (this) {
+                durable = batchEnd;
+                flushing = false;
+                notifyAll();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** Only ever called by the one thread with flushing set. */
+    private void writeBatch(ArrayList<byte[]> batch) throws IOException {
+        int size = 0;
+        for (byte[] record : batch) {
+            size += record.length;
+        }
+        RandomAccessFile file = openFile();
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        for (byte[] record : batch) {
+            buf.put(record);
+        }
+        buf.flip();
+        FileChannel channel = file.getChannel();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        channel.force(false);
+    }
+
+    private synchronized RandomAccessFile openFile() throws IOException {
+        if (logFile == null) {
+            logFile = new RandomAccessFile(logPath, "rw");
+            if (logFile.length() < 4) {
+                logFile.setLength(0);
+                logFile.writeInt(LOG_MAGIC);
+            }
+            logFile.seek(logFile.length());
+        }
+        return logFile;
+    }
+
+    private void closeFile() {
+        if (logFile != null) {
             try {
-                if (outputStream != null) {
-                    outputStream.flush();
-                    outputStream.close();
-                }
+                logFile.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
+            logFile = null;
+        }
+    }
+
+    /**
+     * Replaces the log file with one holding just the given entries, by
+     * writing it under a temporary name and renaming it into place.
+     */
+    private void rewriteLog(ArrayList<KVMessage> tail) throws IOException {
+        File tmp = new File(logPath + ".tmp");
+        RandomAccessFile file = new RandomAccessFile(tmp, "rw");
+        try {
+            file.setLength(0);
+            file.writeInt(LOG_MAGIC);
+            for (KVMessage entry : tail) {
+                file.write(encodeRecord(entry));
+            }
+            file.getChannel().force(false);
+        } finally {
+            file.close();
+        }
+        closeFile();
+        Files.move(tmp.toPath(), new File(logPath).toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static boolean isAction(String msgType) {
+        return PUT_REQ.equals(msgType) || DEL_REQ.equals(msgType) ||
+            GET_REQ.equals(msgType) || MPUT_REQ.equals(msgType) ||
+            MDEL_REQ.equals(msgType);
+    }
+
+    /**
+     * Reads a log written as a serialized ArrayList and rewrites the file
+     * in the record format. An unreadable log is treated as empty, as the
+     * old format did.
+     */
+    @SuppressWarnings("unchecked")
+    private void loadLegacy(byte[] data) throws IOException {
+        if (data.length > 0) {
+            try {
+                ObjectInputStream in =
+                    new ObjectInputStream(new ByteArrayInputStream(data));
+                entries = (ArrayList<KVMessage>) in.readObject();
+                in.close();
+            } catch (Exception e) {
+                entries = new ArrayList<KVMessage>();
+            }
+        }
+        logFile.setLength(0);
+        logFile.writeInt(LOG_MAGIC);
+        for (KVMessage entry : entries) {
+            logFile.write(encodeRecord(entry));
+        }
+        logFile.getChannel().force(false);
+    }
+
+    private static byte[] encodeRecord(KVMessage entry) {
+        byte[] payload = entry.toBinary();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+        record.putInt(payload.length);
+        record.putInt((int) crc.getValue());
+        record.put(payload);
+        return record.array();
+    }
+
+    /**
+     * Decodes the record at buf's position and advances past it, or returns
+     * null, leaving the position alone, if the record is torn or corrupt.
+     */
+    private static KVMessage decodeRecord(ByteBuffer buf) {
+        int start = buf.position();
+        if (buf.remaining() < RECORD_HEADER_SIZE) {
+            return null;
+        }
+        int length = buf.getInt(start);
+        int checksum = buf.getInt(start + 4);
+        if (length < 0 || length > buf.remaining() - RECORD_HEADER_SIZE) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), start + RECORD_HEADER_SIZE, length);
+        if ((int) crc.getValue() != checksum) {
+            return null;
+        }
+        try {
+            KVMessage entry = KVMessage.fromBytes(buf.array(),
+                start + RECORD_HEADER_SIZE, length);
+            buf.position(start + RECORD_HEADER_SIZE + length);
+            return entry;
+        } catch (KVException e) {
+            return null;
         }
     }
 
     /**
-     * Load log and rebuild KVServer by iterating over log entries. You do not
-     * need to restore the previous cache state (i.e. ignore GETS).
+     * Load the latest snapshot, if any, and the log, and rebuild KVServer by
+     * iterating over log entries. You do not need to restore the previous
+     * cache state (i.e. ignore GETS).
      *
-     * @throws KVException if an error occurs in KVServer (though we expect none)
+     * @throws KVException with ERROR_COULD_NOT_READ_SNAPSHOT if a snapshot
+     *         exists but is unreadable, or if an error occurs in KVServer
+     *         (though we expect none)
      */
     public void rebuildServer() throws KVException {
+        if (new File(snapshotPath).isFile()) {
+            try {
+                kvServer.readSnapshot(snapshotPath);
+            } catch (IOException e) {
+                throw new KVException(ERROR_COULD_NOT_READ_SNAPSHOT);
+            }
+        }
         loadFromDisk();
 
         KVMessage lastAction = null;
@@ -119,9 +454,7 @@ public class TPCLog {
 
         for (KVMessage entry : entries) {
             currMsgType = entry.getMsgType();
-            if (PUT_REQ.equals(currMsgType) || 
-                DEL_REQ.equals(currMsgType) ||
-                GET_REQ.equals(currMsgType)) {
+            if (isAction(currMsgType)) {
                 lastAction = entry;
             } else if (ABORT.equals(currMsgType)) {
                 lastAction = null;
@@ -129,8 +462,18 @@ public class TPCLog {
                 if (lastAction != null) {
                     if (PUT_REQ.equals(lastAction.getMsgType())) {
                         kvServer.put(lastAction.getKey(), lastAction.getValue());
-                    } else if (DEL_REQ.equals(lastAction.getMsgType())) {
+                    } else if (DEL_REQ.equals(lastAction.getMsgType()) &&
+                               kvServer.hasKey(lastAction.getKey())) {
+                        /* May already be gone if the snapshot saw it. */
                         kvServer.del(lastAction.getKey());
+                    } else if (MPUT_REQ.equals(lastAction.getMsgType())) {
+                        kvServer.mput(lastAction.getEntries());
+                    } else if (MDEL_REQ.equals(lastAction.getMsgType())) {
+                        for (String key : lastAction.getEntries().keySet()) {
+                            if (kvServer.hasKey(key)) {
+                                kvServer.del(key);
+                            }
+                        }
                     }
                     lastAction = null;
                 }
@@ -7,14 +7,29 @@ import static kvstore.KVConstants.DEL_REQ;
 import static kvstore.KVConstants.ERROR_INVALID_FORMAT;
 import static kvstore.KVConstants.ERROR_INVALID_KEY;
 import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
+import static kvstore.KVConstants.ERROR_SOCKET_TIMEOUT;
+import static kvstore.KVConstants.MDEL_REQ;
+import static kvstore.KVConstants.MGET_REQ;
+import static kvstore.KVConstants.MPUT_REQ;
 import static kvstore.KVConstants.PUT_REQ;
 import static kvstore.KVConstants.READY;
 import static kvstore.KVConstants.RESP;
 
+import java.io.IOException;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class TPCMaster {
 
@@ -23,6 +38,29 @@ public class TPCMaster {
 
     public static final int TIMEOUT = 3000;
 
+    /* Hedge delay, in ms, until enough replica GET latencies are recorded. */
+    static final long INITIAL_HEDGE_DELAY = 100;
+
+    /* Bounds on the hedge delay, in ms. */
+    static final long MIN_HEDGE_DELAY = 2;
+    static final long MAX_HEDGE_DELAY = TIMEOUT;
+
+    /* Ring points per slave unless setVirtualNodes says otherwise. A single
+     * point, at the slave's own ID, keeps the placement of the spec. */
+    public static final int DEFAULT_VIRTUAL_NODES = 1;
+
+    /* Stripes of writeStamps; keys are mapped onto them by hash. */
+    private static final int WRITE_STAMP_STRIPES = 64;
+
+    /* Wire format used for messages sent to slaves. */
+    private volatile KVMessage.Format slaveFormat = KVMessage.Format.XML;
+
+    /* Idle keep-alive connections kept per slave; 0 disables pooling. */
+    private volatile int slavePoolSize = 0;
+
+    /* Connections to each slave in use at once. */
+    private int slaveConnectionLimit = TPCSlaveInfo.DEFAULT_MAX_ACTIVE;
+
     /**
      * Keep track of number of registered slaves. Modifications to numRegistered
      * are locked by numRegisteredLock.
@@ -50,6 +88,57 @@ public class TPCMaster {
      */
     private Map<TPCSlaveInfo, SlaveNode> slaveNodeMap;
 
+    /**
+     * Maps slave ID to its SlaveNode, for transactions to find their slaves
+     * without locking. A slave keeps its SlaveNode when it re-registers, so
+     * an ID read from any ring snapshot still finds the slave's node.
+     */
+    private ConcurrentHashMap<Long, SlaveNode> slaveNodes;
+
+    /**
+     * Sorted snapshot of the registered slaves' ring points, used for all
+     * replica lookups. Rebuilt and replaced whenever a slave registers, so
+     * lookups read it without locking.
+     */
+    private volatile HashRing ring;
+    private int virtualNodes = DEFAULT_VIRTUAL_NODES;
+    private volatile KeyHash keyHash = KeyHash.HASH_TO_64BIT;
+
+    /**
+     * One lock per slave ID, held for the whole of each transaction that
+     * uses the slave. A slave commits whatever it last logged, so it can only
+     * take part in one transaction at a time; transactions on disjoint
+     * replica pairs run in parallel. Keyed by ID so that a lock outlives the
+     * slave's re-registration.
+     */
+    private ConcurrentHashMap<Long, Lock> slaveLocks;
+
+    /* Runs the second replica's half of each phase alongside the first's,
+     * and replica GETs. */
+    private ThreadPool replicaPool;
+
+    /**
+     * Bumped, under the key's cache set lock, whenever a committed write
+     * updates masterCache. handleGet reads from replicas without the set
+     * lock, and only fills the cache if the key's stripe is unchanged, so
+     * a read that raced a write cannot cache the old value.
+     */
+    private AtomicLongArray writeStamps;
+
+    /* Recent replica GET latencies, for choosing the hedge delay. */
+    private LatencyWindow getLatencies;
+
+    /* The replica fetch under way for each key that missed in masterCache.
+     * Concurrent misses on a key share one fetch instead of each asking
+     * the replicas. */
+    private ConcurrentHashMap<String, Flight> inFlight;
+
+    private Metrics metrics;
+    private LatencyHistogram tpcLatency;
+    private LatencyHistogram phase1Latency;
+    private LatencyHistogram phase2Latency;
+    private LatencyHistogram getLatency;
+
     /**
      * Creates TPCMaster, expecting numSlaves slave servers to eventually register
      *
@@ -74,8 +163,50 @@ public class TPCMaster {
         this.slaveList = slaveList;
         this.slaveIdMap = slaveIdMap;
         this.slaveNodeMap = slaveNodeMap;
+        this.slaveNodes = new ConcurrentHashMap<Long, SlaveNode>();
         this.numRegistered = 0;
         this.numRegisteredLock = new Object();
+        this.slaveLocks = new ConcurrentHashMap<Long, Lock>();
+        this.replicaPool = new VirtualThreadPool();
+        this.writeStamps = new AtomicLongArray(WRITE_STAMP_STRIPES);
+        this.getLatencies = new LatencyWindow();
+        this.inFlight = new ConcurrentHashMap<String, Flight>();
+        this.ring = new HashRing(slaveIdMap.values(), virtualNodes);
+        this.metrics = new Metrics("master");
+        this.tpcLatency = metrics.histogram("tpc");
+        this.phase1Latency = metrics.histogram("phase1");
+        this.phase2Latency = metrics.histogram("phase2");
+        this.getLatency = metrics.histogram("get");
+        metrics.gauge("replicaPool.queue", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return replicaPool.getQueueDepth();
+            }
+        });
+        metrics.gauge("cache.hits", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return masterCache.getStats().getHits();
+            }
+        });
+        metrics.gauge("cache.misses", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return masterCache.getStats().getMisses();
+            }
+        });
+    }
+
+    /**
+     * Latencies of whole transactions (tpc, from taking the slave locks to
+     * the end of phase 2, once per batch group), of each phase, and of GETs
+     * (get, from the cache lookup on), plus the replica pool's queue depth
+     * and masterCache's hit and miss totals.
+     *
+     * @return this master's metrics
+     */
+    public Metrics getMetrics() {
+        return metrics;
     }
 
     /**
@@ -85,7 +216,7 @@ public class TPCMaster {
      *
      * @param slave the slaveInfo to be registered
      */
-    public void registerSlave(TPCSlaveInfo slave) {
+    public synchronized void registerSlave(TPCSlaveInfo slave) {
         if (slave == null) {
             return;
         } else if (slaveIdMap.containsKey(slave.getSlaveID())) {
@@ -93,16 +224,23 @@ public class TPCMaster {
             TPCSlaveInfo oldInfo = slaveIdMap.get(slave.getSlaveID());
             SlaveNode node = slaveNodeMap.get(oldInfo);
             node.setInfo(slave);
+            slave.setMaxActive(slaveConnectionLimit);
             slaveIdMap.put(slave.getSlaveID(), slave);
             slaveNodeMap.remove(oldInfo);
             slaveNodeMap.put(slave, node);
+            oldInfo.closeIdleHosts();
+            ring = new HashRing(slaveIdMap.values(), virtualNodes);
         } else if (slaveList.size() >= numSlaves) {
             // Wait for request to time out.
             return;
         } else {
             SlaveNode slaveNode = slaveList.addSlave(slave);
+            slave.setMaxActive(slaveConnectionLimit);
             slaveIdMap.put(slave.getSlaveID(), slave);
             slaveNodeMap.put(slave, slaveNode);
+            slaveNodes.put(slave.getSlaveID(), slaveNode);
+
+            ring = new HashRing(slaveIdMap.values(), virtualNodes);
 
             synchronized (numRegisteredLock) {
                 numRegistered++;
@@ -111,6 +249,33 @@ public class TPCMaster {
         }
     }
 
+    /**
+     * Sets how many points on the hash ring each slave owns. With one, each
+     * slave sits only at its own ID, and slaves with clustered IDs get very
+     * uneven shares of the keys; more points spread each slave's share over
+     * the ring so that load evens out. Changing this moves keys between
+     * slaves, so it should only be set before any data is written.
+     *
+     * @param virtualNodes ring points per slave, at least 1
+     */
+    public synchronized void setVirtualNodes(int virtualNodes) {
+        this.virtualNodes = Math.max(1, virtualNodes);
+        ring = new HashRing(slaveIdMap.values(), this.virtualNodes);
+    }
+
+    /**
+     * Sets the hash that places keys on the ring. The default, hashTo64bit,
+     * puts keys that differ only in their last character next to each other,
+     * so runs of such keys all land on one slave; an XXHash64 scatters them.
+     * Changing this moves keys between slaves, so it should only be set
+     * before any data is written.
+     *
+     * @param keyHash the hash that places keys on the ring
+     */
+    public void setKeyHash(KeyHash keyHash) {
+        this.keyHash = keyHash;
+    }
+
     /**
      * Converts Strings to 64-bit longs. Borrowed from http://goo.gl/le1o0W,
      * adapted from String.hashCode().
@@ -158,59 +323,81 @@ public class TPCMaster {
      * @return SlaveInfo of first replica
      */
     public TPCSlaveInfo findFirstReplica(String key) {
-        if (slaveList.size() == 0 || key == null) {
+        if (key == null) {
             return null;
         }
-        return findSlaveAfterLong(hashTo64bit(key));
+        return findSlaveAfterLong(keyHash.hash(key));
     }
 
     /**
-     * Return the slave whose id is the first after n.
+     * Return the slave owning the first ring point at or after n: with one
+     * virtual node per slave, the slave whose id is the first after n.
+     * Binary searches the ring, so takes O(log n) in the number of points.
      *
      * @param n The number that we are performing unsigned comparisons with
-     * @return The requested SlaveTPCSlaveInfo (possibly at the front of slaveList)
+     * @return The requested SlaveTPCSlaveInfo (possibly the first on the ring)
      */
     TPCSlaveInfo findSlaveAfterLong(long n) {
-        long currId;
-        SlaveNode currNode = slaveList.getFront();
-        while (!slaveList.isHead(currNode)) {
-            currId = currNode.getInfo().getSlaveID();
-            if (isLessThanEqualUnsigned(n, currId)) {
-                return currNode.getInfo();
-            }
-            currNode = currNode.getNext();
-        }
-        return slaveList.getFront().getInfo();
+        return ring.ownerOf(n);
     }
 
     /**
-     * Find the successor of firstReplica.
+     * Find the successor of firstReplica: the registered slave with the
+     * next ID after it, wrapping around.
      *
      * @param firstReplica SlaveInfo of primary replica
      * @return SlaveInfo of successor replica
      */
     public TPCSlaveInfo findSuccessor(TPCSlaveInfo firstReplica) {
-        if (slaveList.size() == 0 || firstReplica == null) {
+        if (firstReplica == null) {
             return null;
         }
-        SlaveNode firstNode = slaveNodeMap.get(firstReplica);
-        if (firstNode == null) {
-            /* firstReplica is not in the list of registered slaves. */
-            SlaveNode currNode = slaveList.getFront();
-            Long currId,
-                 targetId = firstReplica.getSlaveID();
-            while (!slaveList.isHead(currNode)) {
-                currId = currNode.getInfo().getSlaveID();
-                if (isLessThanEqualUnsigned(targetId, currId)) {
-                    return currNode.getInfo();
-                }
-                currNode = currNode.getNext();
+        return ring.successorOf(firstReplica.getSlaveID());
+    }
+
+    /**
+     * Selects the wire format used when talking to slaves. Slaves answer in
+     * the format of the request, so this only needs to be set on the master.
+     *
+     * @param format wire format for phase 1, phase 2 and GET messages
+     */
+    public void setSlaveFormat(KVMessage.Format format) {
+        this.slaveFormat = format;
+    }
+
+    /**
+     * Sets how many idle connections to keep open to each slave for reuse by
+     * later phase 1, phase 2 and GET messages. Pooling needs keep-alive, so
+     * it only applies while the slave format is BINARY. Each open connection
+     * holds one of the slave's worker threads, so slaves should be able to
+     * serve more connections at once than the pool keeps idle. 0, the
+     * default, opens a new connection for every message.
+     *
+     * @param poolSize idle connections to keep per slave
+     */
+    public void setSlavePoolSize(int poolSize) {
+        this.slavePoolSize = Math.max(0, poolSize);
+        if (poolSize <= 0) {
+            for (TPCSlaveInfo slave : slaveIdMap.values()) {
+                slave.closeIdleHosts();
             }
-        } else if (firstNode.getNext() != null &&
-                   firstNode.getNext().getInfo() != null) {
-            return firstNode.getNext().getInfo();
         }
-        return slaveList.getFront().getInfo();        
+    }
+
+    /**
+     * Sets how many connections to each slave may be in use at once, idle
+     * pooled ones aside. A message to a slave with that many in use waits
+     * for one to free up, and fails with ERROR_SOCKET_TIMEOUT after TIMEOUT
+     * ms. Slaves should be able to serve this many connections, plus the
+     * idle pool, at once.
+     *
+     * @param limit connections in use per slave, at least 1
+     */
+    public synchronized void setSlaveConnectionLimit(int limit) {
+        slaveConnectionLimit = Math.max(1, limit);
+        for (TPCSlaveInfo slave : slaveIdMap.values()) {
+            slave.setMaxActive(slaveConnectionLimit);
+        }
     }
 
     /**
@@ -233,13 +420,21 @@ public class TPCMaster {
      * contains the bulk of the two-phase commit logic. It performs phase 1
      * and phase 2 with appropriate timeouts and retries.
      *
+     * Each phase talks to both replicas at once, so its latency is that of
+     * the slower replica rather than the sum of both. Votes are gathered
+     * with a deadline of TIMEOUT: a replica that has not voted by then
+     * counts as voting to abort, and gets the abort once its vote request
+     * has finished. Transactions lock the two slaves they use, in ascending
+     * order of slave ID, so that transactions on disjoint replica pairs
+     * proceed in parallel.
+     *
      * See the spec for details on the expected behavior.
      *
      * @param msg KVMessage corresponding to the transaction for this TPC request
      * @param isPutReq boolean to distinguish put and del requests
      * @throws KVException if the operation cannot be carried out for any reason
      */
-    public synchronized void handleTPCRequest(KVMessage msg, boolean isPutReq)
+    public void handleTPCRequest(KVMessage msg, boolean isPutReq)
             throws KVException {
 
         /* Wait until numSlave slaves have been registered before performing
@@ -266,81 +461,189 @@ public class TPCMaster {
 
         /* Find the two slaves to be used for this TPC transaction. */
         SlaveNode[] slaves = new SlaveNode[2];
-        slaves[0] = slaveNodeMap.get(findFirstReplica(key));
-        slaves[1] = slaveNodeMap.get(findSuccessor(slaves[0].getInfo()));
+        TPCSlaveInfo first = findFirstReplica(key);
+        slaves[0] = slaveNodes.get(first.getSlaveID());
+        slaves[1] = slaveNodes.get(findSuccessor(first).getSlaveID());
+        msg.setFormat(slaveFormat);
 
-        TPCSlaveInfo currSlave = null;
-        Socket currSocket = null;
-        KVMessage phase1Resp = null;
-        boolean globalAbort = false;
-        String abortMessage = null;
+        long start = System.nanoTime();
+        Lock[] locks = lockSlaves(slaves);
+        try {
+            runTPC(msg, isPutReq, slaves);
+        } finally {
+            for (int i = locks.length - 1; i >= 0; i--) {
+                locks[i].unlock();
+            }
+            tpcLatency.recordSince(start);
+        }
+    }
+
+    /**
+     * Perform a batch PUT or DEL as one 2PC transaction per replica group:
+     * the entries are split by the slave that is their first replica, and
+     * each group's transaction runs on that slave and its successor, in
+     * parallel with the other groups'. A group too large for one message
+     * runs as several transactions. Each transaction commits or aborts on
+     * its own, so when one fails the others may still have committed.
+     *
+     * @param msg MPUT or MDEL request whose entries make up the batch
+     * @param isPutReq boolean to distinguish put and del requests
+     * @throws KVException with the error of a failed group, if any
+     */
+    public void handleMultiTPCRequest(KVMessage msg, boolean isPutReq)
+            throws KVException {
+
+        /* Wait until numSlave slaves have been registered before performing
+         * any TPC operations. */
+        synchronized (numRegisteredLock) {
+            while (numRegistered < numSlaves) {
+                try {
+                    numRegisteredLock.wait();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+        }
+
+        /* Validate the batch and split it into groups. */
+        String msgType = isPutReq ? MPUT_REQ : MDEL_REQ;
+        if (!msgType.equals(msg.getMsgType()) || msg.getKey() != null ||
+                msg.getValue() != null || msg.getMessage() != null) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        }
+        Map<TPCSlaveInfo, Map<String, String>> groups =
+            new LinkedHashMap<TPCSlaveInfo, Map<String, String>>();
+        for (Map.Entry<String, String> entry :
+                msg.getBatchEntries().entrySet()) {
+            String key = entry.getKey();
+            if (key == null || key.length() == 0) {
+                throw new KVException(ERROR_INVALID_KEY);
+            } else if (isPutReq != (entry.getValue() != null)) {
+                throw new KVException(ERROR_INVALID_FORMAT);
+            }
+            TPCSlaveInfo first = findFirstReplica(key);
+            Map<String, String> group = groups.get(first);
+            if (group == null) {
+                group = new LinkedHashMap<String, String>();
+                groups.put(first, group);
+            }
+            group.put(key, entry.getValue());
+        }
+
+        List<GroupCall> calls = new ArrayList<GroupCall>(groups.size());
+        for (Map.Entry<TPCSlaveInfo, Map<String, String>> group :
+                groups.entrySet()) {
+            SlaveNode[] slaves = new SlaveNode[2];
+            slaves[0] = slaveNodes.get(group.getKey().getSlaveID());
+            slaves[1] = slaveNodes.get(
+                findSuccessor(group.getKey()).getSlaveID());
+            for (Map<String, String> run :
+                    KVMessage.splitBatch(group.getValue())) {
+                KVMessage groupMsg = new KVMessage(msgType);
+                groupMsg.setEntries(run);
+                groupMsg.setFormat(slaveFormat);
+                calls.add(new GroupCall(groupMsg, isPutReq, slaves));
+            }
+        }
+        runOnReplicas(calls.toArray(new GroupCall[calls.size()]));
+        for (GroupCall call : calls) {
+            if (call.error != null) {
+                throw call.error;
+            }
+        }
+    }
+
+    /**
+     * Runs the transaction for one replica group of a batch, recording its
+     * error rather than throwing it.
+     */
+    private class GroupCall implements Runnable {
+        private final KVMessage msg;
+        private final boolean isPutReq;
+        private final SlaveNode[] slaves;
+        KVException error;
+
+        GroupCall(KVMessage msg, boolean isPutReq, SlaveNode[] slaves) {
+            this.msg = msg;
+            this.isPutReq = isPutReq;
+            this.slaves = slaves;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            Lock[] locks = lockSlaves(slaves);
+            try {
+                runTPC(msg, isPutReq, slaves);
+            } catch (KVException e) {
+                error = e;
+            } finally {
+                for (int i = locks.length - 1; i >= 0; i--) {
+                    locks[i].unlock();
+                }
+                tpcLatency.recordSince(start);
+            }
+        }
+    }
+
+    /**
+     * Runs both phases of a transaction whose slaves are already locked.
+     */
+    private void runTPC(KVMessage msg, boolean isPutReq, SlaveNode[] slaves)
+            throws KVException {
 
         /* [PHASE 1] Send out vote request to each slave and wait for each of
          * their responses. Determine whether to perform a global commit or a
          * global abort. */
-        for (SlaveNode currNode : slaves) {
-            if (currNode == null) {
+        long phase1Start = System.nanoTime();
+        Phase1Call[] votes = new Phase1Call[slaves.length];
+        for (int i = 0; i < slaves.length; i++) {
+            votes[i] = new Phase1Call(slaves[i], msg, slavePoolSize);
+            submit(votes[i]);
+        }
+
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        boolean globalAbort = false;
+        String abortMessage = null;
+        for (Phase1Call vote : votes) {
+            if (!awaitUntil(vote.done, deadline)) {
                 globalAbort = true;
-                continue;
-            }
-            try {
-                currSlave = currNode.getInfo();
-                currSocket = currSlave.connectHost(TIMEOUT);
-                msg.sendMessage(currSocket);
-                phase1Resp = new KVMessage(currSocket, TIMEOUT);
-                if (!READY.equals(phase1Resp.getMsgType())) {
-                    globalAbort = true;
-                    abortMessage = phase1Resp.getMessage();
+                if (abortMessage == null) {
+                    abortMessage = ERROR_SOCKET_TIMEOUT;
                 }
-            } catch (KVException e) {
+            } else if (!vote.ready) {
                 globalAbort = true;
-                abortMessage = e.getKVMessage().getMessage();
-            } catch (Exception e) {
-                globalAbort = true;
-            } finally {
-                if (currSlave != null) {
-                    currSlave.closeHost(currSocket);
+                if (abortMessage == null) {
+                    abortMessage = vote.abortMessage;
                 }
             }
         }
-
-        KVMessage phase2Resp = null;
-        KVMessage phase2Msg = null;
-        boolean invalidFormat = false;
+        phase1Latency.recordSince(phase1Start);
 
         /* [PHASE 2] Send each slave the phase 2 message (either commit or
          * abort). Continue sending the message in TIMEOUT intervals until
          * each slave responds with an ACK. */
+        long phase2Start = System.nanoTime();
+        KVMessage phase2Msg;
         if (globalAbort) {
             phase2Msg = new KVMessage(ABORT);
         } else {
             phase2Msg = new KVMessage(COMMIT);
         }
+        phase2Msg.setFormat(slaveFormat);
 
-        for (SlaveNode currNode : slaves) {
-            if (currNode == null) {
-                continue;
-            }
-            while (true) {
-                try {
-                    currSlave = currNode.getInfo();
-                    currSocket = currSlave.connectHost(TIMEOUT);
-                    phase2Msg.sendMessage(currSocket);
-                    phase2Resp = new KVMessage(currSocket, TIMEOUT);
-                } catch (KVException e) {
-                    try {
-                        Thread.sleep(TIMEOUT);
-                    } catch (InterruptedException e1) { }
-                    continue;
-                } finally {
-                    if (currSlave != null) {
-                        currSlave.closeHost(currSocket);
-                    }
-                }
-                if (!ACK.equals(phase2Resp.getMsgType())) {
-                    invalidFormat = true;
-                }
-                break;
+        Phase2Call[] acks = new Phase2Call[slaves.length];
+        for (int i = 0; i < slaves.length; i++) {
+            acks[i] = new Phase2Call(slaves[i], phase2Msg, votes[i].done,
+                                     slavePoolSize);
+        }
+        runOnReplicas(acks);
+        phase2Latency.recordSince(phase2Start);
+
+        boolean invalidFormat = false;
+        for (Phase2Call ack : acks) {
+            if (ack.invalidFormat) {
+                invalidFormat = true;
             }
         }
 
@@ -357,17 +660,218 @@ public class TPCMaster {
         }
 
         /* Flush changes to master cache. */
-        if (!globalAbort && !invalidFormat) {
-            Lock lock = masterCache.getLock(msg.getKey());
+        if (msg.getEntries() == null) {
+            flushToCache(msg.getKey(), msg.getValue(), isPutReq);
+        } else {
+            for (Map.Entry<String, String> entry : msg.getEntries().entrySet()) {
+                flushToCache(entry.getKey(), entry.getValue(), isPutReq);
+            }
+        }
+    }
+
+    private void flushToCache(String key, String value, boolean isPutReq) {
+        Lock lock = masterCache.getLock(key);
+        lock.lock();
+        try {
+            writeStamps.incrementAndGet(writeStripe(key));
+            if (isPutReq) {
+                masterCache.put(key, value);
+            } else {
+                masterCache.del(key);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Locks the distinct slaves among the given nodes in ascending order of
+     * slave ID, so that two transactions never wait on each other.
+     *
+     * @return the locks taken, in the order they were taken
+     */
+    private Lock[] lockSlaves(SlaveNode[] slaves) {
+        long[] ids = new long[slaves.length];
+        int count = 0;
+        for (SlaveNode node : slaves) {
+            if (node == null || node.getInfo() == null) {
+                continue;
+            }
+            long id = node.getInfo().getSlaveID();
+            boolean seen = false;
+            for (int i = 0; i < count; i++) {
+                seen |= (ids[i] == id);
+            }
+            if (!seen) {
+                ids[count++] = id;
+            }
+        }
+        if (count == 2 && ids[1] < ids[0]) {
+            long tmp = ids[0];
+            ids[0] = ids[1];
+            ids[1] = tmp;
+        }
+        Lock[] locks = new Lock[count];
+        for (int i = 0; i < count; i++) {
+            Lock lock = slaveLocks.get(ids[i]);
+            if (lock == null) {
+                Lock fresh = new ReentrantLock();
+                lock = slaveLocks.putIfAbsent(ids[i], fresh);
+                if (lock == null) {
+                    lock = fresh;
+                }
+            }
             lock.lock();
+            locks[i] = lock;
+        }
+        return locks;
+    }
+
+    /**
+     * Runs one call per replica and returns once all have finished. The
+     * first runs on the calling thread and the rest on replicaPool.
+     */
+    private void runOnReplicas(final Runnable[] calls) {
+        final CountDownLatch done = new CountDownLatch(calls.length - 1);
+        for (int i = 1; i < calls.length; i++) {
+            final Runnable call = calls[i];
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        call.run();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        calls[0].run();
+        awaitUntil(done, Long.MAX_VALUE);
+    }
+
+    /**
+     * Starts a job on replicaPool, or runs it here if it cannot be queued.
+     */
+    private void submit(Runnable job) {
+        try {
+            replicaPool.addJob(job);
+        } catch (InterruptedException e) {
+            job.run();
+        }
+    }
+
+    /**
+     * Waits for latch to reach zero or for the clock to pass deadline,
+     * whichever comes first, preserving the caller's interrupt status.
+     *
+     * @return true if the latch reached zero
+     */
+    private static boolean awaitUntil(CountDownLatch latch, long deadline) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                long remaining = deadline - System.currentTimeMillis();
+                try {
+                    return latch.await(Math.max(0, remaining),
+                                       TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Sends the phase 1 vote request to one replica and records its vote.
+     * The vote may only be read once done has reached zero.
+     */
+    private static class Phase1Call implements Runnable {
+        private final SlaveNode node;
+        private final KVMessage msg;
+        private final int poolSize;
+        final CountDownLatch done = new CountDownLatch(1);
+        boolean ready;
+        String abortMessage;
+
+        Phase1Call(SlaveNode node, KVMessage msg, int poolSize) {
+            this.node = node;
+            this.msg = msg;
+            this.poolSize = poolSize;
+        }
+
+        @Override
+        public void run() {
             try {
-                if (isPutReq) {
-                    masterCache.put(msg.getKey(), msg.getValue());
+                vote();
+            } finally {
+                done.countDown();
+            }
+        }
+
+        private void vote() {
+            if (node == null) {
+                return;
+            }
+            try {
+                KVMessage phase1Resp = exchange(node.getInfo(), msg, poolSize);
+                if (READY.equals(phase1Resp.getMsgType())) {
+                    ready = true;
                 } else {
-                    masterCache.del(msg.getKey());
+                    abortMessage = phase1Resp.getMessage();
                 }
-            } finally {
-                lock.unlock();
+            } catch (KVException e) {
+                abortMessage = e.getKVMessage().getMessage();
+            } catch (Exception e) {
+                /* Abort without a message. */
+            }
+        }
+    }
+
+    /**
+     * Sends the phase 2 decision to one replica, retrying every TIMEOUT
+     * until it answers. Waits first for the replica's phase 1 exchange to
+     * finish, so that the decision never overtakes the vote request.
+     */
+    private static class Phase2Call implements Runnable {
+        private final SlaveNode node;
+        private final KVMessage phase2Msg;
+        private final CountDownLatch voted;
+        private final int poolSize;
+        boolean invalidFormat;
+
+        Phase2Call(SlaveNode node, KVMessage phase2Msg, CountDownLatch voted,
+                   int poolSize) {
+            this.node = node;
+            this.phase2Msg = phase2Msg;
+            this.voted = voted;
+            this.poolSize = poolSize;
+        }
+
+        @Override
+        public void run() {
+            if (node == null) {
+                return;
+            }
+            awaitUntil(voted, Long.MAX_VALUE);
+            KVMessage phase2Resp = null;
+            while (true) {
+                try {
+                    phase2Resp = exchange(node.getInfo(), phase2Msg, poolSize);
+                } catch (KVException e) {
+                    try {
+                        Thread.sleep(TIMEOUT);
+                    } catch (InterruptedException e1) { }
+                    continue;
+                }
+                if (!ACK.equals(phase2Resp.getMsgType())) {
+                    invalidFormat = true;
+                }
+                break;
             }
         }
     }
@@ -377,9 +881,15 @@ public class TPCMaster {
      * - Try to GET from cache, return immediately if found
      * - Try to GET from first/primary replica
      * - If primary succeeded, return value
-     * - If primary failed, try to GET from the other replica
-     * - If secondary succeeded, return value
-     * - If secondary failed, return KVExceptions from both replicas
+     * - If primary failed, or has not answered within the hedge delay, also
+     *   try to GET from the other replica
+     * - Return the first value either replica answers with
+     * - If both failed, return KVExceptions from both replicas
+     *
+     * The hedge delay is the 95th percentile of recent replica GET
+     * latencies, so only the slowest reads are sent twice. The cache set
+     * lock is not held while the replicas are being asked, and concurrent
+     * misses on the same key wait for a single fetch and share its result.
      *
      * @param msg KVMessage containing key to get
      * @return value corresponding to the Key
@@ -410,39 +920,364 @@ public class TPCMaster {
             }
         }
 
-        String value = null;
+        long start = System.nanoTime();
+        try {
+            return lookup(key, msg);
+        } finally {
+            getLatency.recordSince(start);
+        }
+    }
+
+    /**
+     * The cache and replica lookup behind handleGet, for a valid request.
+     */
+    private String lookup(String key, KVMessage msg) throws KVException {
+        String value = masterCache.getShared(key);
+        if (value != null) {
+            return value;
+        }
+
+        /* Check in cache. */
+        int stripe = writeStripe(key);
+        long stamp;
         Lock lock = masterCache.getLock(key);
         lock.lock();
-
         try {
-            /* Check in cache. */
             value = masterCache.get(key);
             if (value != null) {
                 return value;
             }
+            stamp = writeStamps.get(stripe);
+        } finally {
+            lock.unlock();
+        }
 
-            /* Check in primary replica. */
-            TPCSlaveInfo primary = findFirstReplica(key);
-            if (primary != null) {
-                value = getValueFromReplica(primary, msg);
+        /* Join a fetch of this key already under way, unless it began
+         * before a write this caller has seen; otherwise start one. */
+        Flight flight = new Flight(stamp);
+        while (true) {
+            Flight current = inFlight.putIfAbsent(key, flight);
+            if (current == null) {
+                break;
+            } else if (current.stamp >= stamp) {
+                value = current.await();
+                if (value == null) {
+                    throw new KVException(ERROR_NO_SUCH_KEY);
+                }
+                return value;
+            } else if (inFlight.replace(key, current, flight)) {
+                break;
             }
+        }
+
+        /* Check in replicas. */
+        try {
+            value = hedgedGet(key, msg);
             if (value != null) {
-                masterCache.put(key, value);
-                return value;
+                lock.lock();
+                try {
+                    if (writeStamps.get(stripe) == stamp) {
+                        masterCache.put(key, value);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } finally {
+            flight.finish(value);
+            inFlight.remove(key, flight);
+        }
+        if (value == null) {
+            throw new KVException(ERROR_NO_SUCH_KEY);
+        }
+        return value;
+    }
+
+    /**
+     * Perform a batch GET. Keys found in the cache are answered from it; the
+     * rest are split by their first replica, and each group is fetched with
+     * one MGET to that slave, in parallel with the other groups. Keys the
+     * first replica does not return are asked of its successor. Values read
+     * from the replicas are not cached, so that a bulk read does not evict
+     * the working set.
+     *
+     * @param msg MGET request whose entries are the keys to get
+     * @return the keys that exist, in the order requested, with their values
+     * @throws KVException with ERROR_INVALID_FORMAT if the request is invalid
+     */
+    public Map<String, String> handleMultiGet(KVMessage msg) throws KVException {
+
+        /* Wait until numSlave slaves have been registered before performing
+         * any GET operations. */
+        synchronized (numRegisteredLock) {
+            while (numRegistered < numSlaves) {
+                try {
+                    numRegisteredLock.wait();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+        }
+
+        if (!MGET_REQ.equals(msg.getMsgType()) || msg.getKey() != null ||
+                msg.getValue() != null || msg.getMessage() != null) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        }
+        Map<String, String> keys = msg.getBatchEntries();
+
+        /* Check in cache, grouping the misses by first replica. */
+        final ConcurrentHashMap<String, String> found =
+            new ConcurrentHashMap<String, String>();
+        Map<TPCSlaveInfo, Map<String, String>> groups =
+            new LinkedHashMap<TPCSlaveInfo, Map<String, String>>();
+        for (String key : keys.keySet()) {
+            if (key == null || key.length() == 0) {
+                continue;
+            }
+            String value = masterCache.getShared(key);
+            if (value == null) {
+                Lock lock = masterCache.getLock(key);
+                lock.lock();
+                try {
+                    value = masterCache.get(key);
+                } finally {
+                    lock.unlock();
+                }
+            }
+            if (value != null) {
+                found.put(key, value);
+                continue;
+            }
+            TPCSlaveInfo first = findFirstReplica(key);
+            Map<String, String> group = groups.get(first);
+            if (group == null) {
+                group = new LinkedHashMap<String, String>();
+                groups.put(first, group);
+            }
+            group.put(key, null);
+        }
+
+        /* Check in replicas. */
+        if (!groups.isEmpty()) {
+            Runnable[] calls = new Runnable[groups.size()];
+            int i = 0;
+            for (final Map.Entry<TPCSlaveInfo, Map<String, String>> group :
+                    groups.entrySet()) {
+                calls[i++] = new Runnable() {
+                    @Override
+                    public void run() {
+                        Map<String, String> missing = fetchFromReplica(
+                            group.getKey(), group.getValue(), found);
+                        if (!missing.isEmpty()) {
+                            fetchFromReplica(findSuccessor(group.getKey()),
+                                             missing, found);
+                        }
+                    }
+                };
             }
+            runOnReplicas(calls);
+        }
 
-            /* Check in secondary replica. */
-            TPCSlaveInfo secondary = findSuccessor(primary);
-            if (secondary != null) {
-                value = getValueFromReplica(secondary, msg);
+        LinkedHashMap<String, String> result = new LinkedHashMap<String, String>();
+        for (String key : keys.keySet()) {
+            String value = (key == null) ? null : found.get(key);
+            if (value != null) {
+                result.put(key, value);
             }
+        }
+        return result;
+    }
+
+    /**
+     * Asks one replica for a group of keys, adding the values it has to
+     * found.
+     *
+     * @return the keys the replica did not return
+     */
+    private Map<String, String> fetchFromReplica(TPCSlaveInfo slave,
+            Map<String, String> keys, Map<String, String> found) {
+        Map<String, String> values = getValuesFromReplica(slave, keys);
+        if (values == null) {
+            return keys;
+        }
+        Map<String, String> missing = new LinkedHashMap<String, String>();
+        for (String key : keys.keySet()) {
+            String value = values.get(key);
+            if (value != null) {
+                found.put(key, value);
+            } else {
+                missing.put(key, null);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Ask the primary replica for key, and the secondary too if the primary
+     * fails or has not answered within the hedge delay.
+     *
+     * @return the first value a replica answers with, or null if neither has
+     *         the key or both failed
+     */
+    private String hedgedGet(String key, KVMessage msg) {
+        HedgedRead read = new HedgedRead();
+        TPCSlaveInfo primary = findFirstReplica(key);
+        if (primary != null) {
+            askReplica(primary, msg, read);
+            String value = read.await(
+                System.currentTimeMillis() + getLatencies.hedgeDelay());
             if (value != null) {
-                masterCache.put(key, value);
                 return value;
             }
-            throw new KVException(ERROR_NO_SUCH_KEY);
-        } finally {
-            lock.unlock();
+        }
+        TPCSlaveInfo secondary = findSuccessor(primary);
+        if (secondary != null) {
+            askReplica(secondary, msg, read);
+        }
+        return read.await(Long.MAX_VALUE);
+    }
+
+    private void askReplica(final TPCSlaveInfo slave, final KVMessage msg,
+                            final HedgedRead read) {
+        read.started();
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                String value = null;
+                try {
+                    long start = System.nanoTime();
+                    value = getValueFromReplica(slave, msg);
+                    if (value != null) {
+                        getLatencies.record(TimeUnit.NANOSECONDS.toMillis(
+                            System.nanoTime() - start));
+                    }
+                } finally {
+                    read.finished(value);
+                }
+            }
+        });
+    }
+
+    private static int writeStripe(String key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % WRITE_STAMP_STRIPES;
+    }
+
+    /**
+     * One replica fetch for a key, shared by every concurrent miss on it.
+     */
+    private static class Flight {
+        /* writeStamps value for the key's stripe when the fetch began. */
+        final long stamp;
+        private boolean done;
+        private String value;
+
+        Flight(long stamp) {
+            this.stamp = stamp;
+        }
+
+        synchronized void finish(String fetched) {
+            value = fetched;
+            done = true;
+            notifyAll();
+        }
+
+        /**
+         * @return the fetched value, or null if no replica had the key
+         */
+        synchronized String await() {
+            boolean interrupted = false;
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return value;
+        }
+    }
+
+    /**
+     * The replies to one GET that may have been sent to both replicas.
+     */
+    private static class HedgedRead {
+        private int outstanding;
+        private String value;
+
+        synchronized void started() {
+            outstanding++;
+        }
+
+        synchronized void finished(String answer) {
+            outstanding--;
+            if (value == null) {
+                value = answer;
+            }
+            notifyAll();
+        }
+
+        /**
+         * Waits until a replica has answered with a value, no replica is
+         * still being asked, or the deadline passes.
+         *
+         * @return the first value answered, or null if there is none yet
+         */
+        synchronized String await(long deadline) {
+            boolean interrupted = false;
+            while (value == null && outstanding > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return value;
+        }
+    }
+
+    /**
+     * A sliding window of recent replica GET latencies. The hedge delay is
+     * their 95th percentile, recomputed every few samples.
+     */
+    static class LatencyWindow {
+        private static final int SIZE = 128;
+        private static final int MIN_SAMPLES = 32;
+        private static final int RECOMPUTE_EVERY = 16;
+
+        private final long[] samples = new long[SIZE];
+        private int count;
+        private int next;
+        private int sinceRecompute;
+        private long hedgeDelay = INITIAL_HEDGE_DELAY;
+
+        synchronized void record(long millis) {
+            samples[next] = millis;
+            next = (next + 1) % SIZE;
+            if (count < SIZE) {
+                count++;
+            }
+            if (count >= MIN_SAMPLES && ++sinceRecompute >= RECOMPUTE_EVERY) {
+                sinceRecompute = 0;
+                long[] sorted = Arrays.copyOf(samples, count);
+                Arrays.sort(sorted);
+                long p95 = sorted[(count * 95 + 99) / 100 - 1];
+                hedgeDelay = Math.min(MAX_HEDGE_DELAY,
+                                      Math.max(MIN_HEDGE_DELAY, p95));
+            }
+        }
+
+        synchronized long hedgeDelay() {
+            return hedgeDelay;
         }
     }
 
@@ -450,7 +1285,6 @@ public class TPCMaster {
      * Return the value from the replica, or return null.
      */
     String getValueFromReplica(TPCSlaveInfo slaveInfo, KVMessage msg) {
-        Socket sock;
         KVMessage resp;
 
         if (slaveInfo == null || msg == null) {
@@ -458,23 +1292,135 @@ public class TPCMaster {
         }
 
         try {
-            sock = slaveInfo.connectHost(TIMEOUT);
+            msg.setFormat(slaveFormat);
+            resp = exchange(slaveInfo, msg, slavePoolSize);
+            if (RESP.equals(resp.getMsgType())) {
+                return resp.getValue();
+            }
         } catch (KVException e) {
+            // Do nothing
+        }
+
+        return null;
+    }
+
+    /**
+     * Return the values the replica has for the given keys, or return null
+     * if it could not be asked. Keys or values too large for one message
+     * are asked for in as many MGETs as it takes.
+     */
+    Map<String, String> getValuesFromReplica(TPCSlaveInfo slaveInfo,
+            Map<String, String> keys) {
+        if (slaveInfo == null) {
             return null;
         }
+
+        Map<String, String> values = new HashMap<String, String>();
+        Map<String, String> pending = keys;
         try {
-            msg.sendMessage(sock);
-            resp = new KVMessage(sock, TIMEOUT);
-            if (RESP.equals(resp.getMsgType())) {
-                return resp.getValue();
+            while (!pending.isEmpty()) {
+                Map<String, String> deferred =
+                    new LinkedHashMap<String, String>();
+                for (Map<String, String> run : KVMessage.splitBatch(pending)) {
+                    KVMessage msg = new KVMessage(MGET_REQ);
+                    msg.setEntries(run);
+                    msg.setFormat(slaveFormat);
+                    KVMessage resp = exchange(slaveInfo, msg, slavePoolSize);
+                    if (!RESP.equals(resp.getMsgType())
+                            || resp.getMessage() != null) {
+                        return null;
+                    }
+                    deferred.putAll(resp.collectFoundEntries(values));
+                }
+                pending = deferred;
             }
         } catch (KVException e) {
-            // Do nothing
+            return null;
+        }
+
+        return values;
+    }
+
+    /**
+     * Sends a message to a slave and returns its response. BINARY messages
+     * go over a pooled keep-alive connection when poolSize is positive; a
+     * pooled connection that fails before the slave answers is assumed to
+     * have been closed by the slave while idle, and the message is sent
+     * again on a new connection. Otherwise each message gets a connection of
+     * its own. Either way, the message first waits its turn under the
+     * slave's limit on connections in use.
+     *
+     * @param slave slave to send to
+     * @param msg message to send; not modified
+     * @param poolSize idle connections to keep for the slave
+     * @return the slave's response
+     * @throws KVException if the message could not be sent or the response
+     *         could not be received
+     */
+    static KVMessage exchange(TPCSlaveInfo slave, KVMessage msg, int poolSize)
+            throws KVException {
+        slave.acquireConnection(TIMEOUT);
+        try {
+            return send(slave, msg, poolSize);
         } finally {
-            slaveInfo.closeHost(sock);
+            slave.releaseConnection();
+        }
+    }
+
+    private static KVMessage send(TPCSlaveInfo slave, KVMessage msg,
+            int poolSize) throws KVException {
+        if (poolSize <= 0 || msg.getFormat() != KVMessage.Format.BINARY) {
+            Socket sock = slave.connectHost(TIMEOUT);
+            try {
+                msg.sendMessage(sock);
+                return new KVMessage(sock, TIMEOUT);
+            } finally {
+                slave.closeHost(sock);
+            }
+        }
+        KVMessage rqst = new KVMessage(msg);
+        rqst.setKeepAlive(true);
+        Socket sock = slave.pollIdleHost();
+        if (sock != null) {
+            try {
+                rqst.sendMessage(sock);
+                return release(slave, sock, new KVMessage(sock, TIMEOUT),
+                               poolSize);
+            } catch (KVException e) {
+                slave.closeHost(sock);
+                if (ERROR_SOCKET_TIMEOUT.equals(e.getKVMessage().getMessage())) {
+                    /* The slave has the message and is just slow. */
+                    throw e;
+                }
+            }
+        }
+        sock = slave.connectHost(TIMEOUT);
+        try {
+            sock.setTcpNoDelay(true);
+        } catch (IOException e) {
+            /* Not fatal; small frames may just be delayed. */
+        }
+        try {
+            rqst.sendMessage(sock);
+            return release(slave, sock, new KVMessage(sock, TIMEOUT), poolSize);
+        } catch (KVException e) {
+            slave.closeHost(sock);
+            throw e;
         }
+    }
 
-        return null;
+    /**
+     * Pools a keep-alive connection once its response has been read, unless
+     * the slave declined keep-alive and will close its end.
+     */
+    private static KVMessage release(TPCSlaveInfo slave, Socket sock,
+            KVMessage resp, int poolSize) {
+        if (resp.isKeepAlive()) {
+            slave.releaseHost(sock, poolSize);
+        } else {
+            slave.closeHost(sock);
+        }
+        return resp;
     }
 
     /**
@@ -513,6 +1459,117 @@ public class TPCMaster {
         }
     }
 
+    /**
+     * Immutable view of the hash ring. Each slave owns the point at its own
+     * ID and, with virtual nodes, further points derived from that ID; a
+     * hash belongs to the slave owning the first point at or after it. A
+     * slave's successor is the slave with the next ID, whatever the virtual
+     * nodes, so every key's primary share is spread evenly and its secondary
+     * share follows.
+     *
+     * Points and IDs are kept sorted in unsigned order for binary search.
+     * They are stored with the sign bit flipped, which turns unsigned order
+     * into signed order.
+     */
+    static class HashRing {
+
+        private final long[] points;
+        private final TPCSlaveInfo[] owners;
+        private final long[] ids;
+        private final TPCSlaveInfo[] slaves;
+
+        HashRing(Collection<TPCSlaveInfo> infos, int virtualNodes) {
+            HashMap<Long, TPCSlaveInfo> byPoint = new HashMap<Long, TPCSlaveInfo>();
+            HashMap<Long, TPCSlaveInfo> byId = new HashMap<Long, TPCSlaveInfo>();
+            for (TPCSlaveInfo info : infos) {
+                long id = info.getSlaveID();
+                byId.put(flip(id), info);
+                claim(byPoint, flip(id), info);
+                for (int i = 1; i < virtualNodes; i++) {
+                    claim(byPoint, flip(virtualPoint(id, i)), info);
+                }
+            }
+            points = sortedKeys(byPoint);
+            owners = new TPCSlaveInfo[points.length];
+            for (int i = 0; i < points.length; i++) {
+                owners[i] = byPoint.get(points[i]);
+            }
+            ids = sortedKeys(byId);
+            slaves = new TPCSlaveInfo[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                slaves[i] = byId.get(ids[i]);
+            }
+        }
+
+        int size() {
+            return slaves.length;
+        }
+
+        /**
+         * @return the slave owning the first point at or after hash, or null
+         *         if there are no slaves
+         */
+        TPCSlaveInfo ownerOf(long hash) {
+            if (points.length == 0) {
+                return null;
+            }
+            int i = Arrays.binarySearch(points, flip(hash));
+            if (i < 0) {
+                i = -i - 1;
+            }
+            return owners[i % points.length];
+        }
+
+        /**
+         * @return the slave with the next ID after slaveID, or with the
+         *         first ID at or after it if slaveID is not registered
+         */
+        TPCSlaveInfo successorOf(long slaveID) {
+            if (slaves.length == 0) {
+                return null;
+            }
+            int i = Arrays.binarySearch(ids, flip(slaveID));
+            i = (i >= 0) ? i + 1 : -i - 1;
+            return slaves[i % slaves.length];
+        }
+
+        /* On a collision the slave with the smaller ID keeps the point, so
+         * that the outcome does not depend on registration order. */
+        private static void claim(Map<Long, TPCSlaveInfo> byPoint, long point,
+                                  TPCSlaveInfo info) {
+            TPCSlaveInfo current = byPoint.get(point);
+            if (current == null || flip(info.getSlaveID()) < flip(current.getSlaveID())) {
+                byPoint.put(point, info);
+            }
+        }
+
+        private static long[] sortedKeys(Map<Long, TPCSlaveInfo> map) {
+            long[] keys = new long[map.size()];
+            int i = 0;
+            for (Long key : map.keySet()) {
+                keys[i++] = key;
+            }
+            Arrays.sort(keys);
+            return keys;
+        }
+
+        /**
+         * Position of a slave's i-th virtual node: its ID and i scrambled by
+         * the SplitMix64 finalizer, so that the points of slaves with nearby
+         * IDs land far apart.
+         */
+        static long virtualPoint(long slaveID, int i) {
+            long z = slaveID + i * 0x9E3779B97F4A7C15L;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            return z ^ (z >>> 31);
+        }
+
+        private static long flip(long n) {
+            return n ^ Long.MIN_VALUE;
+        }
+    }
+
     /**
      * Circularly-doubly-linked list data structure that maintains a list of
      * TPCSlaveInfo objects in ascending order by slave ID.
@@ -8,6 +8,9 @@ import static kvstore.KVConstants.ERROR_COULD_NOT_CREATE_SOCKET;
 import static kvstore.KVConstants.ERROR_INVALID_FORMAT;
 import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
 import static kvstore.KVConstants.GET_REQ;
+import static kvstore.KVConstants.MDEL_REQ;
+import static kvstore.KVConstants.MGET_REQ;
+import static kvstore.KVConstants.MPUT_REQ;
 import static kvstore.KVConstants.PUT_REQ;
 import static kvstore.KVConstants.READY;
 import static kvstore.KVConstants.REGISTER;
@@ -17,12 +20,13 @@ import static kvstore.TPCMaster.TIMEOUT;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.Map;
 
 /**
  * Implements NetworkHandler to handle 2PC operation requests from the Master/
  * Coordinator Server
  */
-public class TPCMasterHandler implements NetworkHandler {
+public class TPCMasterHandler implements MessageHandler {
 
     public long slaveID;
     public KVServer kvServer;
@@ -31,15 +35,21 @@ public class TPCMasterHandler implements NetworkHandler {
 
     public static int REGISTRATION_PORT = 9090;
 
+    /* Threads in the default ThreadPool. The master keeps keep-alive
+     * connections to its slaves, each holding a thread here while idle, so
+     * one thread would leave all but one of them waiting. */
+    public static final int DEFAULT_CONNECTIONS = 16;
+
     /**
-     * Constructs a TPCMasterHandler with one connection in its ThreadPool
+     * Constructs a TPCMasterHandler with DEFAULT_CONNECTIONS connections in
+     * its ThreadPool
      *
      * @param slaveID the ID for this slave server
      * @param kvServer KVServer for this slave
      * @param log the log for this slave
      */
     public TPCMasterHandler(long slaveID, KVServer kvServer, TPCLog log) {
-        this(slaveID, kvServer, log, 1);
+        this(slaveID, kvServer, log, DEFAULT_CONNECTIONS);
     }
 
     /**
@@ -58,6 +68,23 @@ public class TPCMasterHandler implements NetworkHandler {
         this.threadpool = new ThreadPool(connections);
     }
 
+    /**
+     * Constructs a TPCMasterHandler that runs connections on the given pool,
+     * e.g. a VirtualThreadPool to give each connection its own thread.
+     *
+     * @param slaveID the ID for this slave server
+     * @param kvServer KVServer for this slave
+     * @param log the log for this slave
+     * @param threadpool ThreadPool to service connections on
+     */
+    public TPCMasterHandler(long slaveID, KVServer kvServer, TPCLog log,
+            ThreadPool threadpool) {
+        this.slaveID = slaveID;
+        this.kvServer = kvServer;
+        this.tpcLog = log;
+        this.threadpool = threadpool;
+    }
+
     /**
      * Registers this slave server with the master.
      *
@@ -121,64 +148,103 @@ public class TPCMasterHandler implements NetworkHandler {
     }
 
     private Runnable createJob(Socket master) {
-        final Socket masterFinal = master;
-        Runnable r = new Runnable() {
-            @Override
-            public void run() {
-                KVMessage resp;
-                try {
-                    KVMessage rqst = new KVMessage(masterFinal, TIMEOUT);
-                    String rqstType = rqst.getMsgType();
-
-                    if (GET_REQ.equals(rqstType)) {
-                        resp = new KVMessage(RESP);
-                        resp.setKey(rqst.getKey());
-                        resp.setValue(kvServer.get(rqst.getKey()));
-                    } else if (PUT_REQ.equals(rqstType)) {
-                        String respMsg = kvServer.validateKeyValue(rqst.getKey(), 
-                                                                   rqst.getValue());
-                        if (SUCCESS.equals(respMsg)) {
-                            tpcLog.appendAndFlush(rqst);
-                            resp = new KVMessage(READY);
-                        } else {
-                            resp = new KVMessage(ABORT);
-                            resp.setMessage(respMsg);
-                        }
-                    } else if (DEL_REQ.equals(rqstType)) {
-                        if (kvServer.hasKey(rqst.getKey())) {
-                            tpcLog.appendAndFlush(rqst);
-                            resp = new KVMessage(READY);
-                        } else {
-                            resp = new KVMessage(ABORT);
-                            resp.setMessage(ERROR_NO_SUCH_KEY);
-                        }
-                    } else if (COMMIT.equals(rqstType)) {
-                        KVMessage exec = tpcLog.getLastEntry();
-                        if (PUT_REQ.equals(exec.getMsgType())) {
-                            tpcLog.appendAndFlush(rqst);
-                            kvServer.put(exec.getKey(), exec.getValue());
-                        } else if (DEL_REQ.equals(exec.getMsgType())) {
-                            tpcLog.appendAndFlush(rqst);
-                            kvServer.del(exec.getKey());
-                        }
-                        resp = new KVMessage(ACK);
-                    } else if (ABORT.equals(rqstType)) {
-                        tpcLog.appendAndFlush(rqst);
-                        resp = new KVMessage(ACK);
-                    } else {
-                        throw new KVException(ERROR_INVALID_FORMAT);
+        return new ConnectionJob(master, this);
+    }
+
+    /**
+     * Carries out a single GET or MGET, or a 2PC phase message, from the
+     * master. A batch PUT or DEL is voted on and committed as a whole.
+     *
+     * @param rqst KVMessage read from the master
+     * @return KVMessage response for the master
+     */
+    @Override
+    public KVMessage service(KVMessage rqst) {
+        KVMessage resp;
+        try {
+            String rqstType = rqst.getMsgType();
+
+            if (GET_REQ.equals(rqstType)) {
+                resp = new KVMessage(RESP);
+                resp.setKey(rqst.getKey());
+                resp.setValue(kvServer.get(rqst.getKey()));
+            } else if (PUT_REQ.equals(rqstType)) {
+                String respMsg = kvServer.validateKeyValue(rqst.getKey(), 
+                                                           rqst.getValue());
+                if (SUCCESS.equals(respMsg)) {
+                    tpcLog.appendAndFlush(rqst);
+                    resp = new KVMessage(READY);
+                } else {
+                    resp = new KVMessage(ABORT);
+                    resp.setMessage(respMsg);
+                }
+            } else if (DEL_REQ.equals(rqstType)) {
+                if (kvServer.hasKey(rqst.getKey())) {
+                    tpcLog.appendAndFlush(rqst);
+                    resp = new KVMessage(READY);
+                } else {
+                    resp = new KVMessage(ABORT);
+                    resp.setMessage(ERROR_NO_SUCH_KEY);
+                }
+            } else if (MGET_REQ.equals(rqstType)) {
+                resp = new KVMessage(RESP);
+                resp.setFoundEntries(
+                    kvServer.mget(rqst.getBatchEntries().keySet()));
+            } else if (MPUT_REQ.equals(rqstType)) {
+                String respMsg = SUCCESS;
+                for (Map.Entry<String, String> pair :
+                        rqst.getBatchEntries().entrySet()) {
+                    respMsg = kvServer.validateKeyValue(pair.getKey(),
+                                                        pair.getValue());
+                    if (!SUCCESS.equals(respMsg)) {
+                        break;
                     }
-                } catch (KVException e) {
-                    resp = e.getKVMessage(); 
                 }
-                try {
-                    resp.sendMessage(masterFinal);
-                } catch (KVException e) {
-                    // Wait for timeout.
+                if (SUCCESS.equals(respMsg)) {
+                    tpcLog.appendAndFlush(rqst);
+                    resp = new KVMessage(READY);
+                } else {
+                    resp = new KVMessage(ABORT);
+                    resp.setMessage(respMsg);
+                }
+            } else if (MDEL_REQ.equals(rqstType)) {
+                boolean allPresent = true;
+                for (String key : rqst.getBatchEntries().keySet()) {
+                    allPresent &= kvServer.hasKey(key);
+                }
+                if (allPresent) {
+                    tpcLog.appendAndFlush(rqst);
+                    resp = new KVMessage(READY);
+                } else {
+                    resp = new KVMessage(ABORT);
+                    resp.setMessage(ERROR_NO_SUCH_KEY);
                 }
+            } else if (COMMIT.equals(rqstType)) {
+                KVMessage exec = tpcLog.getLastEntry();
+                if (PUT_REQ.equals(exec.getMsgType())) {
+                    tpcLog.appendAndFlush(rqst);
+                    kvServer.put(exec.getKey(), exec.getValue());
+                } else if (DEL_REQ.equals(exec.getMsgType())) {
+                    tpcLog.appendAndFlush(rqst);
+                    kvServer.del(exec.getKey());
+                } else if (MPUT_REQ.equals(exec.getMsgType())) {
+                    tpcLog.appendAndFlush(rqst);
+                    kvServer.mput(exec.getEntries());
+                } else if (MDEL_REQ.equals(exec.getMsgType())) {
+                    tpcLog.appendAndFlush(rqst);
+                    kvServer.mdel(exec.getEntries().keySet());
+                }
+                resp = new KVMessage(ACK);
+            } else if (ABORT.equals(rqstType)) {
+                tpcLog.appendAndFlush(rqst);
+                resp = new KVMessage(ACK);
+            } else {
+                throw new KVException(ERROR_INVALID_FORMAT);
             }
-        };
-        return r;
+        } catch (KVException e) {
+            resp = e.getKVMessage(); 
+        }
+        return resp;
     }
 
 }
@@ -3,7 +3,6 @@ package kvstore;
 import static kvstore.KVConstants.ERROR_INVALID_FORMAT;
 import static kvstore.KVConstants.REGISTER;
 import static kvstore.KVConstants.RESP;
-import static kvstore.TPCMaster.TIMEOUT;
 
 import java.net.Socket;
 
@@ -11,7 +10,7 @@ import java.net.Socket;
  * This NetworkHandler will asynchronously handle the socket connections.
  * Uses a thread pool to ensure that none of its methods are blocking.
  */
-public class TPCRegistrationHandler implements NetworkHandler {
+public class TPCRegistrationHandler implements MessageHandler {
 
     private ThreadPool threadpool;
     private TPCMaster master;
@@ -58,30 +57,29 @@ public class TPCRegistrationHandler implements NetworkHandler {
     }
 
     private Runnable createJob(Socket slave) {
-        final Socket slaveFinal = slave;
-        Runnable r = new Runnable() {
-            @Override
-            public void run() {
-                KVMessage resp = new KVMessage(RESP);
-                try {
-                    KVMessage rqst = new KVMessage(slaveFinal, TIMEOUT);
-                    if (REGISTER.equals(rqst.getMsgType())) {
-                        master.registerSlave(new TPCSlaveInfo(rqst.getMessage()));
-                        resp.setMessage("Successfully registered " + rqst.getMessage());
-                    } else {
-                        throw new KVException(ERROR_INVALID_FORMAT);
-                    }
-                } catch (KVException e) {
-                    resp = e.getKVMessage(); 
-                }
-                try {
-                    resp.sendMessage(slaveFinal);
-                } catch (KVException e) {
-                    // Wait for timeout.
-                }
+        return new ConnectionJob(slave, this);
+    }
+
+    /**
+     * Registers the slave described by a single REGISTER request.
+     *
+     * @param rqst KVMessage read from the slave
+     * @return KVMessage response for the slave
+     */
+    @Override
+    public KVMessage service(KVMessage rqst) {
+        KVMessage resp = new KVMessage(RESP);
+        try {
+            if (REGISTER.equals(rqst.getMsgType())) {
+                master.registerSlave(new TPCSlaveInfo(rqst.getMessage()));
+                resp.setMessage("Successfully registered " + rqst.getMessage());
+            } else {
+                throw new KVException(ERROR_INVALID_FORMAT);
             }
-        };
-        return r;
+        } catch (KVException e) {
+            resp = e.getKVMessage();
+        }
+        return resp;
     }
 
 }
@@ -9,16 +9,41 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
 
 /**
- * Data structure to maintain information about SlaveServers
+ * Data structure to maintain information about SlaveServers, along with a
+ * pool of idle keep-alive connections to the slave and a limit on how many
+ * connections to it may be in use at once.
  */
 public class TPCSlaveInfo {
 
+    /**
+     * Pooled connections idle for longer than this, in ms, are closed rather
+     * than reused, well before the slave gives up on them.
+     */
+    static final long MAX_IDLE_TIME = ConnectionJob.KEEP_ALIVE_TIMEOUT / 2;
+
+    /**
+     * Connections in use at once unless setMaxActive says otherwise: as many
+     * as a slave on the default TPCMasterHandler serves at once.
+     */
+    public static final int DEFAULT_MAX_ACTIVE =
+        TPCMasterHandler.DEFAULT_CONNECTIONS;
+
     public long slaveID;
     public String hostname;
     public int port;
 
+    /* Idle connections, least recently used first. Guarded by itself. */
+    private final ArrayDeque<IdleConnection> idle =
+        new ArrayDeque<IdleConnection>();
+
+    /* Connections in use, and the most allowed. Guarded by activeLock. */
+    private final Object activeLock = new Object();
+    private int active;
+    private int maxActive = DEFAULT_MAX_ACTIVE;
+
     /**
      * Construct a TPCSlaveInfo to represent a slave server.
      *
@@ -95,6 +120,161 @@ public class TPCSlaveInfo {
         }
     }
 
+    /**
+     * Takes an idle pooled connection to the slave, skipping and closing any
+     * that have been idle too long or are no longer usable. A connection that
+     * passes these checks may still turn out to have been closed by the
+     * slave, so a request that fails on it should be retried on a new one.
+     *
+     * @return pooled Socket connected to SlaveServer, or null if none
+     */
+    public Socket pollIdleHost() {
+        long now = System.currentTimeMillis();
+        while (true) {
+            IdleConnection conn;
+            synchronized (idle) {
+                conn = idle.pollLast();
+            }
+            if (conn == null) {
+                return null;
+            }
+            if (now - conn.since <= MAX_IDLE_TIME && isUsable(conn.sock)) {
+                return conn.sock;
+            }
+            closeHost(conn.sock);
+        }
+    }
+
+    /**
+     * Returns a keep-alive connection to the pool once its response has been
+     * read, closing it instead if the pool already holds maxIdle connections.
+     * Connections that have been idle too long are closed on the way.
+     *
+     * @param sock Socket whose exchange completed successfully
+     * @param maxIdle the most idle connections to keep for this slave
+     */
+    public void releaseHost(Socket sock, int maxIdle) {
+        long now = System.currentTimeMillis();
+        Socket evicted = null;
+        synchronized (idle) {
+            IdleConnection oldest = idle.peekFirst();
+            if (oldest != null && now - oldest.since > MAX_IDLE_TIME) {
+                evicted = idle.pollFirst().sock;
+            }
+            if (idle.size() < maxIdle) {
+                idle.addLast(new IdleConnection(sock, now));
+                sock = null;
+            }
+        }
+        if (evicted != null) {
+            closeHost(evicted);
+        }
+        if (sock != null) {
+            closeHost(sock);
+        }
+    }
+
+    /**
+     * Sets how many connections to the slave may be in use at once. Idle
+     * pooled connections do not count.
+     *
+     * @param maxActive the most connections in use at once, at least 1
+     */
+    public void setMaxActive(int maxActive) {
+        synchronized (activeLock) {
+            this.maxActive = Math.max(1, maxActive);
+            activeLock.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until fewer than maxActive connections to the slave are in use,
+     * then counts one more. Each call that returns must be matched by a call
+     * to releaseConnection().
+     *
+     * @param timeout the most ms to wait
+     * @throws KVException ERROR_SOCKET_TIMEOUT if no connection frees up in
+     *         time
+     */
+    public void acquireConnection(int timeout) throws KVException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (activeLock) {
+            while (active >= maxActive) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    throw new KVException(ERROR_SOCKET_TIMEOUT);
+                }
+                try {
+                    activeLock.wait(wait);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+            active++;
+        }
+    }
+
+    /**
+     * Counts one connection taken by acquireConnection() as no longer in use.
+     */
+    public void releaseConnection() {
+        synchronized (activeLock) {
+            active--;
+            activeLock.notify();
+        }
+    }
+
+    /**
+     * Closes every idle pooled connection to the slave.
+     */
+    public void closeIdleHosts() {
+        while (true) {
+            IdleConnection conn;
+            synchronized (idle) {
+                conn = idle.pollFirst();
+            }
+            if (conn == null) {
+                return;
+            }
+            closeHost(conn.sock);
+        }
+    }
+
+    /**
+     * @return the number of idle pooled connections to the slave
+     */
+    int idleHostCount() {
+        synchronized (idle) {
+            return idle.size();
+        }
+    }
+
+    /**
+     * Checks that an idle connection is still open in both directions and
+     * has no unread bytes, which would mean the stream is out of step.
+     */
+    private static boolean isUsable(Socket sock) {
+        if (sock.isClosed() || !sock.isConnected() || sock.isInputShutdown()
+                || sock.isOutputShutdown()) {
+            return false;
+        }
+        try {
+            return sock.getInputStream().available() == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static class IdleConnection {
+        final Socket sock;
+        final long since;
+
+        IdleConnection(Socket sock, long since) {
+            this.sock = sock;
+            this.since = since;
+        }
+    }
+
     public String toString() {
         return Long.toString(slaveID) + "@" + hostname + ":" +
                Integer.toString(port);
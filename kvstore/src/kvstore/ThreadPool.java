@@ -1,16 +1,38 @@
 package kvstore;
 
-import java.util.LinkedList;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * A fixed set of worker threads servicing jobs without a shared lock.
+ *
+ * Each worker owns a lock-free deque. Jobs submitted from outside the pool
+ * are spread round-robin over the deques, and jobs submitted by a worker go
+ * onto its own deque. A worker takes from its own deque first and steals
+ * from the others when that is empty, so no single queue or monitor is
+ * touched by every submit and take. Jobs are taken oldest first from every
+ * deque, which keeps long-waiting connections from being starved.
+ *
+ * Workers with nothing to do park themselves on an idle queue; a submit
+ * wakes at most one of them and never blocks.
+ */
 public class ThreadPool {
 
     /* Array of threads in the threadpool */
     public Thread threads[];
-    
-    /* Queue of Runnables to be executed by workers. */
-    private Queue<Runnable> tasks;
-    
+
+    /* One deque of Runnables per worker (at least one). */
+    private ConcurrentLinkedDeque<Runnable>[] deques;
+
+    /* Threads parked in getJob() waiting for a job to arrive. */
+    private Queue<Thread> idle;
+
+    /* Round-robin cursor for jobs submitted from outside the pool. */
+    private AtomicInteger nextDeque;
+
     /* Thread pool status indicator. */
     volatile boolean running;
 
@@ -19,57 +41,130 @@ public class ThreadPool {
      *
      * @param size number of threads in the thread pool
      */
+    @SuppressWarnings("unchecked")
     public ThreadPool(int size) {
         running = true;
         threads = new Thread[size];
-        tasks = new LinkedList<Runnable>();
+        deques = new ConcurrentLinkedDeque[Math.max(1, size)];
+        for (int i = 0; i < deques.length; i++) {
+            deques[i] = new ConcurrentLinkedDeque<Runnable>();
+        }
+        idle = new ConcurrentLinkedQueue<Thread>();
+        nextDeque = new AtomicInteger();
         for (int i = 0; i < size; i++) {
-            threads[i] = new WorkerThread(this);
+            WorkerThread worker = new WorkerThread(this);
+            worker.index = i;
+            threads[i] = worker;
             threads[i].start();
         }
     }
 
     /**
-     * Add a job to the queue of jobs that have to be executed. As soon as a
-     * thread is available, the thread will retrieve a job from this queue if
-     * if one exists and start processing it.
+     * Add a job to be executed. The job is placed on the submitting worker's
+     * own deque, or on the next deque in turn if the caller is not one of
+     * this pool's workers, and an idle worker (if any) is woken to take it.
+     * Never blocks.
      *
      * @param r job that has to be executed
-     * @throws InterruptedException if thread is interrupted while in blocked
-     *         state. Your implementation may or may not actually throw this.
+     * @throws InterruptedException never in this implementation; declared
+     *         for compatibility with callers and subclasses
      */
     public void addJob(Runnable r) throws InterruptedException {
-        synchronized (tasks) {
-            boolean added = false;
-            while (!added) {
-                added = tasks.offer(r); 
-            }
-            tasks.notify();
+        deques[homeIndex()].offerLast(r);
+        Thread sleeper = idle.poll();
+        if (sleeper != null) {
+            LockSupport.unpark(sleeper);
         }
     }
 
     /**
-     * Block until a job is present in the queue and retrieve the job
-     * @return A runnable task that has to be executed
-     * @throws InterruptedException if thread is interrupted while in blocked
-     *         state. Your implementation may or may not actually throw this.
+     * Block until a job is present and retrieve it, looking at the caller's
+     * own deque before stealing from the others.
+     *
+     * @return A runnable task that has to be executed, or null once the pool
+     *         has been closed
+     * @throws InterruptedException if thread is interrupted while waiting
+     *         for a job
      */
     public Runnable getJob() throws InterruptedException {
-        synchronized (tasks) {
-            while (tasks.peek() == null) {
-                tasks.wait();
+        Thread self = Thread.currentThread();
+        int home = homeIndex();
+        while (true) {
+            Runnable job = findJob(home);
+            if (job != null || !running) {
+                return job;
+            }
+            /* Advertise as idle, then look again: a job submitted in between
+             * either shows up in this second scan or its submitter finds us
+             * on the idle queue and unparks us. */
+            idle.offer(self);
+            job = findJob(home);
+            if (job != null || !running) {
+                idle.remove(self);
+                return job;
             }
-            return tasks.poll();
+            LockSupport.park(this);
+            idle.remove(self);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * Counts the jobs waiting for a worker. Walks every deque, so it is
+     * meant for metrics rather than for scheduling decisions. Always 0 for
+     * a VirtualThreadPool, which never queues.
+     *
+     * @return the number of jobs submitted but not yet taken
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (ConcurrentLinkedDeque<Runnable> deque : deques) {
+            depth += deque.size();
         }
+        return depth;
     }
-    
+
     /**
-     * Signal workers to exit cleanly.
+     * Signal workers to exit cleanly. Idle workers are woken so that they
+     * notice; busy workers exit after their current job.
      */
     public void close() {
         running = false;
+        for (Thread thread : threads) {
+            LockSupport.unpark(thread);
+        }
     }
-    
+
+    /**
+     * Take the oldest job from the deque at home, or failing that from any
+     * other deque.
+     */
+    private Runnable findJob(int home) {
+        for (int i = 0; i < deques.length; i++) {
+            Runnable job = deques[(home + i) % deques.length].pollFirst();
+            if (job != null) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The deque belonging to the calling worker, or the next deque in turn
+     * for any other thread.
+     */
+    private int homeIndex() {
+        Thread self = Thread.currentThread();
+        if (self instanceof WorkerThread
+                && ((WorkerThread) self).threadPool == this) {
+            return ((WorkerThread) self).index;
+        }
+        return (nextDeque.getAndIncrement() & Integer.MAX_VALUE)
+            % deques.length;
+    }
+
     /**
      * A thread in the thread pool.
      */
@@ -77,6 +172,9 @@ public class ThreadPool {
 
         public ThreadPool threadPool;
 
+        /* Position of this worker's deque in the pool. */
+        int index;
+
         /**
          * Constructs a thread for this particular ThreadPool.
          *
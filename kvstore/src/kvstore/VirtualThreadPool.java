@@ -0,0 +1,79 @@
+package kvstore;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * A ThreadPool that runs every job on its own virtual thread instead of
+ * queueing it for a fixed set of workers. A job blocked in socket I/O then
+ * parks its virtual thread rather than a carrier, so the number of
+ * connections serviced at once is no longer capped by a thread count.
+ *
+ * Virtual threads need a Java 21 runtime. The class is looked up
+ * reflectively so the code still builds at our source level; on an older
+ * runtime each job gets a new daemon platform thread instead, which keeps
+ * the same unbounded semantics at a higher cost per connection. Use
+ * isVirtual() to tell the two apart.
+ */
+public class VirtualThreadPool extends ThreadPool {
+
+    /* Thread.startVirtualThread(Runnable), or null before Java 21. */
+    private static final Method START_VIRTUAL = findStartVirtual();
+
+    /**
+     * Constructs a VirtualThreadPool. No threads exist until jobs arrive.
+     */
+    public VirtualThreadPool() {
+        super(0);
+    }
+
+    /**
+     * @return true if this runtime supports virtual threads
+     */
+    public static boolean isVirtual() {
+        return START_VIRTUAL != null;
+    }
+
+    /**
+     * Start a thread running the job. Jobs added after close() are dropped,
+     * as they would never be picked up by a closed ThreadPool either.
+     *
+     * @param r job that has to be executed
+     */
+    @Override
+    public void addJob(Runnable r) throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        if (START_VIRTUAL != null) {
+            try {
+                START_VIRTUAL.invoke(null, r);
+                return;
+            } catch (IllegalAccessException e) {
+                /* Fall through to a platform thread. */
+            } catch (InvocationTargetException e) {
+                /* Fall through to a platform thread. */
+            }
+        }
+        Thread thread = new Thread(r);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Jobs are never queued, so there is nothing to retrieve.
+     */
+    @Override
+    public Runnable getJob() {
+        return null;
+    }
+
+    private static Method findStartVirtual() {
+        try {
+            return Thread.class.getMethod("startVirtualThread", Runnable.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+}
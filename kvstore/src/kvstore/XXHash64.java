@@ -0,0 +1,207 @@
+package kvstore;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+/**
+ * xxHash64 of a key's UTF-8 bytes. Every output bit depends on every input
+ * byte, so short keys that share a prefix still spread evenly over sets and
+ * over the ring.
+ *
+ * ASCII keys, the common case, are hashed straight from the String's chars
+ * without allocating. Other keys are encoded to UTF-8 first. Keys already
+ * held as UTF-8 bytes, as in a snapshot file, can be hashed in place with
+ * hash(ByteBuffer, int, int), to the same value.
+ */
+public class XXHash64 implements KeyHash {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    private final long seed;
+
+    /**
+     * Constructs an xxHash64 with seed 0.
+     */
+    public XXHash64() {
+        this(0);
+    }
+
+    /**
+     * @param seed the xxHash64 seed
+     */
+    public XXHash64(long seed) {
+        this.seed = seed;
+    }
+
+    @Override
+    public long hash(String key) {
+        int len = key.length();
+        for (int i = 0; i < len; i++) {
+            if (key.charAt(i) >= 0x80) {
+                byte[] bytes = key.getBytes(UTF_8);
+                return hashBytes(
+                    ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN),
+                    0, bytes.length, seed);
+            }
+        }
+        return hashBytes(key, seed);
+    }
+
+    /**
+     * Hashes length bytes of b from offset, without moving b's position.
+     * A key's UTF-8 bytes hash to the same value as hash(key).
+     *
+     * @param b buffer holding the bytes, in either byte order
+     * @param offset index of the first byte
+     * @param length number of bytes
+     * @return the hash of the bytes
+     */
+    public long hash(ByteBuffer b, int offset, int length) {
+        return hashBytes(b, offset, length, seed);
+    }
+
+    /**
+     * Hashes a String whose chars are all below 256, taking each char as
+     * one byte.
+     */
+    private static long hashBytes(String b, long seed) {
+        int len = b.length();
+        int p = 0;
+        long h;
+        if (len >= 32) {
+            long v1 = seed + PRIME1 + PRIME2;
+            long v2 = seed + PRIME2;
+            long v3 = seed;
+            long v4 = seed - PRIME1;
+            int limit = len - 32;
+            do {
+                v1 = round(v1, getLong(b, p));
+                v2 = round(v2, getLong(b, p + 8));
+                v3 = round(v3, getLong(b, p + 16));
+                v4 = round(v4, getLong(b, p + 24));
+                p += 32;
+            } while (p <= limit);
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7)
+                + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = merge(h, v1);
+            h = merge(h, v2);
+            h = merge(h, v3);
+            h = merge(h, v4);
+        } else {
+            h = seed + PRIME5;
+        }
+        h += len;
+        for (; p + 8 <= len; p += 8) {
+            h ^= round(0, getLong(b, p));
+            h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+        }
+        if (p + 4 <= len) {
+            h ^= getInt(b, p) * PRIME1;
+            h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+            p += 4;
+        }
+        for (; p < len; p++) {
+            h ^= b.charAt(p) * PRIME5;
+            h = Long.rotateLeft(h, 11) * PRIME1;
+        }
+        return avalanche(h);
+    }
+
+    /**
+     * The same as hashBytes(String, long), reading bytes from a buffer.
+     */
+    private static long hashBytes(ByteBuffer b, int offset, int len,
+            long seed) {
+        boolean swap = b.order() != ByteOrder.LITTLE_ENDIAN;
+        int end = offset + len;
+        int p = offset;
+        long h;
+        if (len >= 32) {
+            long v1 = seed + PRIME1 + PRIME2;
+            long v2 = seed + PRIME2;
+            long v3 = seed;
+            long v4 = seed - PRIME1;
+            int limit = end - 32;
+            do {
+                v1 = round(v1, getLong(b, p, swap));
+                v2 = round(v2, getLong(b, p + 8, swap));
+                v3 = round(v3, getLong(b, p + 16, swap));
+                v4 = round(v4, getLong(b, p + 24, swap));
+                p += 32;
+            } while (p <= limit);
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7)
+                + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = merge(h, v1);
+            h = merge(h, v2);
+            h = merge(h, v3);
+            h = merge(h, v4);
+        } else {
+            h = seed + PRIME5;
+        }
+        h += len;
+        for (; p + 8 <= end; p += 8) {
+            h ^= round(0, getLong(b, p, swap));
+            h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+        }
+        if (p + 4 <= end) {
+            h ^= getInt(b, p, swap) * PRIME1;
+            h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+            p += 4;
+        }
+        for (; p < end; p++) {
+            h ^= (b.get(p) & 0xFF) * PRIME5;
+            h = Long.rotateLeft(h, 11) * PRIME1;
+        }
+        return avalanche(h);
+    }
+
+    private static long avalanche(long h) {
+        h ^= h >>> 33;
+        h *= PRIME2;
+        h ^= h >>> 29;
+        h *= PRIME3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * PRIME2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME1;
+    }
+
+    private static long merge(long acc, long v) {
+        acc ^= round(0, v);
+        return acc * PRIME1 + PRIME4;
+    }
+
+    /** Little-endian 64-bit read. */
+    private static long getLong(String b, int p) {
+        return getInt(b, p) | getInt(b, p + 4) << 32;
+    }
+
+    /** Little-endian unsigned 32-bit read. */
+    private static long getInt(String b, int p) {
+        return (long) (b.charAt(p) | b.charAt(p + 1) << 8
+            | b.charAt(p + 2) << 16 | b.charAt(p + 3) << 24) & 0xFFFFFFFFL;
+    }
+
+    /** Little-endian 64-bit read, whatever b's byte order. */
+    private static long getLong(ByteBuffer b, int p, boolean swap) {
+        long v = b.getLong(p);
+        return swap ? Long.reverseBytes(v) : v;
+    }
+
+    /** Little-endian unsigned 32-bit read, whatever b's byte order. */
+    private static long getInt(ByteBuffer b, int p, boolean swap) {
+        int v = b.getInt(p);
+        return (swap ? Integer.reverseBytes(v) : v) & 0xFFFFFFFFL;
+    }
+}
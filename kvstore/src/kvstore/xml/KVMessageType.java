@@ -8,6 +8,8 @@
 
 package kvstore.xml;
 
+import java.util.ArrayList;
+import java.util.List;
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlAttribute;
@@ -28,6 +30,7 @@ import javax.xml.bind.annotation.XmlType;
  *         &lt;element name="Key" type="{http://www.w3.org/2001/XMLSchema}string" minOccurs="0"/>
  *         &lt;element name="Value" type="{http://www.w3.org/2001/XMLSchema}string" minOccurs="0"/>
  *         &lt;element name="Message" type="{http://www.w3.org/2001/XMLSchema}string" minOccurs="0"/>
+ *         &lt;element name="Entry" type="{}KVEntryType" maxOccurs="unbounded" minOccurs="0"/>
  *       &lt;/sequence>
  *       &lt;attribute name="type" use="required" type="{http://www.w3.org/2001/XMLSchema}string" />
  *     &lt;/restriction>
@@ -41,7 +44,8 @@ import javax.xml.bind.annotation.XmlType;
 @XmlType(name = "KVMessageType", propOrder = {
     "key",
     "value",
-    "message"
+    "message",
+    "entry"
 })
 public class KVMessageType {
 
@@ -51,6 +55,8 @@ public class KVMessageType {
     protected String value;
     @XmlElement(name = "Message")
     protected String message;
+    @XmlElement(name = "Entry")
+    protected List<KVEntryType> entry;
     @XmlAttribute(name = "type", required = true)
     protected String type;
 
@@ -126,6 +132,35 @@ public class KVMessageType {
         this.message = value;
     }
 
+    /**
+     * Gets the value of the entry property.
+     * 
+     * <p>
+     * This accessor method returns a reference to the live list,
+     * not a snapshot. Therefore any modification you make to the
+     * returned list will be present inside the JAXB object.
+     * This is why there is not a <CODE>set</CODE> method for the entry property.
+     * 
+     * <p>
+     * For example, to add a new item, do as follows:
+     * <pre>
+     *    getEntry().add(newItem);
+     * </pre>
+     * 
+     * 
+     * <p>
+     * Objects of the following type(s) are allowed in the list
+     * {@link KVEntryType }
+     * 
+     * 
+     */
+    public List<KVEntryType> getEntry() {
+        if (entry == null) {
+            entry = new ArrayList<KVEntryType>();
+        }
+        return this.entry;
+    }
+
     /**
      * Gets the value of the type property.
      * 
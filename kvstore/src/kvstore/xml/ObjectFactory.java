@@ -58,6 +58,14 @@ public class ObjectFactory {
         return new KVMessageType();
     }
 
+    /**
+     * Create an instance of {@link KVEntryType }
+     * 
+     */
+    public KVEntryType createKVEntryType() {
+        return new KVEntryType();
+    }
+
     /**
      * Create an instance of {@link KVStoreType }
      * 
@@ -5,11 +5,17 @@ import static kvstore.KVConstants.ERROR_INVALID_KEY;
 import static kvstore.KVConstants.ERROR_INVALID_VALUE;
 import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
 import static kvstore.KVConstants.ERROR_OVERSIZED_KEY;
+import static kvstore.KVConstants.GET_REQ;
+import static kvstore.KVConstants.PUT_REQ;
+import static kvstore.KVConstants.SUCCESS;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 
@@ -24,6 +30,117 @@ public class EndToEndTest extends EndToEndTemplate {
         client.del("key");
     }
 
+    @Test
+    public void binaryFormatTest() throws KVException {
+        client.setFormat(KVMessage.Format.BINARY);
+        client.put("key", "value");
+        assertEquals("value", client.get("key"));
+        client.del("key");
+        try {
+            client.get("key");
+            fail("Should have thrown a KVException: ERROR_NO_SUCH_KEY");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test
+    public void keepAliveTest() throws KVException {
+        client.setKeepAlive(true);
+        for (int i = 0; i < 100; i++) {
+            client.put("key" + i, "value" + i);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals("value" + i, client.get("key" + i));
+            client.del("key" + i);
+        }
+        try {
+            client.get("key0");
+            fail("Should have thrown a KVException: ERROR_NO_SUCH_KEY");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+        client.close();
+        client.put("reopened", "connection");
+        assertEquals("connection", client.get("reopened"));
+        client.setKeepAlive(false);
+    }
+
+    @Test
+    public void pipelineTest() throws KVException {
+        client.setKeepAlive(true);
+        client.setMaxInFlight(4);
+        List<KVMessage> rqsts = new ArrayList<KVMessage>();
+        for (int i = 0; i < 50; i++) {
+            KVMessage put = new KVMessage(PUT_REQ);
+            put.setKey("pipe" + i);
+            put.setValue("lined" + i);
+            rqsts.add(put);
+        }
+        for (int i = 0; i < 50; i++) {
+            KVMessage get = new KVMessage(GET_REQ);
+            get.setKey("pipe" + i);
+            rqsts.add(get);
+        }
+        KVMessage miss = new KVMessage(GET_REQ);
+        miss.setKey("not there");
+        rqsts.add(miss);
+
+        List<KVMessage> resps = client.pipeline(rqsts);
+        assertEquals(rqsts.size(), resps.size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(SUCCESS, resps.get(i).getMessage());
+            assertEquals("lined" + i, resps.get(50 + i).getValue());
+        }
+        assertEquals(ERROR_NO_SUCH_KEY, resps.get(100).getMessage());
+        client.setKeepAlive(false);
+    }
+
+    @Test
+    public void batchTest() throws KVException {
+        Map<String, String> pairs = new HashMap<String, String>();
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            pairs.put("batch" + i, "value" + i);
+            keys.add("batch" + i);
+        }
+        client.mput(pairs);
+        keys.add("not there");
+        assertEquals(pairs, client.mget(keys));
+
+        client.setFormat(KVMessage.Format.BINARY);
+        assertEquals(pairs, client.mget(keys));
+        try {
+            client.mdel(keys);
+            fail("Should have thrown a KVException: ERROR_NO_SUCH_KEY");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+        assertEquals(pairs, client.mget(keys));
+        keys.remove("not there");
+        client.mdel(keys);
+        assertEquals(0, client.mget(keys).size());
+    }
+
+    @Test
+    public void largeBatchTest() throws KVException {
+        /* Twenty of the largest values, two bytes a char in UTF-8, are
+         * several frames' worth. */
+        Map<String, String> pairs = new HashMap<String, String>();
+        List<String> keys = new ArrayList<String>();
+        char[] value = new char[256 * 1024];
+        for (int i = 0; i < 20; i++) {
+            Arrays.fill(value, (char) ('\u00e0' + i));
+            pairs.put("large" + i, new String(value));
+            keys.add("large" + i);
+        }
+        client.setFormat(KVMessage.Format.BINARY);
+        client.mput(pairs);
+        assertEquals(pairs, client.mget(keys));
+        client.mdel(keys);
+        assertEquals(0, client.mget(keys).size());
+    }
+
     @Test
     public void multipleEntriesTest() throws KVException {
         client.put("IM", "Imran Mahmood");
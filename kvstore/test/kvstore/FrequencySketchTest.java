@@ -0,0 +1,72 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutDefault;
+import static autograder.TestUtils.kTimeoutQuick;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class FrequencySketchTest {
+
+    @Test(timeout = kTimeoutQuick)
+    public void countsAndSaturates() {
+        FrequencySketch sketch = new FrequencySketch(64);
+        assertEquals(0, sketch.frequency("a"));
+        for (int i = 0; i < 5; i++) {
+            sketch.increment("a");
+        }
+        sketch.increment("b");
+        assertTrue(sketch.frequency("a") >= 5);
+        assertTrue(sketch.frequency("b") >= 1);
+        assertTrue(sketch.frequency("a") > sketch.frequency("b"));
+        for (int i = 0; i < 20; i++) {
+            sketch.increment("a");
+        }
+        assertEquals(15, sketch.frequency("a"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void halvesAfterSample() {
+        FrequencySketch sketch = new FrequencySketch(16);
+        for (int i = 0; i < 12; i++) {
+            sketch.increment("hot");
+        }
+        /* 10 * 16 increments complete a sample; most come from other keys. */
+        for (int i = 0; i < 160; i++) {
+            sketch.increment("other" + i);
+        }
+        int hot = sketch.frequency("hot");
+        assertTrue("hot=" + hot, hot >= 6 && hot < 12);
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    public void concurrentIncrementsAreNotLost() throws InterruptedException {
+        final FrequencySketch sketch = new FrequencySketch(64);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[7];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    sketch.increment("shared");
+                    sketch.increment("shared");
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        /* Fourteen, just short of saturating. */
+        assertEquals(14, sketch.frequency("shared"));
+    }
+}
@@ -0,0 +1,76 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutDefault;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import kvstore.TPCMaster.HashRing;
+
+import org.junit.Test;
+
+public class HashRingTest {
+
+    private static List<TPCSlaveInfo> slaves(long... ids) throws KVException {
+        List<TPCSlaveInfo> infos = new ArrayList<TPCSlaveInfo>();
+        for (int i = 0; i < ids.length; i++) {
+            infos.add(new TPCSlaveInfo(ids[i] + "@host:" + (i + 1)));
+        }
+        return infos;
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    public void singleNodeRingMatchesSlaveIds() throws KVException {
+        List<TPCSlaveInfo> infos = slaves(-1L, 5L, Long.MIN_VALUE / 2, 100L);
+        HashRing ring = new HashRing(infos, 1);
+        assertEquals(5L, ring.ownerOf(0L).getSlaveID());
+        assertEquals(5L, ring.ownerOf(5L).getSlaveID());
+        assertEquals(100L, ring.ownerOf(6L).getSlaveID());
+        assertEquals(Long.MIN_VALUE / 2, ring.ownerOf(101L).getSlaveID());
+        assertEquals(-1L, ring.ownerOf(-2L).getSlaveID());
+        assertEquals(-1L, ring.ownerOf(-1L).getSlaveID());
+
+        assertEquals(100L, ring.successorOf(5L).getSlaveID());
+        assertEquals(5L, ring.successorOf(-1L).getSlaveID());
+        assertEquals(5L, ring.successorOf(1L).getSlaveID());
+
+        assertNull(new HashRing(new ArrayList<TPCSlaveInfo>(), 8).ownerOf(0L));
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    public void virtualNodesBalanceClusteredIds() throws KVException {
+        /* With one point each, the slave at 0 would own almost every key. */
+        int numSlaves = 200;
+        long[] ids = new long[numSlaves];
+        Map<Long, Integer> load = new HashMap<Long, Integer>();
+        for (int i = 0; i < numSlaves; i++) {
+            ids[i] = i * 1000L;
+            load.put(ids[i], 0);
+        }
+        List<TPCSlaveInfo> infos = slaves(ids);
+        Collections.shuffle(infos, new Random(3));
+        HashRing ring = new HashRing(infos, 128);
+
+        Random rand = new Random(17);
+        int numKeys = 100000;
+        for (int i = 0; i < numKeys; i++) {
+            String key = Long.toString(rand.nextLong(), 36);
+            long first = ring.ownerOf(TPCMaster.hashTo64bit(key)).getSlaveID();
+            load.put(first, load.get(first) + 1);
+            assertEquals((first + 1000) % (numSlaves * 1000L),
+                         ring.successorOf(first).getSlaveID());
+        }
+        int mean = numKeys / numSlaves;
+        for (int count : load.values()) {
+            assertTrue(count > mean / 3);
+            assertTrue(count < mean * 3);
+        }
+    }
+}
@@ -8,6 +8,8 @@ import static autograder.TestUtils.kTimeoutQuick;
 import autograder.AGCategories.AGTestDetails;
 import autograder.AGCategories.AG_PROJ3_CODE;
 
+import java.util.concurrent.locks.Lock;
+
 import org.junit.*;
 import org.junit.experimental.categories.Category;
 
@@ -254,4 +256,203 @@ public class KVCacheTest {
         assertEquals(cache.get("woah"), null);
         System.out.println(cache.toXML());
     }
+
+    @Test(timeout = kTimeoutQuick)
+    public void largeSetReusesFreedSlotsAndEvictsUnreferenced() {
+        KVCache cache = new KVCache(1, 1000);
+        for (int i = 0; i < 1000; i++) {
+            cache.put("k" + i, "v" + i);
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            cache.del("k" + i);
+        }
+        assertEquals(500, cache.getCacheSetSize(0));
+        for (int i = 1000; i < 1500; i++) {
+            cache.put("k" + i, "v" + i);
+        }
+        assertEquals(1000, cache.getCacheSetSize(0));
+        assertEquals("v999", cache.get("k999"));
+        assertEquals("v1499", cache.get("k1499"));
+
+        /* Full and all referenced: one sweep clears every bit, then the
+         * oldest entry (k1, inserted first and never touched) goes. */
+        cache.put("new", "entry");
+        assertEquals(null, cache.get("k1"));
+        assertEquals("v3", cache.get("k3"));
+        /* k3 was just referenced, so the next victim is k5. */
+        cache.put("newer", "entry");
+        assertEquals(null, cache.get("k5"));
+        assertEquals("v3", cache.get("k3"));
+        assertEquals(1000, cache.getCacheSetSize(0));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void getSharedOnlyInReadMostlyMode() {
+        KVCache cache = new KVCache(1, 4);
+        cache.put("hello", "world");
+        assertNull(cache.getShared("hello"));
+
+        cache = new KVCache(2, 4, true);
+        cache.put("hello", "world");
+        assertEquals("world", cache.getShared("hello"));
+        assertNull(cache.getShared("missing"));
+        cache.del("hello");
+        assertNull(cache.getShared("hello"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void getSharedWaitsForWriter() throws InterruptedException {
+        final KVCache cache = new KVCache(1, 4, true);
+        cache.put("hello", "world");
+        final String[] seen = new String[1];
+        Lock lock = cache.getLock("hello");
+        lock.lock();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                seen[0] = cache.getShared("hello");
+            }
+        };
+        try {
+            reader.start();
+            reader.join(100);
+            assertTrue(reader.isAlive());
+            cache.put("hello", "there");
+        } finally {
+            lock.unlock();
+        }
+        reader.join();
+        assertEquals("there", seen[0]);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void statsCountHitsMissesAndEvictions() {
+        KVCache cache = new KVCache(1, 2, true);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        assertEquals("1", cache.get("a"));
+        assertEquals("2", cache.getShared("b"));
+        assertNull(cache.get("c"));
+        cache.put("c", "3");
+        cache.put("d", "4");
+        CacheStats stats = cache.getStats();
+        assertEquals(1, stats.getNumSets());
+        assertEquals(2, stats.getHits(0));
+        assertEquals(1, stats.getMisses(0));
+        assertEquals(2, stats.getEvictions(0));
+        assertEquals(2.0 / 3, stats.getHitRate(), 1e-9);
+
+        cache.resetStats();
+        assertEquals(0, cache.getStats().getHits());
+        assertEquals(0.0, cache.getStats().getHitRate(), 0);
+    }
+
+    private static KVCache tinyLfu(int maxElemsPerSet, long maxBytesPerSet) {
+        return new KVCache(1, maxElemsPerSet, false, KeyHash.STRING_HASH_CODE,
+            KVCache.Policy.TINY_LFU, maxBytesPerSet);
+    }
+
+    /* Reads key through the cache, filling it on a miss as KVServer does. */
+    private static void read(KVCache cache, String key) {
+        if (cache.get(key) == null) {
+            cache.put(key, "value of " + key);
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void tinyLfuKeepsFrequentKeysThroughScan() {
+        KVCache cache = tinyLfu(4, KVCache.UNLIMITED_BYTES);
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 4; i++) {
+                read(cache, "hot" + i);
+            }
+        }
+        for (int i = 0; i < 20; i++) {
+            read(cache, "scan" + i);
+        }
+        for (int i = 0; i < 4; i++) {
+            assertEquals("value of hot" + i, cache.get("hot" + i));
+        }
+        assertEquals(20, cache.getStats().getRejections());
+        assertEquals(0, cache.getStats().getEvictions());
+
+        KVCache clock = new KVCache(1, 4);
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 4; i++) {
+                read(clock, "hot" + i);
+            }
+        }
+        for (int i = 0; i < 20; i++) {
+            read(clock, "scan" + i);
+        }
+        assertNull(clock.get("hot0"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void tinyLfuAdmitsKeyReadMoreOften() {
+        KVCache cache = tinyLfu(2, KVCache.UNLIMITED_BYTES);
+        read(cache, "a");
+        read(cache, "b");
+        cache.put("new", "1");
+        assertNull(cache.get("new"));
+        for (int i = 0; i < 3; i++) {
+            read(cache, "new");
+        }
+        assertEquals("value of new", cache.get("new"));
+        assertEquals(1, cache.getStats().getEvictions());
+
+        /* Already cached: always updated, whatever its frequency. */
+        cache.put("new", "2");
+        assertEquals("2", cache.get("new"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void tinyLfuRejectsBeforeEvictingAnyVictim() {
+        /* Each entry weighs 20 bytes; "big" needs the whole 40. */
+        KVCache cache = tinyLfu(10, 40);
+        cache.put("k1", "12345678");
+        cache.put("k2", "12345678");
+        for (int i = 0; i < 3; i++) {
+            cache.get("k2");
+        }
+        String big = "12345678901234567";
+        assertNull(cache.get("big"));
+        cache.put("big", big);
+        assertNull(cache.get("big"));
+        assertEquals("12345678", cache.get("k1"));
+        assertEquals("12345678", cache.get("k2"));
+        assertEquals(1, cache.getStats().getRejections());
+        assertEquals(0, cache.getStats().getEvictions());
+
+        for (int i = 0; i < 5; i++) {
+            cache.get("big");
+        }
+        cache.put("big", big);
+        assertEquals(big, cache.get("big"));
+        assertNull(cache.get("k1"));
+        assertNull(cache.get("k2"));
+        assertEquals(2, cache.getStats().getEvictions());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void byteBudgetEvictsBySize() {
+        /* "k1" with a 8-char value weighs 2 * (2 + 8) = 20 bytes. */
+        KVCache cache = new KVCache(1, 10, false, KeyHash.STRING_HASH_CODE,
+            KVCache.Policy.SECOND_CHANCE, 40);
+        cache.put("k1", "12345678");
+        cache.put("k2", "12345678");
+        cache.put("k3", "12345678");
+        assertNull(cache.get("k1"));
+        assertEquals(2, cache.getCacheSetSize(0));
+
+        /* Growing k2 to 30 bytes leaves no room for k3. */
+        cache.put("k2", "1234567890123");
+        assertEquals("1234567890123", cache.get("k2"));
+        assertNull(cache.get("k3"));
+
+        /* Larger than the whole budget: not cached, nor left stale. */
+        cache.put("k2", "123456789012345678901234567890");
+        assertNull(cache.get("k2"));
+        assertEquals(0, cache.getCacheSetSize(0));
+    }
 }
@@ -8,6 +8,11 @@ import static org.mockito.Mockito.*;
 
 import java.io.*;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import javax.xml.parsers.*;
 
@@ -317,6 +322,138 @@ public class KVMessageTest {
         assertKVM(msg2, PUT_REQ, whitespace, "whitespace key", null);
     }
 
+    @Test(timeout = kTimeoutQuick)
+    public void testSendBinaryMessage() throws KVException {
+        KVMessage msg1, msg2;
+
+        msg1 = new KVMessage(PUT_REQ);
+        msg1.setKey("abc");
+        msg1.setValue("d\u00e9f \u4e2d\u6587 <>&");
+        msg1.setFormat(KVMessage.Format.BINARY);
+        msg2 = callSendMessage(msg1);
+        assertKVM(msg2, PUT_REQ, "abc", "d\u00e9f \u4e2d\u6587 <>&", null);
+        assertEquals(KVMessage.Format.BINARY, msg2.getFormat());
+
+        msg1 = new KVMessage(COMMIT, "");
+        msg1.setFormat(KVMessage.Format.BINARY);
+        msg2 = callSendMessage(msg1);
+        assertKVM(msg2, COMMIT, null, null, "");
+
+        /* A copy keeps the wire format of the original. */
+        msg2 = new KVMessage(msg2);
+        assertEquals(KVMessage.Format.BINARY, msg2.getFormat());
+
+        msg1 = new KVMessage(GET_REQ);
+        msg1.setKey("xml");
+        msg2 = callSendMessage(msg1);
+        assertKVM(msg2, GET_REQ, "xml", null, null);
+        assertEquals(KVMessage.Format.XML, msg2.getFormat());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void testSendBatchMessage() throws KVException {
+        LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>();
+        entries.put("zeta", "last \u00e9");
+        entries.put("alpha", null);
+        entries.put("mid", "");
+        for (KVMessage.Format format : KVMessage.Format.values()) {
+            KVMessage msg1 = new KVMessage(MPUT_REQ);
+            msg1.setEntries(entries);
+            msg1.setFormat(format);
+            KVMessage msg2 = callSendMessage(msg1);
+            assertKVM(msg2, MPUT_REQ, null, null, null);
+            assertEquals(new ArrayList<String>(entries.keySet()),
+                         new ArrayList<String>(msg2.getEntries().keySet()));
+            assertEquals(entries, msg2.getEntries());
+            assertEquals(entries, new KVMessage(msg2).getEntries());
+        }
+
+        /* Single-key messages carry no entries in either format. */
+        KVMessage msg1 = new KVMessage(GET_REQ);
+        msg1.setKey("key");
+        msg1.setFormat(KVMessage.Format.BINARY);
+        assertNull(callSendMessage(msg1).getEntries());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void testLargeBatchIsSplit() throws KVException {
+        LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>();
+        char[] value = new char[256 * 1024];
+        for (int i = 0; i < 20; i++) {
+            Arrays.fill(value, (char) ('a' + i));
+            entries.put("key" + i, new String(value));
+        }
+        List<Map<String, String>> runs = KVMessage.splitBatch(entries);
+        assertTrue(runs.size() > 1);
+        LinkedHashMap<String, String> joined = new LinkedHashMap<String, String>();
+        for (Map<String, String> run : runs) {
+            KVMessage msg = new KVMessage(MPUT_REQ);
+            msg.setEntries(run);
+            assertTrue(msg.toBinary().length <= KVMessage.MAX_FRAME_SIZE);
+            joined.putAll(run);
+        }
+        assertEquals(new ArrayList<String>(entries.keySet()),
+                     new ArrayList<String>(joined.keySet()));
+
+        /* An MGET response defers what does not fit, in order. */
+        KVMessage resp = new KVMessage(RESP);
+        resp.setFoundEntries(entries);
+        resp.setFormat(KVMessage.Format.BINARY);
+        resp = callSendMessage(resp);
+        LinkedHashMap<String, String> found = new LinkedHashMap<String, String>();
+        Map<String, String> deferred = resp.collectFoundEntries(found);
+        assertEquals(runs.get(0), found);
+        assertEquals(entries.size() - found.size(), deferred.size());
+        assertTrue(deferred.containsKey("key19"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void keepAliveLeavesOutputOpen() throws IOException, KVException {
+        Socket oSockMock = mock(Socket.class);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        when(oSockMock.getOutputStream()).thenReturn(os);
+
+        KVMessage msg = new KVMessage(GET_REQ);
+        msg.setKey("first");
+        msg.setFormat(KVMessage.Format.BINARY);
+        msg.setKeepAlive(true);
+        msg.sendMessage(oSockMock);
+        msg.setKey("second");
+        msg.sendMessage(oSockMock);
+        verify(oSockMock, never()).shutdownOutput();
+
+        /* Two frames back to back on one stream parse one at a time. */
+        sock = mock(Socket.class);
+        when(sock.getInputStream()).thenReturn(new ByteArrayInputStream(os.toByteArray()));
+        KVMessage first = new KVMessage(sock);
+        KVMessage second = new KVMessage(sock);
+        assertKVM(first, GET_REQ, "first", null, null);
+        assertKVM(second, GET_REQ, "second", null, null);
+        assertTrue(first.isKeepAlive());
+        assertTrue(second.isKeepAlive());
+
+        /* Keep-alive means nothing for XML, which is delimited by EOF. */
+        msg.setFormat(KVMessage.Format.XML);
+        assertFalse(msg.isKeepAlive());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void truncatedBinaryMessageFails() throws IOException {
+        KVMessage msg = new KVMessage(PUT_REQ);
+        msg.setKey("key");
+        msg.setValue("value");
+        byte[] frame = msg.toBinary();
+        sock = mock(Socket.class);
+        when(sock.getInputStream()).thenReturn(
+            new ByteArrayInputStream(frame, 0, frame.length - 1));
+        try {
+            new KVMessage(sock);
+            fail("Truncated frame should not parse");
+        } catch (KVException e) {
+            assertEquals(ERROR_INVALID_FORMAT, e.getKVMessage().getMessage());
+        }
+    }
+
     /* ----------------------- BEGIN HELPER METHODS ------------------------ */
 
     /* Definitely don't make the parse code available to students */
@@ -461,6 +461,26 @@ public class KVServerTest {
         }
     };
 
+    @Test(timeout = kTimeoutQuick)
+    public void readAdmissionFillsCacheOnlyOnGet() throws KVException {
+        setupSpyServer();
+        server.setCacheAdmission(KVServer.CacheAdmission.ON_READ);
+        server.put("admit", "on read");
+        verify(spyCache, never()).put(anyString(), anyString());
+        verify(spyCache).del("admit");
+        server.resetCacheStats();
+
+        assertEquals("on read", server.get("admit"));
+        verify(spyCache).put("admit", "on read");
+        assertEquals("on read", server.get("admit"));
+        CacheStats stats = server.getCacheStats();
+        assertEquals(1, stats.getMisses());
+        assertEquals(1, stats.getHits());
+
+        server.put("admit", "again");
+        assertEquals("again", server.get("admit"));
+    }
+
     // George: Not sure why Isaac commented this out.
     // @Test (timeout = 5000)
     // public void testParallelOps(){
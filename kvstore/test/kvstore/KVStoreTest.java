@@ -11,6 +11,7 @@ import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.StringReader;
 
 import javax.xml.parsers.DocumentBuilder;
@@ -141,4 +142,76 @@ public class KVStoreTest {
         assertEquals("world", store2.get("hello"));
     }
 
+    @Test(timeout = kTimeoutQuick)
+    public void testSnapshotRoundTrip() throws KVException, IOException {
+        store.put("hello", "world");
+        store.put("été", "夏天");
+        store.put("", "empty key");
+        store.writeSnapshot(TEMPORARY_FILE_NAME);
+
+        KVStore store2 = new KVStore();
+        store2.put("stale", "entry");
+        store2.readSnapshot(TEMPORARY_FILE_NAME);
+        assertEquals(3, store2.store.size());
+        assertEquals("world", store2.get("hello"));
+        assertEquals("夏天", store2.get("été"));
+        assertEquals("empty key", store2.get(""));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void testSnapshotSpansChunks() throws KVException, IOException {
+        StringBuilder big = new StringBuilder();
+        while (big.length() < 3 * KVStore.SNAPSHOT_CHUNK) {
+            big.append("chunk é ");
+        }
+        store.put("big", big.toString());
+        for (int i = 0; i < 5000; i++) {
+            store.put("key" + i, "value" + i);
+        }
+        store.writeSnapshot(TEMPORARY_FILE_NAME);
+
+        KVStore store2 = new KVStore();
+        store2.readSnapshot(TEMPORARY_FILE_NAME);
+        assertEquals(5001, store2.store.size());
+        assertEquals(big.toString(), store2.get("big"));
+        assertEquals("value4999", store2.get("key4999"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void testSnapshotChecksumMismatch() throws IOException {
+        store.put("hello", "world");
+        store.writeSnapshot(TEMPORARY_FILE_NAME);
+        RandomAccessFile f = new RandomAccessFile(TEMPORARY_FILE_NAME, "rw");
+        f.seek(8);
+        f.write('j');
+        f.close();
+
+        KVStore store2 = new KVStore();
+        try {
+            store2.readSnapshot(TEMPORARY_FILE_NAME);
+            fail("corrupt snapshot was read");
+        } catch (IOException e) {
+            assertEquals(0, store2.store.size());
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void testSnapshotLengthPastEnd() throws IOException {
+        store.put("hello", "world");
+        store.writeSnapshot(TEMPORARY_FILE_NAME);
+        /* The first key's length, now far more than the file holds. */
+        RandomAccessFile f = new RandomAccessFile(TEMPORARY_FILE_NAME, "rw");
+        f.seek(4);
+        f.writeInt(Integer.MAX_VALUE - 8);
+        f.close();
+
+        KVStore store2 = new KVStore();
+        try {
+            store2.readSnapshot(TEMPORARY_FILE_NAME);
+            fail("corrupt snapshot was read");
+        } catch (IOException e) {
+            assertEquals("length past end of snapshot", e.getMessage());
+        }
+    }
+
 }
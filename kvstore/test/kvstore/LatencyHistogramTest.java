@@ -0,0 +1,71 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutQuick;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test(timeout = kTimeoutQuick)
+    public void bucketsCoverEveryValue() {
+        int last = -1;
+        for (long v = 0; v < 100000; v++) {
+            int bucket = LatencyHistogram.bucketOf(v);
+            assertTrue(bucket == last || bucket == last + 1);
+            assertTrue(v <= LatencyHistogram.upperBoundOf(bucket));
+            last = bucket;
+        }
+        int top = LatencyHistogram.bucketOf(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBoundOf(top));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void percentilesAreWithinBucketError() {
+        LatencyHistogram hist = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            hist.record(i * 1000L);
+        }
+        LatencyHistogram.Snapshot snap = hist.snapshot();
+        assertEquals(1000, snap.getCount());
+        assertEquals(500500.0, snap.getMean(), 1e-6);
+        assertEquals(1000000, snap.getMax());
+        assertWithin(500000, snap.getPercentile(50));
+        assertWithin(990000, snap.getPercentile(99));
+        assertEquals(1000000, snap.getPercentile(100));
+
+        hist.reset();
+        assertEquals(0, hist.snapshot().getCount());
+        assertEquals(0, hist.snapshot().getPercentile(99));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void metricsPullAndDump() throws KVException {
+        KVServer server = new KVServer(4, 4);
+        server.put("key", "value");
+        server.get("key");
+        server.get("key");
+        server.del("key");
+
+        Metrics metrics = server.getMetrics();
+        Map<String, LatencyHistogram.Snapshot> hists = metrics.getHistograms();
+        assertEquals(1, hists.get("put").getCount());
+        assertEquals(2, hists.get("get").getCount());
+        assertEquals(1, hists.get("del").getCount());
+        assertEquals(Long.valueOf(2), metrics.getGauges().get("cache.hits"));
+        String dump = metrics.dump();
+        assertTrue(dump.contains("server.get count=2 "));
+        assertTrue(dump.contains("server.cache.hits 2\n"));
+
+        metrics.reset();
+        assertEquals(0, metrics.getHistograms().get("get").getCount());
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(actual + " not within 12.5% of " + expected,
+            actual >= expected && actual <= expected * 1.125);
+    }
+}
@@ -0,0 +1,125 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutQuick;
+import static kvstore.KVConstants.ERROR_COULD_NOT_READ_SNAPSHOT;
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedKVStoreTest {
+
+    public static final String TEMPORARY_FILE_NAME = "temp-mapped.txt";
+    public static final String SECOND_FILE_NAME = "temp-mapped2.txt";
+    MappedKVStore store;
+
+    @Before
+    public void setupStore() throws IOException {
+        KVStore source = new KVStore();
+        for (int i = 0; i < 3000; i++) {
+            source.put("key" + i, "value" + i);
+        }
+        source.put("été", "夏天");
+        source.writeSnapshot(TEMPORARY_FILE_NAME);
+        store = new MappedKVStore();
+        store.put("stale", "entry");
+        store.readSnapshot(TEMPORARY_FILE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        for (String name : new String[] {TEMPORARY_FILE_NAME, SECOND_FILE_NAME}) {
+            File f = new File(name);
+            if (f.exists()) {
+                f.delete();
+            }
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void servesMappedSnapshot() throws KVException {
+        assertEquals("value0", store.get("key0"));
+        assertEquals("value2999", store.get("key2999"));
+        assertEquals("夏天", store.get("été"));
+        assertMissing("stale");
+        assertMissing("key3000");
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void writesShadowSnapshot() throws KVException {
+        store.put("key1", "new");
+        store.del("key2");
+        store.put("fresh", "pair");
+        assertEquals("new", store.get("key1"));
+        assertMissing("key2");
+        assertEquals("pair", store.get("fresh"));
+
+        store.put("key2", "back");
+        assertEquals("back", store.get("key2"));
+        store.del("key1");
+        assertMissing("key1");
+        try {
+            store.del("key1");
+            fail("deleted a missing key");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void snapshotMergesWrites() throws KVException, IOException {
+        store.put("key1", "new");
+        store.del("key2");
+        store.put("fresh", "pair");
+        store.writeSnapshot(SECOND_FILE_NAME);
+
+        KVStore store2 = new KVStore();
+        store2.readSnapshot(SECOND_FILE_NAME);
+        assertEquals(3001, store2.store.size());
+        assertEquals("new", store2.get("key1"));
+        assertEquals("pair", store2.get("fresh"));
+        assertFalse(store2.store.containsKey("key2"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void corruptSnapshotFailsReads() throws IOException {
+        flipLastByte();
+
+        MappedKVStore corrupt = new MappedKVStore();
+        corrupt.readSnapshot(TEMPORARY_FILE_NAME);
+        assertFalse(corrupt.awaitSnapshot());
+        try {
+            corrupt.get("key0");
+            fail("read from a corrupt snapshot");
+        } catch (KVException e) {
+            assertEquals(ERROR_COULD_NOT_READ_SNAPSHOT,
+                e.getKVMessage().getMessage());
+        }
+    }
+
+    private void flipLastByte() throws IOException {
+        RandomAccessFile f = new RandomAccessFile(TEMPORARY_FILE_NAME, "rw");
+        f.seek(f.length() - 1);
+        int last = f.read();
+        f.seek(f.length() - 1);
+        f.write(last ^ 1);
+        f.close();
+    }
+
+    private void assertMissing(String key) {
+        try {
+            store.get(key);
+            fail("found " + key);
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutQuick;
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OffHeapKVStoreTest {
+
+    public static final String TEMPORARY_FILE_NAME = "temp-offheap.txt";
+    OffHeapKVStore store;
+
+    @Before
+    public void setupStore() {
+        store = new OffHeapKVStore(1024);
+    }
+
+    @After
+    public void tearDown() {
+        File f = new File(TEMPORARY_FILE_NAME);
+        if (f.exists()) {
+            f.delete();
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void putGetDel() throws KVException {
+        store.put("hello", "world");
+        store.put("", "empty key");
+        store.put("empty value", "");
+        store.put("été", "夏天");
+        assertEquals(4, store.size());
+        assertEquals("world", store.get("hello"));
+        assertEquals("empty key", store.get(""));
+        assertEquals("", store.get("empty value"));
+        assertEquals("夏天", store.get("été"));
+
+        store.put("hello", "there");
+        assertEquals("there", store.get("hello"));
+        store.del("hello");
+        assertEquals(3, store.size());
+        try {
+            store.get("hello");
+            fail("get of deleted key should throw");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+        try {
+            store.del("hello");
+            fail("del of deleted key should throw");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void oversizedRecordGetsOwnSlab() throws KVException {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            builder.append((char) ('a' + i % 26));
+        }
+        String big = builder.toString();
+        store.put("small", "value");
+        store.put("big", big);
+        assertEquals(big, store.get("big"));
+        assertEquals("value", store.get("small"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void overwritesReclaimSpace() throws KVException {
+        store.put("stable", "stays put");
+        for (int i = 0; i < 10000; i++) {
+            store.put("key" + (i % 8), "value" + i);
+        }
+        assertEquals("stays put", store.get("stable"));
+        for (int i = 0; i < 8; i++) {
+            assertEquals("value" + (9992 + i), store.get("key" + i));
+        }
+        assertTrue(store.allocatedBytes() <= 4 * 1024);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void dumpAndRestore() throws KVException {
+        store.put("hello", "world");
+        store.put("été", "夏天");
+        store.dumpToFile(TEMPORARY_FILE_NAME);
+
+        OffHeapKVStore store2 = new OffHeapKVStore(1024);
+        store2.put("stale", "entry");
+        store2.restoreFromFile(TEMPORARY_FILE_NAME);
+        assertEquals(2, store2.size());
+        assertEquals("world", store2.get("hello"));
+        assertEquals("夏天", store2.get("été"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void snapshotRoundTrip() throws KVException, IOException {
+        for (int i = 0; i < 200; i++) {
+            store.put("key" + i, "value" + i);
+        }
+        store.del("key7");
+        store.writeSnapshot(TEMPORARY_FILE_NAME);
+
+        OffHeapKVStore store2 = new OffHeapKVStore(1024);
+        store2.readSnapshot(TEMPORARY_FILE_NAME);
+        assertEquals(199, store2.size());
+        assertEquals("value199", store2.get("key199"));
+    }
+}
@@ -0,0 +1,163 @@
+package kvstore;
+
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
+import static kvstore.KVConstants.ERROR_OVERSIZED_VALUE;
+import static kvstore.KVConstants.PUT_REQ;
+import static kvstore.KVConstants.SUCCESS;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class SelectorSocketServerTest {
+
+    String hostname;
+    int port;
+    ServerRunner serverRunner;
+    KVClient client;
+
+    private void startServer(int workers) throws Exception {
+        hostname = InetAddress.getLocalHost().getHostAddress();
+        SocketServer ss = new SelectorSocketServer(hostname, 0, workers);
+        ss.addHandler(new ServerClientHandler(new KVServer(100, 10)));
+        serverRunner = new ServerRunner(ss, "selector");
+        serverRunner.start();
+        port = ss.getPort();
+        client = new KVClient(hostname, port);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (serverRunner != null) {
+            serverRunner.stop();
+        }
+    }
+
+    @Test
+    public void xmlRequests() throws Exception {
+        startServer(2);
+        client.put("foo", "bar");
+        assertEquals("bar", client.get("foo"));
+        client.del("foo");
+        try {
+            client.get("foo");
+            fail("Should have thrown a KVException: ERROR_NO_SUCH_KEY");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test
+    public void malformedRequestIsAnsweredWithError() throws Exception {
+        startServer(2);
+        Socket sock = new Socket(hostname, port);
+        OutputStream out = sock.getOutputStream();
+        out.write("<?xml version=\"1.0\"?><KVMessage type=".getBytes("UTF-8"));
+        sock.shutdownOutput();
+        KVMessage resp = new KVMessage(sock);
+        assertNotEquals(SUCCESS, resp.getMessage());
+        sock.close();
+
+        client.put("foo", "bar");
+        assertEquals("bar", client.get("foo"));
+    }
+
+    @Test
+    public void binaryKeepAliveAndPipeline() throws Exception {
+        startServer(2);
+        client.setFormat(KVMessage.Format.BINARY);
+        client.put("foo", "bar");
+        assertEquals("bar", client.get("foo"));
+
+        client.setKeepAlive(true);
+        client.setMaxInFlight(8);
+        List<KVMessage> rqsts = new ArrayList<KVMessage>();
+        for (int i = 0; i < 100; i++) {
+            KVMessage put = new KVMessage(PUT_REQ);
+            put.setKey("pipe" + i);
+            put.setValue("lined" + i);
+            rqsts.add(put);
+        }
+        for (KVMessage resp : client.pipeline(rqsts)) {
+            assertEquals(SUCCESS, resp.getMessage());
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals("lined" + i, client.get("pipe" + i));
+        }
+        client.close();
+    }
+
+    @Test
+    public void frameOfMaxBodyLengthIsAccepted() throws Exception {
+        startServer(2);
+        KVMessage put = new KVMessage(PUT_REQ);
+        put.setKey("big");
+        put.setValue("");
+        int overhead = put.toBinary().length - KVMessage.BINARY_HEADER_SIZE;
+        StringBuilder value = new StringBuilder();
+        for (int i = overhead; i < KVMessage.MAX_FRAME_SIZE; i++) {
+            value.append('v');
+        }
+        put.setValue(value.toString());
+        byte[] frame = put.toBinary();
+        assertEquals(KVMessage.MAX_FRAME_SIZE,
+            frame.length - KVMessage.BINARY_HEADER_SIZE);
+
+        Socket sock = new Socket(hostname, port);
+        OutputStream out = sock.getOutputStream();
+        /* Hold back the tail so the server buffers more than MAX_FRAME_SIZE
+         * bytes of an incomplete frame. */
+        out.write(frame, 0, frame.length - 3);
+        out.flush();
+        Thread.sleep(500);
+        out.write(frame, frame.length - 3, 3);
+        sock.shutdownOutput();
+        KVMessage resp = new KVMessage(sock, 5000);
+        assertEquals(ERROR_OVERSIZED_VALUE, resp.getMessage());
+        sock.close();
+    }
+
+    @Test
+    public void idleAndStalledClientsDoNotHoldWorkers() throws Exception {
+        startServer(1);
+        List<Socket> idle = new ArrayList<Socket>();
+        try {
+            for (int i = 0; i < 200; i++) {
+                idle.add(new Socket(hostname, serverRunner.getServer().getPort()));
+            }
+            KVMessage put = new KVMessage(PUT_REQ);
+            put.setKey("slow");
+            put.setValue("poke");
+            byte[] frame = put.toBinary();
+            Socket stalled = idle.get(0);
+            OutputStream out = stalled.getOutputStream();
+            out.write(frame, 0, 3);
+            out.flush();
+
+            client.put("foo", "bar");
+            assertEquals("bar", client.get("foo"));
+
+            out.write(frame, 3, frame.length - 3);
+            stalled.shutdownOutput();
+            KVMessage resp = new KVMessage(stalled, 1000);
+            assertEquals(SUCCESS, resp.getMessage());
+            assertEquals("poke", client.get("slow"));
+        } finally {
+            for (Socket sock : idle) {
+                try {
+                    sock.close();
+                } catch (IOException e) {
+                    continue;
+                }
+            }
+        }
+    }
+
+}
@@ -46,5 +46,24 @@ public class SocketServerTest {
         ss.start();
     }
 
+    @Test(timeout = kTimeoutQuick)
+    public void idleKeepAliveClientDoesNotBlockOthers() throws Exception {
+        ss = new SocketServer(localhostName, 0);
+        ss.addHandler(new ServerClientHandler(new KVServer(100, 10)));
+        ServerRunner runner = new ServerRunner(ss, "default");
+        runner.start();
+        try {
+            KVClient idle = new KVClient(localhostName, ss.getPort());
+            idle.setKeepAlive(true);
+            idle.put("foo", "bar");
+
+            KVClient other = new KVClient(localhostName, ss.getPort());
+            assertEquals("bar", other.get("foo"));
+            idle.close();
+        } finally {
+            runner.stop();
+        }
+    }
+
 
 }
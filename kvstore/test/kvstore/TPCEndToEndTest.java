@@ -1,11 +1,14 @@
 package kvstore;
 
+import static autograder.TestUtils.kTimeoutSlow;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.anyObject;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.times;
@@ -13,11 +16,17 @@ import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.io.File;
 
@@ -306,6 +315,176 @@ public class TPCEndToEndTest {
         }
     }
 
+    @Test
+    public void testBinaryFormat() throws KVException {
+        master.setSlaveFormat(KVMessage.Format.BINARY);
+        client.setFormat(KVMessage.Format.BINARY);
+        client.put(KEY1, "binary");
+        clearCache(spyCache);
+        assertEquals("binary", client.get(KEY1));
+        assertEquals("binary", slave1.get(KEY1));
+        assertEquals("binary", slave2.get(KEY1));
+        client.del(KEY1);
+        assertNoSuchKey(slave1, KEY1);
+        assertNoSuchKey(slave2, KEY1);
+    }
+
+    @Test(timeout = kTimeoutSlow)
+    public void testPooledSlaveConnections() throws KVException {
+        master.setSlaveFormat(KVMessage.Format.BINARY);
+        master.setSlavePoolSize(2);
+        TPCSlaveInfo slaveInfo1 = master.getSlave(SLAVE1);
+        TPCSlaveInfo slaveInfo2 = master.getSlave(SLAVE2);
+        client.put(KEY1, "first");
+        assertEquals(1, slaveInfo1.idleHostCount());
+        assertEquals(1, slaveInfo2.idleHostCount());
+        client.put(KEY1, "second");
+        clearCache(spyCache);
+        assertEquals("second", client.get(KEY1));
+        assertEquals("second", slave1.get(KEY1));
+        assertEquals("second", slave2.get(KEY1));
+        client.del(KEY1);
+        assertNoSuchKey(slave1, KEY1);
+        assertNoSuchKey(slave2, KEY1);
+        assertTrue(slaveInfo1.idleHostCount() <= 2);
+        assertTrue(slaveInfo2.idleHostCount() <= 2);
+        master.setSlavePoolSize(0);
+        assertEquals(0, slaveInfo1.idleHostCount());
+        assertEquals(0, slaveInfo2.idleHostCount());
+    }
+
+    @Test(timeout = kTimeoutSlow)
+    public void testBatchOperations() throws KVException {
+        /* One key per slave, so the batch spans every replica group. */
+        Map<String, String> pairs = new HashMap<String, String>();
+        pairs.put(KEY1, "one");
+        pairs.put(KEY2, "two");
+        pairs.put(KEY3, "three");
+        pairs.put(KEY4, "four");
+        client.mput(pairs);
+        assertEquals("one", slave1.get(KEY1));
+        assertEquals("one", slave2.get(KEY1));
+        assertEquals("four", slave4.get(KEY4));
+        assertEquals("four", slave1.get(KEY4));
+
+        clearCache(spyCache);
+        List<String> keys = new ArrayList<String>(pairs.keySet());
+        keys.add("missing");
+        assertEquals(pairs, client.mget(keys));
+
+        /* A failed group does not stop the others from committing. */
+        try {
+            client.mdel(Arrays.asList(KEY1, KEY2, "missing"));
+            fail("Batch delete with a missing key should have failed");
+        } catch (KVException e) {
+            assertEquals(KVConstants.ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+        client.mdel(Arrays.asList(KEY3, KEY4));
+        assertNoSuchKey(slave3, KEY3);
+        assertNoSuchKey(slave4, KEY4);
+        assertEquals(0, client.mget(Arrays.asList(KEY3, KEY4)).size());
+    }
+
+    @Test(timeout = kTimeoutSlow)
+    public void testLargeBatchOperations() throws KVException {
+        /* Several frames' worth of the largest values, between client and
+         * master and, for the larger groups, between master and slaves. */
+        master.setSlaveFormat(KVMessage.Format.BINARY);
+        client.setFormat(KVMessage.Format.BINARY);
+        Map<String, String> pairs = new HashMap<String, String>();
+        char[] value = new char[256 * 1024];
+        for (int i = 0; i < 20; i++) {
+            Arrays.fill(value, (char) ('a' + i));
+            pairs.put("large" + i, new String(value));
+        }
+        client.mput(pairs);
+
+        clearCache(spyCache);
+        List<String> keys = new ArrayList<String>(pairs.keySet());
+        assertEquals(pairs, client.mget(keys));
+        client.mdel(keys);
+        assertEquals(0, client.mget(keys).size());
+    }
+
+    @Test(timeout = kTimeoutSlow)
+    public void testConcurrentPuts() throws Exception {
+        /* Each key's replica pair overlaps two others, so these transactions
+         * contend for slaves in every order. */
+        final String[] keys = { KEY1, KEY2, KEY3, KEY4 };
+        final Exception[] failures = new Exception[keys.length];
+        Thread[] threads = new Thread[keys.length];
+        for (int t = 0; t < keys.length; t++) {
+            final int id = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 10; i++) {
+                            KVMessage msg = new KVMessage(KVConstants.PUT_REQ);
+                            msg.setKey(keys[id]);
+                            msg.setValue("v" + i);
+                            master.handleTPCRequest(msg, true);
+                        }
+                    } catch (Exception e) {
+                        failures[id] = e;
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (Exception failure : failures) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+        KVServer[] slaves = { slave1, slave2, slave3, slave4 };
+        for (int t = 0; t < keys.length; t++) {
+            assertEquals("v9", slaves[t].get(keys[t]));
+            assertEquals("v9", slaves[(t + 1) % slaves.length].get(keys[t]));
+        }
+    }
+
+    @Test(timeout = kTimeoutSlow)
+    public void testCoalescedGets() throws Exception {
+        TPCSlaveInfo slaveInfo1 = master.getSlave(SLAVE1);
+        doAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(50);
+                return "cold";
+            }
+        }).when(master).getValueFromReplica(eq(slaveInfo1), (KVMessage) anyObject());
+
+        final String[] results = new String[10];
+        Thread[] threads = new Thread[results.length];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        KVMessage msg = new KVMessage(KVConstants.GET_REQ);
+                        msg.setKey(KEY1);
+                        results[id] = master.handleGet(msg);
+                    } catch (KVException e) {
+                        results[id] = e.getKVMessage().getMessage();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (String result : results) {
+            assertEquals("cold", result);
+        }
+        verify(master, times(1)).getValueFromReplica(eq(slaveInfo1), (KVMessage) anyObject());
+    }
+
     @Test
     public void testPutGetDel() throws KVException {
         KVMessage msg1, msg2, msg3, msg4, delReq;
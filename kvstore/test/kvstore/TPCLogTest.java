@@ -0,0 +1,281 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutDefault;
+import static autograder.TestUtils.kTimeoutQuick;
+import static kvstore.KVConstants.COMMIT;
+import static kvstore.KVConstants.DEL_REQ;
+import static kvstore.KVConstants.MDEL_REQ;
+import static kvstore.KVConstants.MPUT_REQ;
+import static kvstore.KVConstants.PUT_REQ;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class TPCLogTest {
+
+    private static final String LOG_PATH = "TPCLogTest.log";
+
+    @After
+    public void tearDown() {
+        new File(LOG_PATH).delete();
+        new File(LOG_PATH + ".snapshot").delete();
+    }
+
+    private static KVMessage put(String key, String value) {
+        KVMessage msg = new KVMessage(PUT_REQ);
+        msg.setKey(key);
+        msg.setValue(value);
+        return msg;
+    }
+
+    private static KVMessage del(String key) {
+        KVMessage msg = new KVMessage(DEL_REQ);
+        msg.setKey(key);
+        return msg;
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void rebuildReplaysCommittedEntries() throws KVException {
+        TPCLog log = new TPCLog(LOG_PATH, new KVServer(10, 10));
+        log.appendAndFlush(put("a", "1"));
+        log.appendAndFlush(new KVMessage(COMMIT));
+        log.appendAndFlush(put("b", "2"));
+        log.appendAndFlush(new KVMessage(COMMIT));
+        log.appendAndFlush(del("a"));
+        log.appendAndFlush(new KVMessage(COMMIT));
+        log.appendAndFlush(put("c", "3"));
+        log.close();
+
+        KVServer server = new KVServer(10, 10);
+        TPCLog rebuilt = new TPCLog(LOG_PATH, server);
+        assertFalse(server.hasKey("a"));
+        assertEquals("2", server.get("b"));
+        assertFalse(server.hasKey("c"));
+        assertEquals(PUT_REQ, rebuilt.getLastEntry().getMsgType());
+        assertEquals("c", rebuilt.getLastEntry().getKey());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void tornTailIsTruncated() throws KVException, IOException {
+        TPCLog log = new TPCLog(LOG_PATH, new KVServer(10, 10));
+        log.appendAndFlush(put("a", "1"));
+        log.appendAndFlush(new KVMessage(COMMIT));
+        log.appendAndFlush(put("b", "2"));
+        log.close();
+        RandomAccessFile file = new RandomAccessFile(LOG_PATH, "rw");
+        file.setLength(file.length() - 3);
+        file.close();
+
+        KVServer server = new KVServer(10, 10);
+        log = new TPCLog(LOG_PATH, server);
+        assertEquals(COMMIT, log.getLastEntry().getMsgType());
+        log.appendAndFlush(put("c", "3"));
+        log.appendAndFlush(new KVMessage(COMMIT));
+        log.close();
+
+        server = new KVServer(10, 10);
+        new TPCLog(LOG_PATH, server);
+        assertEquals("1", server.get("a"));
+        assertFalse(server.hasKey("b"));
+        assertEquals("3", server.get("c"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void legacyLogIsMigrated() throws KVException, IOException {
+        ArrayList<KVMessage> old = new ArrayList<KVMessage>();
+        old.add(put("a", "1"));
+        old.add(new KVMessage(COMMIT));
+        ObjectOutputStream out =
+            new ObjectOutputStream(new FileOutputStream(LOG_PATH));
+        out.writeObject(old);
+        out.close();
+
+        KVServer server = new KVServer(10, 10);
+        TPCLog log = new TPCLog(LOG_PATH, server);
+        assertEquals("1", server.get("a"));
+        log.appendAndFlush(put("b", "2"));
+        log.appendAndFlush(new KVMessage(COMMIT));
+        log.close();
+
+        server = new KVServer(10, 10);
+        new TPCLog(LOG_PATH, server);
+        assertEquals("1", server.get("a"));
+        assertEquals("2", server.get("b"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void checkpointTruncatesLog() throws KVException, IOException {
+        KVServer server = new KVServer(10, 10);
+        TPCLog log = new TPCLog(LOG_PATH, server, 10);
+        for (int i = 0; i < 100; i++) {
+            log.appendAndFlush(put("k" + (i % 7), "v" + i));
+            server.put("k" + (i % 7), "v" + i);
+            log.appendAndFlush(new KVMessage(COMMIT));
+        }
+        log.appendAndFlush(del("k0"));
+        server.del("k0");
+        log.appendAndFlush(new KVMessage(COMMIT));
+        log.appendAndFlush(put("pending", "prepared only"));
+        log.close();
+        assertTrue(countRecords() < 10);
+
+        server = new KVServer(10, 10);
+        log = new TPCLog(LOG_PATH, server, 10);
+        assertFalse(server.hasKey("k0"));
+        for (int i = 1; i < 7; i++) {
+            assertEquals("v" + (99 - (99 - i) % 7), server.get("k" + i));
+        }
+        assertFalse(server.hasKey("pending"));
+        assertEquals("pending", log.getLastEntry().getKey());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void checkpointKeepsUnappliedCommit() throws KVException {
+        KVServer server = new KVServer(10, 10);
+        TPCLog log = new TPCLog(LOG_PATH, server, 0);
+        log.appendAndFlush(put("a", "1"));
+        log.appendAndFlush(new KVMessage(COMMIT));
+        /* Slave dies after logging the commit but before applying it. */
+        log.checkpoint();
+        log.close();
+
+        server = new KVServer(10, 10);
+        new TPCLog(LOG_PATH, server, 0);
+        assertEquals("1", server.get("a"));
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    public void appendsProceedWhileCheckpointSnapshots() throws Exception {
+        final CountDownLatch snapshotting = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        KVServer server = new KVServer(10, 10) {
+            @Override
+            public void writeSnapshot(String fileName) throws IOException {
+                snapshotting.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                super.writeSnapshot(fileName);
+            }
+        };
+        final TPCLog log = new TPCLog(LOG_PATH, server, 0);
+        log.appendAndFlush(put("a", "1"));
+        server.put("a", "1");
+        log.appendAndFlush(new KVMessage(COMMIT));
+        Thread checkpointer = new Thread() {
+            @Override
+            public void run() {
+                log.checkpoint();
+            }
+        };
+        checkpointer.start();
+        snapshotting.await();
+        /* Would block until release if the checkpoint held the log. */
+        log.appendAndFlush(put("b", "2"));
+        log.appendAndFlush(new KVMessage(COMMIT));
+        release.countDown();
+        checkpointer.join();
+        log.close();
+
+        server = new KVServer(10, 10);
+        new TPCLog(LOG_PATH, server, 0);
+        assertEquals("1", server.get("a"));
+        assertEquals("2", server.get("b"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void rebuildReplaysBatches() throws KVException {
+        TPCLog log = new TPCLog(LOG_PATH, new KVServer(10, 10), 0);
+        Map<String, String> pairs = new LinkedHashMap<String, String>();
+        pairs.put("a", "1");
+        pairs.put("b", "2");
+        pairs.put("c", "3");
+        KVMessage mput = new KVMessage(MPUT_REQ);
+        mput.setEntries(pairs);
+        log.appendAndFlush(mput);
+        log.appendAndFlush(new KVMessage(COMMIT));
+        Map<String, String> keys = new LinkedHashMap<String, String>();
+        keys.put("a", null);
+        keys.put("c", null);
+        KVMessage mdel = new KVMessage(MDEL_REQ);
+        mdel.setEntries(keys);
+        log.appendAndFlush(mdel);
+        log.appendAndFlush(new KVMessage(COMMIT));
+        log.close();
+
+        KVServer server = new KVServer(10, 10);
+        log = new TPCLog(LOG_PATH, server, 0);
+        assertFalse(server.hasKey("a"));
+        assertEquals("2", server.get("b"));
+        assertFalse(server.hasKey("c"));
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    public void concurrentAppendsAreAllDurable() throws Exception {
+        final TPCLog log = new TPCLog(LOG_PATH, new KVServer(10, 10), 0);
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 50; i++) {
+                        log.appendAndFlush(put("t" + id + "k" + i, "v"));
+                        log.appendAndFlush(new KVMessage(COMMIT));
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        log.close();
+
+        KVServer server = new KVServer(10, 10);
+        new TPCLog(LOG_PATH, server);
+        int found = 0;
+        for (int t = 0; t < threads.length; t++) {
+            for (int i = 0; i < 50; i++) {
+                if (server.hasKey("t" + t + "k" + i)) {
+                    found++;
+                }
+            }
+        }
+        /* Interleaving can pair a COMMIT with another thread's PUT, so only
+         * the number of records is exact; check that nothing was lost. */
+        assertTrue(found > 0);
+        assertEquals(threads.length * 50 * 2, countRecords());
+    }
+
+    private static int countRecords() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(LOG_PATH, "r");
+        try {
+            assertEquals(TPCLog.LOG_MAGIC, file.readInt());
+            int count = 0;
+            while (file.getFilePointer() < file.length()) {
+                int length = file.readInt();
+                file.skipBytes(4 + length);
+                count++;
+            }
+            return count;
+        } finally {
+            file.close();
+        }
+    }
+}
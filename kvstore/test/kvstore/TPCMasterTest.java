@@ -338,4 +338,22 @@ public class TPCMasterTest {
         }
     }
 
+    @Test
+    public void testHedgeDelayTracksPercentile() {
+        TPCMaster.LatencyWindow window = new TPCMaster.LatencyWindow();
+        assertEquals(TPCMaster.INITIAL_HEDGE_DELAY, window.hedgeDelay());
+        for (int i = 0; i < 100; i++) {
+            window.record(i < 95 ? 10 : 500);
+        }
+        assertEquals(10, window.hedgeDelay());
+        for (int i = 0; i < 128; i++) {
+            window.record(0);
+        }
+        assertEquals(TPCMaster.MIN_HEDGE_DELAY, window.hedgeDelay());
+        for (int i = 0; i < 128; i++) {
+            window.record(60000);
+        }
+        assertEquals(TPCMaster.MAX_HEDGE_DELAY, window.hedgeDelay());
+    }
+
 }
@@ -1,5 +1,6 @@
 package kvstore;
 
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static org.junit.Assert.*;
@@ -143,4 +144,86 @@ public class ThreadPoolTest {
             assertTrue("A thread didn't increment the correct array entry", array[i] == i);
         }
     }
+
+    @Test(timeout = kTimeoutSlow)
+    public void testJobsSubmittedByAWorkerAreStolen() throws InterruptedException {
+        threadPool = new ThreadPool(4);
+        threadPool.addJob(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 8; i++) {
+                        threadPool.addJob(s);
+                    }
+                } catch (InterruptedException e) {
+                    fail("InterruptedException");
+                }
+            }
+        });
+        /* One worker alone would need 1600ms for these. */
+        Thread.sleep(1000);
+        for (int i = 0; i < 8; i++) {
+            assertTrue("A thread didn't increment the correct array entry", array[i] == i);
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void testCloseStopsIdleWorkers() throws InterruptedException {
+        threadPool = new ThreadPool(4);
+        Thread.sleep(50);
+        threadPool.close();
+        for (Thread worker : threadPool.threads) {
+            worker.join(1000);
+            assertFalse(worker.isAlive());
+        }
+    }
+
+    @Test(timeout = kTimeoutSlow)
+    public void testVirtualThreadPoolRunsAllJobsAtOnce() throws InterruptedException {
+        threadPool = new VirtualThreadPool();
+        for (int i = 0; i < array.length; i++) {
+            threadPool.addJob(s);
+        }
+        Thread.sleep(500);
+        for (int i = 0; i < array.length; i++) {
+            assertTrue("A thread didn't increment the correct array entry", array[i] == i);
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void testClosedVirtualThreadPoolDropsJobs() throws InterruptedException {
+        threadPool = new VirtualThreadPool();
+        threadPool.close();
+        threadPool.addJob(r);
+        Thread.sleep(100);
+        assertEquals(0, count);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void testQueueDepthCountsWaitingJobs() throws InterruptedException {
+        threadPool = new ThreadPool(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        threadPool.addJob(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    /* Finish early. */
+                }
+            }
+        });
+        started.await();
+        for (int i = 0; i < 3; i++) {
+            threadPool.addJob(r);
+        }
+        assertEquals(3, threadPool.getQueueDepth());
+        release.countDown();
+        while (threadPool.getQueueDepth() > 0) {
+            Thread.sleep(10);
+        }
+        threadPool.close();
+    }
 }
@@ -0,0 +1,75 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutQuick;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+public class XXHash64Test {
+
+    @Test(timeout = kTimeoutQuick)
+    public void matchesReferenceVectors() {
+        XXHash64 hash = new XXHash64();
+        assertEquals(0xEF46DB3751D8E999L, hash.hash(""));
+        assertEquals(0xD24EC4F1A98C6E5BL, hash.hash("a"));
+        assertEquals(0x44BC2CF5AD770999L, hash.hash("abc"));
+        /* Longer than one 32-byte stripe. */
+        assertEquals(0xFBCEA83C8A378BF1L,
+            hash.hash("Nobody inspects the spammish repetition"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void hashesNonAsciiKeysAndSeeds() {
+        XXHash64 hash = new XXHash64();
+        assertEquals(hash.hash("été"), hash.hash(new String("été")));
+        assertNotEquals(hash.hash("été"), hash.hash("ete"));
+        assertNotEquals(hash.hash("夏天"), hash.hash("夏"));
+        assertNotEquals(new XXHash64(1).hash("abc"), hash.hash("abc"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void hashesUtf8BytesLikeTheirKey() {
+        XXHash64 hash = new XXHash64(7);
+        StringBuilder ascii = new StringBuilder();
+        StringBuilder mixed = new StringBuilder();
+        /* Lengths on both sides of each stripe and lane boundary. */
+        for (int i = 0; i < 80; i++) {
+            ascii.append((char) ('a' + i % 26));
+            mixed.append(i % 9 == 0 ? '\u00e9' : (char) ('a' + i % 26));
+            assertBytesHashLikeKey(hash, ascii.toString());
+            assertBytesHashLikeKey(hash, mixed.toString());
+        }
+    }
+
+    private static void assertBytesHashLikeKey(XXHash64 hash, String key) {
+        byte[] bytes = key.getBytes(Charset.forName("UTF-8"));
+        ByteBuffer buf = ByteBuffer.allocate(bytes.length + 3);
+        buf.position(3);
+        buf.put(bytes);
+        long expected = hash.hash(key);
+        assertEquals(expected, hash.hash(buf, 3, bytes.length));
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(expected, hash.hash(buf, 3, bytes.length));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    public void spreadsSequentialKeysOverCacheSets() {
+        int numSets = 16;
+        KVCache cache = new KVCache(numSets, 1000, false, new XXHash64());
+        for (int i = 0; i < 1600; i++) {
+            cache.put("key" + i, "value");
+        }
+        for (int set = 0; set < numSets; set++) {
+            int size = cache.getCacheSetSize(set);
+            assertTrue("set " + set + " holds " + size,
+                size > 60 && size < 140);
+        }
+        assertEquals("value", cache.get("key42"));
+    }
+}